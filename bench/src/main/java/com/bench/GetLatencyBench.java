@@ -0,0 +1,55 @@
+package com.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Browser GET latency through ProxyClient and OffshoreServer to the local origin, with the link
+// shaped by the emulator (rttMs 0 and linkKbps 0 connect the two directly).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Dadpump.logLevel=error"})
+public class GetLatencyBench {
+    @Param({"0", "600"})
+    public int rttMs;
+
+    @Param({"0"})
+    public long linkKbps;
+
+    @Param({"0"})
+    public int originLatencyMs;
+
+    @Param({"16384"})
+    public int bodyBytes;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Testbed.start(rttMs, linkKbps, originLatencyMs);
+        url = Testbed.originUrl("/text/" + bodyBytes);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        long received = Testbed.get(url);
+        if (received < bodyBytes) {
+            throw new IOException("Short response: " + received + " bytes");
+        }
+        return received;
+    }
+}
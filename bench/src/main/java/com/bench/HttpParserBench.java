@@ -0,0 +1,88 @@
+package com.bench;
+
+import com.common.HttpHead;
+import com.common.HttpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Head parsing as done for every browser request and origin response: the incremental byte parser
+// against building an HttpHead, on heads the size real browsers and origins send.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpParserBench {
+    private static final byte[] REQUEST = ("GET http://www.example.com/articles/2024/satellite-links.html?ref=home HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Referer: http://www.example.com/\r\n"
+            + "Cookie: session=8f2d3c4b5a6e7f809a1b2c3d4e5f6a7b; theme=dark; consent=1\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] RESPONSE = ("HTTP/1.1 200 OK\r\n"
+            + "Date: Tue, 14 Nov 2023 10:12:43 GMT\r\n"
+            + "Server: nginx/1.24.0\r\n"
+            + "Content-Type: text/html; charset=utf-8\r\n"
+            + "Content-Length: 48213\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: public, max-age=300\r\n"
+            + "ETag: \"5f2a-60a3b1c2d4e8f\"\r\n"
+            + "Last-Modified: Mon, 13 Nov 2023 08:00:00 GMT\r\n"
+            + "Vary: Accept-Encoding\r\n"
+            + "X-Frame-Options: SAMEORIGIN\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final HttpParser parser = new HttpParser();
+
+    @Benchmark
+    public int parseRequest() throws IOException {
+        parser.reset();
+        parser.parse(REQUEST, 0, REQUEST.length);
+        return parser.fieldCount();
+    }
+
+    @Benchmark
+    public long parseResponse() throws IOException {
+        parser.reset();
+        parser.parse(RESPONSE, 0, RESPONSE.length);
+        return parser.contentLength();
+    }
+
+    // Fed one byte at a time, as when a head trickles in over a slow link.
+    @Benchmark
+    public int parseRequestBytewise() throws IOException {
+        parser.reset();
+        for (int i = 0; i < REQUEST.length; i++) {
+            parser.parse(REQUEST, i, 1);
+        }
+        return parser.fieldCount();
+    }
+
+    @Benchmark
+    public HttpHead buildRequestHead() {
+        return HttpHead.parse(REQUEST, 0, REQUEST.length);
+    }
+
+    @Benchmark
+    public HttpHead buildResponseHead() {
+        return HttpHead.parse(RESPONSE, 0, RESPONSE.length);
+    }
+}
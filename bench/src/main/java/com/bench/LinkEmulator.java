@@ -0,0 +1,176 @@
+package com.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// TCP relay that makes a loopback hop behave like the satellite link: each direction holds bytes for
+// half the round trip and lets them out no faster than the link bandwidth, so the ship and offshore
+// sides can be measured against a realistic link without the real one.
+//
+// Point the ship at it with -Dadpump.offshorePort=<listenPort>:
+// java -cp benchmarks.jar com.bench.LinkEmulator <listenPort> <offshoreHost:port> <rttMs> [bandwidthKbps]
+public final class LinkEmulator implements Closeable {
+    private static final int CHUNK = 16384;
+    private static final int QUEUED_CHUNKS = 1024;  // bytes in flight per direction, at most 16 MB
+
+    private final ServerSocket server;
+    private final String targetHost;
+    private final int targetPort;
+    private final long oneWayNanos;
+    private final long bytesPerSecond;  // 0 when unlimited
+
+    public LinkEmulator(int listenPort, String targetHost, int targetPort, int rttMs, long bandwidthKbps)
+            throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.oneWayNanos = rttMs * 1_000_000L / 2;
+        this.bytesPerSecond = bandwidthKbps * 1000 / 8;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort), 64);
+        Thread acceptor = new Thread(this::acceptLoop, "link-emulator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket ship = server.accept();
+                Socket offshore = new Socket(targetHost, targetPort);
+                ship.setTcpNoDelay(true);
+                offshore.setTcpNoDelay(true);
+                new Direction(ship, offshore, "up").start();
+                new Direction(offshore, ship, "down").start();
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+                System.err.println("Link emulator could not connect to " + targetHost + ":" + targetPort + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final int length;   // -1 marks the end of the stream
+        final long due;     // nanoTime at which it leaves the far end
+
+        Chunk(byte[] data, int length, long due) {
+            this.data = data;
+            this.length = length;
+            this.due = due;
+        }
+    }
+
+    // One way of a connection: a reader stamps each chunk with the time it would arrive, a writer
+    // hands it on at that time.
+    private final class Direction {
+        private final Socket from;
+        private final Socket to;
+        private final String name;
+        private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        private long busyUntil;  // when the link finishes serializing what it has been given
+
+        Direction(Socket from, Socket to, String name) {
+            this.from = from;
+            this.to = to;
+            this.name = name;
+        }
+
+        void start() {
+            Thread reader = new Thread(this::read, "link-emulator-" + name + "-read");
+            Thread writer = new Thread(this::write, "link-emulator-" + name + "-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void read() {
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    byte[] data = new byte[CHUNK];
+                    int length = in.read(data);
+                    long now = System.nanoTime();
+                    if (length < 0) {
+                        queue.put(new Chunk(data, -1, Math.max(now, busyUntil) + oneWayNanos));
+                        return;
+                    }
+                    long sent = Math.max(now, busyUntil);
+                    if (bytesPerSecond > 0) {
+                        sent += length * 1_000_000_000L / bytesPerSecond;
+                    }
+                    busyUntil = sent;
+                    queue.put(new Chunk(data, length, sent + oneWayNanos));
+                }
+            } catch (IOException | InterruptedException e) {
+                queue.offer(new Chunk(null, -1, 0));
+            }
+        }
+
+        private void write() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    for (long wait = chunk.due - System.nanoTime(); wait > 0; wait = chunk.due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (chunk.length < 0) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    out.write(chunk.data, 0, chunk.length);
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("usage: LinkEmulator <listenPort> <offshoreHost:port> <rttMs> [bandwidthKbps]");
+            System.exit(2);
+        }
+        int listenPort = Integer.parseInt(args[0]);
+        String target = args[1];
+        int colon = target.lastIndexOf(':');
+        int rtt = Integer.parseInt(args[2]);
+        long bandwidth = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        new LinkEmulator(listenPort, target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)), rtt,
+                bandwidth);
+        System.out.println("Link emulator on port " + listenPort + " -> " + target + ", RTT " + rtt + " ms, bandwidth "
+                + (bandwidth == 0 ? "unlimited" : bandwidth + " kbit/s"));
+        Thread.currentThread().join();
+    }
+}
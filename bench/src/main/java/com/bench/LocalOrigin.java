@@ -0,0 +1,178 @@
+package com.bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Stand-in origin server on loopback for benchmarks and manual tests, so nothing depends on the
+// internet. GET /bytes/<n> answers n incompressible bytes and GET /text/<n> n bytes of HTML-like
+// text. Each response waits latencyMs before its head and is paced to bandwidthKbps (0 = unpaced).
+// Responses are marked no-store so neither proxy cache hides the fetch being measured, and every
+// response is stamped with its own number every STAMP_EVERY bytes so no two bodies share a chunk
+// for the link's chunk deduplication either.
+//
+// java -cp benchmarks.jar com.bench.LocalOrigin <port> [latencyMs] [bandwidthKbps]
+public final class LocalOrigin implements Closeable {
+    private static final int CHUNK = 16384;
+    private static final int STAMP_EVERY = 512;  // below Chunks.MIN_CHUNK, so every chunk holds a stamp
+    private static final byte[] RANDOM = new byte[1 << 20];
+    private static final byte[] TEXT = new byte[1 << 20];
+
+    static {
+        new Random(42).nextBytes(RANDOM);
+        byte[] line = "<div class=\"item\"><a href=\"/articles/satellite-links\">Satellite links</a></div>\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < TEXT.length; i++) {
+            TEXT[i] = line[i % line.length];
+        }
+    }
+
+    private final ServerSocket server;
+    private final int latencyMs;
+    private final long bytesPerSecond;  // 0 when unpaced
+    private final AtomicLong responses = new AtomicLong();
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "local-origin");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalOrigin(int port, int latencyMs, long bandwidthKbps) throws IOException {
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bandwidthKbps * 1000 / 8;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        Thread acceptor = new Thread(this::acceptLoop, "local-origin-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return; // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String head;
+            while ((head = readHead(in)) != null) {
+                String target = head.substring(0, Math.max(0, head.indexOf("\r\n"))).split(" ")[1];
+                boolean close = head.toLowerCase().contains("\nconnection: close");
+                if (latencyMs > 0) {
+                    Thread.sleep(latencyMs);
+                }
+                respond(target, close, out);
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // client went away or sent something we do not serve
+        }
+    }
+
+    private void respond(String target, boolean close, OutputStream out) throws IOException {
+        byte[] source = target.contains("/text/") ? TEXT : RANDOM;
+        long length;
+        try {
+            length = Long.parseLong(target.substring(target.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+        if (length < 0) {
+            out.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n" + (close ? "Connection: close\r\n" : "")
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return;
+        }
+        String type = source == TEXT ? "text/html" : "application/octet-stream";
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + type + "\r\nContent-Length: " + length
+                + "\r\nCache-Control: no-store\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        byte[] stamp = String.format("%08x", responses.incrementAndGet()).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] buffer = new byte[CHUNK];
+        long start = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int offset = (int) (sent % source.length);
+            int count = (int) Math.min(Math.min(CHUNK, length - sent), source.length - offset);
+            System.arraycopy(source, offset, buffer, 0, count);
+            for (int at = (int) ((STAMP_EVERY - sent % STAMP_EVERY) % STAMP_EVERY); at < count; at += STAMP_EVERY) {
+                System.arraycopy(stamp, 0, buffer, at, Math.min(stamp.length, count - at));
+            }
+            out.write(buffer, 0, count);
+            sent += count;
+            if (bytesPerSecond > 0) {
+                long due = start + sent * 1_000_000_000L / bytesPerSecond;
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    // The head up to its blank line, or null once the client closes.
+    static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (matched == 4) {
+                return head.toString(StandardCharsets.ISO_8859_1);
+            }
+            if (head.size() > 65536) {
+                throw new IOException("Head too large");
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: LocalOrigin <port> [latencyMs] [bandwidthKbps]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        int latency = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        long bandwidth = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        new LocalOrigin(port, latency, bandwidth);
+        System.out.println("Local origin on http://127.0.0.1:" + port + "/ (GET /bytes/<n>, /text/<n>), latency "
+                + latency + " ms, bandwidth " + (bandwidth == 0 ? "unlimited" : bandwidth + " kbit/s"));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,84 @@
+package com.bench;
+
+import com.common.Frame;
+import com.common.FrameDecoder;
+import com.common.LinkCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Per-chunk cost of relaying body and tunnel bytes over the link: framing a chunk into a direct
+// buffer and decoding it again, and compressing it with the link codec.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBench {
+    @Param({"1024", "16384"})
+    public int chunkSize;
+
+    private byte[] chunk;
+    private ByteBuffer link;
+    private LinkCodec.Encoder encoder;
+    private ByteBuffer compressed;
+
+    @Setup
+    public void setUp() {
+        chunk = new byte[chunkSize];
+        byte[] line = "<li><a href=\"/news/2023/11/link-budget\">Link budget</a> <span>12 comments</span></li>\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = line[i % line.length];
+        }
+        link = ByteBuffer.allocateDirect(Frame.HEADER_SIZE + Frame.MAX_DATA);
+        encoder = LinkCodec.forName("deflate").encoder();
+        compressed = ByteBuffer.allocate(encoder.maxEncodedLength(chunkSize));
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.release();
+    }
+
+    @Benchmark
+    public Frame frameAndDecode() throws IOException {
+        link.clear();
+        Frame.data(1, chunk, 0, chunk.length).writeTo(link);
+        link.flip();
+        return FrameDecoder.next(link);
+    }
+
+    // Payload written after a reserved header, as the offshore side fills frames straight from sockets.
+    @Benchmark
+    public ByteBuffer frameInPlace() {
+        link.clear();
+        link.position(Frame.HEADER_SIZE);
+        link.put(chunk);
+        Frame.putHeader(link, 0, chunk.length, Frame.DATA, (byte) 0, 1);
+        link.flip();
+        return link;
+    }
+
+    @Benchmark
+    public int deflate() {
+        compressed.clear();
+        encoder.encode(chunk, 0, chunk.length, compressed);
+        return compressed.position();
+    }
+}
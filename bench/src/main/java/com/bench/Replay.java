@@ -0,0 +1,152 @@
+package com.bench;
+
+import com.common.Metrics;
+import com.common.Trace;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a browser traffic trace recorded by the ship (-Dadpump.traceFile) through both proxies
+// in-process (Testbed), against LocalOrigin. Each GET asks the origin for as many body bytes as the
+// recorded response had, text for pages, scripts and stylesheets and random bytes otherwise; each
+// CONNECT tunnels a download of the recorded size. Requests start at their recorded offsets divided by
+// speed (0 starts them all at once) on at most concurrency threads. connectShare between 0 and 1 turns
+// that share of requests into tunnels instead of keeping the recorded methods.
+//
+// Latency runs from when a request was due, not from when a thread got to it, so a saturated proxy
+// shows up in the percentiles instead of slowing the replay down.
+//
+// java -cp benchmarks.jar com.bench.Replay <trace> [concurrency] [speed] [connectShare] [rttMs] [linkKbps]
+public final class Replay {
+    private final List<Trace.Record> records;
+    private final int concurrency;
+    private final double speed;
+    private final double connectShare;
+    private final Metrics.Histogram latency = Metrics.latency("adpump_replay_latency_seconds",
+            "Replayed request latency from when it was due to the last byte.");
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong tunnels = new AtomicLong();
+
+    Replay(List<Trace.Record> records, int concurrency, double speed, double connectShare) {
+        this.records = records;
+        this.concurrency = concurrency;
+        this.speed = speed;
+        this.connectShare = connectShare;
+    }
+
+    static List<Trace.Record> load(String path) throws IOException {
+        List<Trace.Record> records = new ArrayList<>();
+        try (Trace.Reader reader = new Trace.Reader(new FileInputStream(path))) {
+            for (Trace.Record record; (record = reader.next()) != null; ) {
+                if (record.method != Trace.OTHER) {
+                    records.add(record); // the ship only answers GET and CONNECT
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(record -> record.startMicros));
+        return records;
+    }
+
+    // Runs the whole trace and returns the wall time in nanoseconds.
+    long run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Random mix = new Random(42);
+        long first = records.isEmpty() ? 0 : records.get(0).startMicros;
+        long start = System.nanoTime();
+        for (Trace.Record record : records) {
+            long due = start + (speed > 0 ? (long) ((record.startMicros - first) * 1000 / speed) : 0);
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean tunnel = connectShare >= 0 ? mix.nextDouble() < connectShare : record.method == Trace.CONNECT;
+            workers.execute(() -> replay(record, tunnel, due));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+        return System.nanoTime() - start;
+    }
+
+    private void replay(Trace.Record record, boolean tunnel, long due) {
+        String path = (isText(record.target) ? "/text/" : "/bytes/") + record.responseBytes;
+        try {
+            if (tunnel) {
+                tunnels.incrementAndGet();
+                bytes.addAndGet(Testbed.tunnel(path));
+            } else {
+                bytes.addAndGet(Testbed.get(Testbed.originUrl(path)));
+            }
+            latency.recordSince(due);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    // Pages, scripts and stylesheets compress on the link; images and media do not.
+    private static boolean isText(String target) {
+        int query = target.indexOf('?');
+        String path = (query < 0 ? target : target.substring(0, query)).toLowerCase(Locale.ROOT);
+        return path.endsWith("/") || path.endsWith(".html") || path.endsWith(".htm") || path.endsWith(".js")
+                || path.endsWith(".css") || path.endsWith(".json") || path.endsWith(".txt");
+    }
+
+    String report(long wallNanos) {
+        double seconds = wallNanos / 1e9;
+        long done = latency.count();
+        long heapUsed = 0;
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapUsed += pool.getUsage().getUsed();
+                heapPeak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return String.format(Locale.ROOT, "%d requests (%d tunnels), %d failed, in %.1f s%n"
+                        + "throughput: %.1f requests/s, %.2f MB/s%n"
+                        + "latency ms: p50 %.1f  p99 %.1f  p999 %.1f%n"
+                        + "heap MB: %.1f used, %.1f peak; threads: %d peak",
+                records.size(), tunnels.get(), failures.get(), seconds,
+                done / seconds, bytes.get() / seconds / 1e6,
+                latency.quantile(0.5) / 1e6, latency.quantile(0.99) / 1e6, latency.quantile(0.999) / 1e6,
+                heapUsed / 1e6, heapPeak / 1e6, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("usage: Replay <trace> [concurrency] [speed] [connectShare] [rttMs] [linkKbps]");
+            System.exit(2);
+        }
+        List<Trace.Record> records = load(args[0]);
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        double connectShare = args.length > 3 ? Double.parseDouble(args[3]) : -1;
+        int rtt = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        long bandwidth = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        Testbed.start(rtt, bandwidth, 0);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        System.out.println("Replaying " + records.size() + " requests on " + concurrency + " threads, speed "
+                + (speed > 0 ? speed + "x" : "unpaced") + ", RTT " + rtt + " ms, bandwidth "
+                + (bandwidth == 0 ? "unlimited" : bandwidth + " kbit/s"));
+        Replay replay = new Replay(records, concurrency, speed, connectShare);
+        System.out.println(replay.report(replay.run()));
+    }
+}
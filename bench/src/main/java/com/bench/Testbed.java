@@ -0,0 +1,121 @@
+package com.bench;
+
+import com.client.ExecutionMode;
+import com.client.ProxyClient;
+import com.server.OffshoreServer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// The whole path inside one JVM: LocalOrigin <- OffshoreServer <- (LinkEmulator) <- ProxyClient, on
+// fixed loopback ports. Neither proxy can be stopped, so a JVM holds one testbed; JMH forks a fresh
+// JVM for every parameter combination.
+final class Testbed {
+    static final int ORIGIN_PORT = 19090;
+    static final int OFFSHORE_PORT = 19080;
+    static final int EMULATOR_PORT = 19079;
+    static final int PROXY_PORT = 19081;
+
+    private static boolean started;
+
+    private Testbed() {
+    }
+
+    static synchronized void start(int rttMs, long linkKbps, int originLatencyMs) throws IOException, InterruptedException {
+        if (started) {
+            return;
+        }
+        started = true;
+        new LocalOrigin(ORIGIN_PORT, originLatencyMs, 0);
+
+        // Both sides read adpump.offshorePort when constructed: the offshore server listens on it,
+        // the ship connects to it, through the emulator when the link is shaped.
+        System.setProperty("adpump.offshorePort", String.valueOf(OFFSHORE_PORT));
+        daemon("offshore", OffshoreServer::new);
+        awaitPort(OFFSHORE_PORT);
+        int linkPort = OFFSHORE_PORT;
+        if (rttMs > 0 || linkKbps > 0) {
+            new LinkEmulator(EMULATOR_PORT, "127.0.0.1", OFFSHORE_PORT, rttMs, linkKbps);
+            linkPort = EMULATOR_PORT;
+        }
+        System.setProperty("adpump.offshorePort", String.valueOf(linkPort));
+        System.setProperty("adpump.proxyPort", String.valueOf(PROXY_PORT));
+        // Chunk deduplication would turn repeated fetches into references and flatter the link numbers;
+        // -Dadpump.chunkStoreMB on the command line measures it deliberately
+        if (System.getProperty("adpump.chunkStoreMB") == null) {
+            System.setProperty("adpump.chunkStoreMB", "0");
+        }
+        ProxyClient client = new ProxyClient(ExecutionMode.VIRTUAL, 256, null);
+        daemon("ship", client::startListening);
+        awaitPort(PROXY_PORT);
+    }
+
+    static String originUrl(String path) {
+        return "http://127.0.0.1:" + ORIGIN_PORT + path;
+    }
+
+    // A browser GET through the ship proxy; returns the bytes received, head included.
+    static long get(String url) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", PROXY_PORT)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + url + " HTTP/1.1\r\nHost: 127.0.0.1:" + ORIGIN_PORT + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return drain(socket.getInputStream());
+        }
+    }
+
+    // A CONNECT tunnel to the origin carrying one GET for path; returns the bytes received after the
+    // tunnel was established.
+    static long tunnel(String path) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", PROXY_PORT)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write(("CONNECT 127.0.0.1:" + ORIGIN_PORT + " HTTP/1.1\r\nHost: 127.0.0.1:" + ORIGIN_PORT + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            String head = LocalOrigin.readHead(in);
+            if (head == null || !head.startsWith("HTTP/1.1 200")) {
+                throw new IOException("Tunnel refused: " + head);
+            }
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1:" + ORIGIN_PORT + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return drain(in);
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void awaitPort(int port) throws InterruptedException, IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Nothing listening on port " + port);
+    }
+}
@@ -0,0 +1,65 @@
+package com.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// CONNECT tunnel throughput: each operation opens a tunnel through both proxies and pulls one
+// download through it. The bytes counter reports bytes per second.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Dadpump.logLevel=error"})
+public class TunnelBench {
+    @Param({"0", "600"})
+    public int rttMs;
+
+    @Param({"0"})
+    public long linkKbps;
+
+    @Param({"8388608"})
+    public int downloadBytes;
+
+    private String path;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Transferred {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Testbed.start(rttMs, linkKbps, 0);
+        path = "/bytes/" + downloadBytes;
+    }
+
+    @Benchmark
+    public void download(Transferred transferred) throws IOException {
+        long received = Testbed.tunnel(path);
+        if (received < downloadBytes) {
+            throw new IOException("Short download: " + received + " bytes");
+        }
+        transferred.bytes += received;
+    }
+}
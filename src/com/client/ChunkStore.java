@@ -0,0 +1,188 @@
+package com.client;
+
+import com.common.Chunks;
+import com.common.Frame;
+import com.common.Log;
+import com.common.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Body chunks the offshore side sent us, by key, so it can send the key instead the next time the
+// same bytes come by: the same creative under a cache-busting URL, or a script with a few bytes
+// changed. Shared by every link connection; least recently used chunks are evicted at capacity.
+//
+// The offshore side only references chunks we announced, so every change is reported to it in CHUNKS
+// frames, in order. An evicted chunk is kept a while longer for references sent before our eviction
+// reached the offshore side. A reference we still cannot resolve fails its stream like a dropped
+// connection, so the request is sent again, and the chunk is reported gone once more.
+final class ChunkStore {
+    private static final long FLUSH_MS = 100;
+    private static final long GRACE_MS = 60000;
+    private static final int RECORD = 1 + Chunks.KEY_SIZE;
+    private static final int RECORDS_PER_FRAME = 4096;
+    private static final Metrics.Counter HITS = Metrics.counter("adpump_chunk_references_total{result=\"hit\"}",
+            "Chunk references from the offshore side by whether we could resolve them.");
+    private static final Metrics.Counter MISSES = Metrics.counter("adpump_chunk_references_total{result=\"miss\"}",
+            "Chunk references from the offshore side by whether we could resolve them.");
+
+    interface Sender {
+        // Sends a frame on any live link connection; false if none could take it.
+        boolean send(Frame frame);
+    }
+
+    private static final class Evicted {
+        final byte[] data;
+        final long at;
+
+        Evicted(byte[] data, long at) {
+            this.data = data;
+            this.at = at;
+        }
+    }
+
+    final String id = UUID.randomUUID().toString(); // tells the offshore side which store it talks to
+    private final long capacityBytes;
+    private final LinkedHashMap<Chunks.Key, byte[]> chunks = new LinkedHashMap<>(1024, 0.75f, true);
+    private final LinkedHashMap<Chunks.Key, Evicted> evicted = new LinkedHashMap<>();  // oldest first
+    private long bytes;
+    private long evictedBytes;
+    private ByteBuffer changes = ByteBuffer.allocate(RECORD * 64);  // not yet reported
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chunk-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ChunkStore(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    void start(Sender sender) {
+        reporter.scheduleWithFixedDelay(() -> report(sender), FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // A literal chunk from the link.
+    synchronized void store(byte[] chunk) {
+        Chunks.Key key = Chunks.key(chunk, 0, chunk.length);
+        if (chunks.get(key) != null) {
+            return;
+        }
+        Evicted old = evicted.remove(key);
+        if (old != null) {
+            evictedBytes -= old.data.length;
+        }
+        chunks.put(key, chunk);
+        bytes += chunk.length;
+        record('+', key);
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Chunks.Key, byte[]>> oldest = chunks.entrySet().iterator();
+        while (bytes > capacityBytes && oldest.hasNext()) {
+            Map.Entry<Chunks.Key, byte[]> victim = oldest.next();
+            oldest.remove();
+            bytes -= victim.getValue().length;
+            evicted.put(victim.getKey(), new Evicted(victim.getValue(), now));
+            evictedBytes += victim.getValue().length;
+            record('-', victim.getKey());
+        }
+        trimEvicted(now);
+    }
+
+    // The bytes of a referenced chunk, or null if we no longer have them.
+    synchronized byte[] resolve(Chunks.Key key) {
+        byte[] chunk = chunks.get(key);
+        if (chunk == null) {
+            Evicted old = evicted.get(key);
+            chunk = old == null ? null : old.data;
+        }
+        if (chunk == null) {
+            MISSES.inc();
+            record('-', key); // the offshore side thinks we have it; tell it again
+            return null;
+        }
+        HITS.inc();
+        return chunk;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    // Evicted chunks go for good after the grace period, or sooner when they take too much room.
+    private void trimEvicted(long now) {
+        Iterator<Evicted> oldest = evicted.values().iterator();
+        while (oldest.hasNext()) {
+            Evicted old = oldest.next();
+            if (now - old.at < GRACE_MS && evictedBytes <= capacityBytes / 8) {
+                return;
+            }
+            oldest.remove();
+            evictedBytes -= old.data.length;
+        }
+    }
+
+    private void record(char op, Chunks.Key key) {
+        if (changes.remaining() < RECORD) {
+            ByteBuffer larger = ByteBuffer.allocate(changes.capacity() * 2);
+            changes.flip();
+            changes = larger.put(changes);
+        }
+        changes.put((byte) op);
+        key.writeTo(changes);
+    }
+
+    // Sends the changes since the last report. Kept for the next try if no link connection is up.
+    private void report(Sender sender) {
+        List<Frame> frames = new ArrayList<>();
+        synchronized (this) {
+            if (changes.position() == 0) {
+                return;
+            }
+            byte[] pending = new byte[changes.position()];
+            changes.flip();
+            changes.get(pending);
+            changes.clear();
+            for (int offset = 0; offset < pending.length; offset += RECORD * RECORDS_PER_FRAME) {
+                int length = Math.min(RECORD * RECORDS_PER_FRAME, pending.length - offset);
+                byte[] payload = new byte[length];
+                System.arraycopy(pending, offset, payload, 0, length);
+                frames.add(new Frame(Frame.CHUNKS, (byte) 0, 0, payload));
+            }
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            if (!sender.send(frames.get(i))) {
+                requeue(frames.subList(i, frames.size()));
+                Log.debug("Chunk store report deferred: no link");
+                return;
+            }
+        }
+    }
+
+    // Unsent changes go back in front of anything recorded since, keeping the order.
+    private synchronized void requeue(List<Frame> unsent) {
+        byte[] later = new byte[changes.position()];
+        changes.flip();
+        changes.get(later);
+        changes.clear();
+        for (Frame frame : unsent) {
+            for (int i = 0; i < frame.payload.length; i += RECORD) {
+                ByteBuffer record = ByteBuffer.wrap(frame.payload, i, RECORD);
+                char op = (char) record.get();
+                record(op, Chunks.Key.read(record));
+            }
+        }
+        ByteBuffer rest = ByteBuffer.wrap(later);
+        while (rest.hasRemaining()) {
+            char op = (char) rest.get();
+            record(op, Chunks.Key.read(rest));
+        }
+    }
+}
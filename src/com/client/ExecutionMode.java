@@ -0,0 +1,84 @@
+package com.client;
+
+import com.common.Log;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// How ProxyClient runs browser handlers and tunnel relays.
+public enum ExecutionMode {
+    PLATFORM,   // one OS thread per task, the original behaviour
+    VIRTUAL,    // one virtual thread per task (JDK 21+, falls back to PLATFORM)
+    BOUNDED;    // fixed pool of OS threads; excess tunnels and connections are refused
+
+    public static ExecutionMode fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("Unknown execution mode '" + name + "', using " + VIRTUAL);
+            return VIRTUAL;
+        }
+    }
+
+    // Executor for browser handlers. In BOUNDED mode up to maxThreads extra connections wait in a
+    // queue, and execute throws RejectedExecutionException beyond that.
+    ExecutorService newHandlerExecutor(int maxThreads) {
+        if (this == BOUNDED) {
+            return new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(maxThreads), threadFactory("browser-handler"));
+        }
+        return newPerTaskExecutor("browser-handler");
+    }
+
+    // Executor for the upload half of each tunnel. In BOUNDED mode it never queues: a relay that
+    // cannot start right away would leave its tunnel half dead, so it is rejected instead.
+    ExecutorService newRelayExecutor(int maxThreads) {
+        if (this == BOUNDED) {
+            return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), threadFactory("tunnel-relay"));
+        }
+        return newPerTaskExecutor("tunnel-relay");
+    }
+
+    // A tunnel keeps its handler thread for as long as it is open, so in BOUNDED mode tunnels may only
+    // take three quarters of the pool and GETs always find a thread.
+    int maxTunnels(int maxThreads) {
+        return this == BOUNDED ? Math.max(1, maxThreads * 3 / 4) : Integer.MAX_VALUE;
+    }
+
+    boolean usesVirtualThreads() {
+        return this == VIRTUAL && VIRTUAL_FACTORY != null;
+    }
+
+    private ExecutorService newPerTaskExecutor(String name) {
+        if (this == VIRTUAL && VIRTUAL_FACTORY != null) {
+            try {
+                return (ExecutorService) VIRTUAL_FACTORY.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Could not create virtual thread executor: " + e.getMessage());
+            }
+        }
+        return Executors.newCachedThreadPool(threadFactory(name));
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Looked up reflectively so the proxy still builds and runs on JDKs without virtual threads.
+    private static final Method VIRTUAL_FACTORY = findVirtualFactory();
+
+    private static Method findVirtualFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.client;
+
+import com.common.Chunks;
+import com.common.Frame;
+import com.common.LinkCodec;
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The persistent framed connection to the offshore proxy. Any number of streams share it;
+// a single reader thread routes inbound frames to their stream by id.
+public class LinkConnection {
+    private static final Metrics.Histogram LINK_RTT =
+            Metrics.latency("adpump_link_rtt_seconds", "Round trip of health PINGs on the link.");
+    private static final Metrics.Counter BYTES_IN =
+            Metrics.counter("adpump_link_bytes_total{direction=\"in\"}", "Frame bytes moved over the link.");
+    private static final Metrics.Counter BYTES_OUT =
+            Metrics.counter("adpump_link_bytes_total{direction=\"out\"}", "Frame bytes moved over the link.");
+    // An unreachable offshore side should fail a connect in seconds, not after the OS gives up
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("adpump.linkConnectTimeoutMs", 10000);
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    // Held across blocking socket writes. A lock rather than a monitor, so a virtual thread waiting
+    // here or writing does not pin its carrier.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final DataInputStream in;
+    private final Map<Integer, LinkStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1); // client streams are odd
+    private volatile boolean closed;
+    private volatile LinkCodec codec; // chosen by the offshore side in its SETTINGS reply
+    private final AtomicLong outstanding = new AtomicLong(); // response bytes still expected on open streams
+    private volatile long lastReadAt = System.currentTimeMillis();
+    private volatile long pingSentAt;   // wall clock of the unanswered health PING, 0 if none
+    private volatile long pingSentNanos;
+    private volatile long rttMillis = -1;
+    private volatile Runnable onClose = () -> { };
+    private final PushHandler pushHandler; // null when we refuse pushes
+    private final ChunkStore chunkStore;   // null when bodies are not chunked for us
+
+    // Takes a stream the offshore side opened to push the response to request. Runs on the link reader
+    // thread, so it must not block.
+    interface PushHandler {
+        void accept(LinkStream stream, String request);
+    }
+
+    public LinkConnection(String host, int port) throws IOException {
+        this(host, port, "");
+    }
+
+    public LinkConnection(String host, int port, String codecs) throws IOException {
+        this(host, port, codecs, null, null);
+    }
+
+    // codecs: comma-separated DATA codecs we can decode, in order of preference; empty for none
+    LinkConnection(String host, int port, String codecs, PushHandler pushHandler, ChunkStore chunkStore)
+            throws IOException {
+        this.pushHandler = pushHandler;
+        this.chunkStore = chunkStore;
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        send(Frame.settings("codecs=" + codecs + (pushHandler != null ? "\npush=1" : "")
+                + (chunkStore != null ? "\nchunks=" + chunkStore.id : "")));
+        Thread reader = new Thread(this::readLoop, "link-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Runs once the connection has closed and failed its streams.
+    void onClose(Runnable onClose) {
+        this.onClose = onClose;
+        if (closed) {
+            onClose.run();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public LinkStream openStream() throws IOException {
+        if (closed) {
+            throw new IOException("Link to offshore proxy is closed.");
+        }
+        int id = nextStreamId.getAndAdd(2);
+        LinkStream stream = new LinkStream(id, this);
+        streams.put(id, stream);
+        return stream;
+    }
+
+    public int activeStreams() {
+        return streams.size();
+    }
+
+    public long outstandingBytes() {
+        return outstanding.get();
+    }
+
+    void addOutstanding(long bytes) {
+        outstanding.addAndGet(bytes);
+    }
+
+    long lastReadAt() {
+        return lastReadAt;
+    }
+
+    long rttMillis() {
+        return rttMillis;
+    }
+
+    // When the pending health PING was sent, or 0.
+    long pingOutstandingSince() {
+        return pingSentAt;
+    }
+
+    // Health probe; the offshore side echoes the payload with ACK.
+    void ping() {
+        if (pingSentAt != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        pingSentNanos = now;
+        pingSentAt = System.currentTimeMillis();
+        byte[] payload = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (now >>> (56 - 8 * i));
+        }
+        try {
+            send(Frame.ping((byte) 0, payload));
+        } catch (IOException e) {
+            Log.warn("Error pinging offshore proxy: " + e.getMessage());
+        }
+    }
+
+    void send(Frame frame) throws IOException {
+        send(frame, true);
+    }
+
+    void send(Frame frame, boolean flush) throws IOException {
+        write(frame.type, frame.flags, frame.streamId, frame.payload, 0, frame.payload.length, flush);
+    }
+
+    // A DATA frame straight from the caller's array, so relaying allocates nothing per frame.
+    void sendData(int streamId, byte[] buffer, int offset, int length) throws IOException {
+        write(Frame.DATA, (byte) 0, streamId, buffer, offset, length, true);
+    }
+
+    private void write(byte type, byte flags, int streamId, byte[] payload, int offset, int length, boolean flush)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Link to offshore proxy is closed.");
+        }
+        writeLock.lock();
+        try {
+            Frame.writeHeader(out, length, type, flags, streamId);
+            out.write(payload, offset, length);
+            BYTES_OUT.add(Frame.HEADER_SIZE + length);
+            if (flush) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void removeStream(int id) {
+        streams.remove(id);
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                Frame frame = Frame.read(in);
+                lastReadAt = System.currentTimeMillis();
+                BYTES_IN.add(Frame.HEADER_SIZE + frame.payload.length);
+                if (frame.type == Frame.PING) {
+                    if (!frame.hasFlag(Frame.FLAG_ACK)) {
+                        send(Frame.ping(Frame.FLAG_ACK, frame.payload));
+                    } else if (pingSentAt != 0) {
+                        long rtt = System.nanoTime() - pingSentNanos;
+                        rttMillis = rtt / 1_000_000;
+                        LINK_RTT.record(rtt);
+                        pingSentAt = 0;
+                    }
+                    continue;
+                }
+                if (frame.type == Frame.SETTINGS) {
+                    onSettings(frame.payloadAsString());
+                    continue;
+                }
+                if (frame.type == Frame.PUSH) {
+                    acceptPush(frame);
+                    continue;
+                }
+                LinkStream stream = streams.get(frame.streamId);
+                if (frame.type == Frame.WINDOW_UPDATE) {
+                    if (stream != null) {
+                        stream.onWindowUpdate(frame.windowIncrement());
+                    }
+                    continue;
+                }
+                if (stream == null) {
+                    // Late frame for a stream we already gave up on.
+                    if (frame.type != Frame.RST && frame.type != Frame.END) {
+                        send(Frame.rst(frame.streamId));
+                    }
+                    continue;
+                }
+                if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+                    if (codec == null) {
+                        throw new IOException("Compressed frame before a codec was negotiated");
+                    }
+                    frame = stream.decode(codec, frame);
+                }
+                if (frame.hasFlag(Frame.FLAG_CHUNK) || frame.hasFlag(Frame.FLAG_CHUNK_REF)) {
+                    frame = unchunk(stream, frame);
+                    if (frame == null) {
+                        continue;
+                    }
+                }
+                stream.deliver(frame);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                Log.warn("Link to offshore proxy lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // A literal chunk is kept in the store, a reference replaced by the bytes it names. A reference we
+    // cannot resolve fails the stream like a dropped connection, so its request is sent again; null then.
+    private Frame unchunk(LinkStream stream, Frame frame) throws IOException {
+        byte flags = (byte) (frame.flags & ~(Frame.FLAG_CHUNK | Frame.FLAG_CHUNK_REF));
+        if (frame.hasFlag(Frame.FLAG_CHUNK)) {
+            if (chunkStore != null) {
+                chunkStore.store(frame.payload);
+            }
+            return new Frame(frame.type, flags, frame.streamId, frame.payload);
+        }
+        byte[] chunk = chunkStore == null || frame.payload.length != Chunks.KEY_SIZE
+                ? null : chunkStore.resolve(Chunks.Key.read(ByteBuffer.wrap(frame.payload)));
+        if (chunk == null) {
+            Log.warn("Stream " + frame.streamId + " referenced a chunk we no longer hold; sending it again");
+            stream.linkLost();
+            send(Frame.rst(frame.streamId));
+            return null;
+        }
+        return new Frame(frame.type, flags, frame.streamId, chunk);
+    }
+
+    // A stream the offshore side opened; we never send on it, so our half is closed from the start.
+    private void acceptPush(Frame frame) throws IOException {
+        if (pushHandler == null || (frame.streamId & 1) != 0 || streams.containsKey(frame.streamId)) {
+            send(Frame.rst(frame.streamId));
+            return;
+        }
+        LinkStream stream = new LinkStream(frame.streamId, this);
+        streams.put(frame.streamId, stream);
+        stream.localEnd();
+        pushHandler.accept(stream, frame.payloadAsString());
+    }
+
+    private void onSettings(String settings) {
+        for (String line : settings.split("\n")) {
+            String[] setting = line.split("=", 2);
+            if (setting.length == 2 && setting[0].trim().equals("codec")) {
+                codec = LinkCodec.forName(setting[1]);
+                Log.info("Link compression: " + (codec == null ? "identity" : codec.name()));
+            }
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing link socket: " + e.getMessage());
+        }
+        // Fail every stream still waiting on this connection; journaled requests are sent again elsewhere.
+        for (LinkStream stream : streams.values()) {
+            stream.linkLost();
+        }
+        streams.clear();
+        onClose.run();
+    }
+}
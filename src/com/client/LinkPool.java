@@ -0,0 +1,229 @@
+package com.client;
+
+import com.common.Frame;
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Several parallel link connections to the offshore proxy, so one TCP window does not cap the
+// satellite path. New streams go to the healthy connection with the fewest response bytes still
+// outstanding. A connection that drops or stops answering PINGs is replaced in the background
+// while the others carry the traffic. Reconnects only ever run on the health thread, so a link
+// outage never holds up request dispatch behind a connect.
+public class LinkPool {
+    private static final long HEALTH_INTERVAL_MS = 5000;
+    private static final long PING_TIMEOUT_MS = 15000;
+    private static final long RECONNECT_INTERVAL_MS = 1000; // between attempts asked for by pick()
+    private static final Metrics.Counter RECONNECTS =
+            Metrics.counter("adpump_link_reconnects_total", "Link connections re-established after a drop.");
+
+    private final String host;
+    private final int port;
+    private final String codecs;
+    private final LinkConnection.PushHandler pushHandler;
+    private final ChunkStore chunkStore;
+    private final LinkConnection[] links;  // a slot is null or closed while its connection is down
+    private final ScheduledExecutorService health = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "link-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean reconnectQueued = new AtomicBoolean();
+    private volatile long reconnectAttemptAt;
+
+    public LinkPool(String host, int port, String codecs, int size) throws IOException {
+        this(host, port, codecs, size, null, null);
+    }
+
+    // pushHandler takes responses the offshore side pushes on any connection; null refuses them.
+    // chunkStore is shared by every connection; null when bodies are not to be chunked.
+    LinkPool(String host, int port, String codecs, int size, LinkConnection.PushHandler pushHandler,
+             ChunkStore chunkStore) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.codecs = codecs;
+        this.pushHandler = pushHandler;
+        this.chunkStore = chunkStore;
+        links = new LinkConnection[Math.max(1, size)];
+        IOException failure = null;
+        for (int i = 0; i < links.length; i++) {
+            try {
+                links[i] = open();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null && liveCount() == 0) {
+            throw failure;
+        }
+        Metrics.gauge("adpump_link_connections", "Live link connections.", this::liveCount);
+        health.scheduleWithFixedDelay(this::checkHealth, HEALTH_INTERVAL_MS, HEALTH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    public synchronized int liveCount() {
+        int live = 0;
+        for (LinkConnection link : links) {
+            if (link != null && !link.isClosed()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    // The live connection with the least outstanding bytes. With none left, fails at once and has the
+    // health thread reconnect; the journal resends what it holds once a connection is back.
+    public LinkConnection pick() throws IOException {
+        LinkConnection best = pickOther(null);
+        if (best != null) {
+            return best;
+        }
+        if (System.currentTimeMillis() - reconnectAttemptAt >= RECONNECT_INTERVAL_MS
+                && reconnectQueued.compareAndSet(false, true)) {
+            Log.info("All link connections are down. Attempting to reconnect...");
+            health.execute(() -> {
+                checkHealth();
+                reconnectAttemptAt = System.currentTimeMillis();
+                reconnectQueued.set(false);
+            });
+        }
+        throw new IOException("No link connection to offshore proxy");
+    }
+
+    // The least loaded live connection other than avoid, or null; never reconnects.
+    public LinkConnection pickOther(LinkConnection avoid) {
+        LinkConnection best = null;
+        synchronized (this) {
+            for (LinkConnection link : links) {
+                if (link != null && link != avoid && !link.isClosed()
+                        && (best == null || link.outstandingBytes() < best.outstandingBytes())) {
+                    best = link;
+                }
+            }
+        }
+        return best;
+    }
+
+    // Health thread only.
+    private void reconnect(int slot) throws IOException {
+        LinkConnection fresh = open();
+        synchronized (this) {
+            links[slot] = fresh;
+        }
+        RECONNECTS.inc();
+        Log.info("Re-established link connection " + slot + " to offshore proxy at " + host + ":" + port);
+    }
+
+    private LinkConnection open() throws IOException {
+        LinkConnection link = new LinkConnection(host, port, codecs, pushHandler, chunkStore);
+        link.onClose(() -> health.execute(this::probe));
+        return link;
+    }
+
+    // Connections tend to drop together, and an idle one may not notice until it next writes. When
+    // one drops the others are PINGed at once, so a dead one fails before requests are resent on it.
+    private void probe() {
+        for (LinkConnection link : snapshot()) {
+            if (link != null && !link.isClosed()) {
+                link.ping();
+            }
+        }
+    }
+
+    // A connection-level frame, on the first live connection so consecutive ones keep their order.
+    boolean sendControl(Frame frame) {
+        for (LinkConnection link : snapshot()) {
+            if (link != null && !link.isClosed()) {
+                try {
+                    link.send(frame);
+                    return true;
+                } catch (IOException e) {
+                    Log.warn("Error sending " + Frame.typeName(frame.type) + " to offshore proxy: " + e.getMessage());
+                }
+            }
+        }
+        return false;
+    }
+
+    // Push out frames a pipelining caller left buffered on any connection.
+    public void flush() {
+        for (LinkConnection link : snapshot()) {
+            if (link != null && !link.isClosed()) {
+                try {
+                    link.flush();
+                } catch (IOException e) {
+                    Log.warn("Error flushing link connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized LinkConnection[] snapshot() {
+        return links.clone();
+    }
+
+    // Each connection is judged on its own: dead ones are replaced, silent ones are probed and
+    // closed once a probe goes unanswered for too long.
+    private void checkHealth() {
+        LinkConnection[] current = snapshot();
+        long now = System.currentTimeMillis();
+        boolean unreachable = false; // one failed connect is enough to know the rest would wait it out too
+        for (int i = 0; i < current.length; i++) {
+            LinkConnection link = current[i];
+            if (link == null || link.isClosed()) {
+                if (unreachable) {
+                    continue;
+                }
+                try {
+                    reconnect(i);
+                } catch (IOException e) {
+                    unreachable = true;
+                    Log.warn("Link connection " + i + " still down: " + e.getMessage());
+                }
+                continue;
+            }
+            if (link.pingOutstandingSince() > 0 && now - link.pingOutstandingSince() > PING_TIMEOUT_MS) {
+                Log.warn("Link connection " + i + " stopped answering; closing it");
+                link.close();
+                continue;
+            }
+            if (now - link.lastReadAt() >= HEALTH_INTERVAL_MS) {
+                link.ping();
+            }
+        }
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        LinkConnection[] current = snapshot();
+        for (int i = 0; i < current.length; i++) {
+            LinkConnection link = current[i];
+            report.append(i == 0 ? "" : ", ").append(i).append('=');
+            if (link == null || link.isClosed()) {
+                report.append("down");
+            } else {
+                report.append(link.activeStreams()).append(" streams/")
+                        .append(link.outstandingBytes() / 1024).append(" KB/")
+                        .append(link.rttMillis()).append(" ms");
+            }
+        }
+        return report.toString();
+    }
+
+    public void close() {
+        health.shutdownNow();
+        for (LinkConnection link : snapshot()) {
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+}
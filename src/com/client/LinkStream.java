@@ -0,0 +1,334 @@
+package com.client;
+
+import com.common.BodyFraming;
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.LinkCodec;
+import com.common.Log;
+import com.common.Metrics;
+import com.common.StreamState;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// One logical request or tunnel multiplexed on a LinkConnection. State shared with the link reader
+// is guarded by a ReentrantLock rather than the monitor, so virtual threads waiting for send window
+// do not pin their carriers.
+public class LinkStream {
+    // Weight of a response whose size is not known yet, for balancing across link connections
+    private static final long NOMINAL_RESPONSE = 64 * 1024;
+    private static final Metrics.Histogram STREAM_BYTES_IN =
+            Metrics.bytes("adpump_stream_bytes{direction=\"in\"}", "Body or tunnel bytes carried per link stream.");
+    private static final Metrics.Histogram STREAM_BYTES_OUT =
+            Metrics.bytes("adpump_stream_bytes{direction=\"out\"}", "Body or tunnel bytes carried per link stream.");
+
+    private final int id;
+    private final LinkConnection link;
+    private final LinkedBlockingQueue<Frame> inbound = new LinkedBlockingQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpen = lock.newCondition(); // signalled on window updates and resets
+    private volatile StreamState state = StreamState.OPEN;
+    private volatile Consumer<Frame> handler; // when set, frames are handed over on the link reader thread
+    private LinkCodec.Decoder decoder;        // link reader thread only
+    private long expected = NOMINAL_RESPONSE; // response bytes still to come, counted on the link; guarded by lock
+    private boolean settled;                  // guarded by lock
+    private long sendWindow = Frame.INITIAL_WINDOW; // DATA bytes the offshore side will still take; guarded by lock
+    private int unacknowledged;               // DATA bytes drained locally but not yet credited; guarded by lock
+    private long bytesIn;                     // guarded by lock
+    private long bytesOut;                    // guarded by lock
+    private boolean retired;                  // guarded by lock
+    private boolean linkLost;                 // guarded by lock
+
+    LinkStream(int id, LinkConnection link) {
+        this.id = id;
+        this.link = link;
+        link.addOutstanding(NOMINAL_RESPONSE);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public StreamState getState() {
+        return state;
+    }
+
+    // Set it before the first frame is sent; anything that already landed in the queue is handed over.
+    public void setHandler(Consumer<Frame> handler) {
+        this.handler = handler;
+        Frame queued;
+        while ((queued = inbound.poll()) != null) {
+            handler.accept(queued);
+        }
+    }
+
+    LinkConnection link() {
+        return link;
+    }
+
+    // The connection under the stream dropped. Delivered as a reset, but the owner may send the request
+    // again on another connection; isLinkLost() tells the two apart.
+    void linkLost() {
+        lock.lock();
+        try {
+            if (linkLost) {
+                return;
+            }
+            linkLost = true;
+        } finally {
+            lock.unlock();
+        }
+        deliver(Frame.rst(id));
+    }
+
+    public boolean isLinkLost() {
+        lock.lock();
+        try {
+            return linkLost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Opened by the offshore side to push a response.
+    public boolean isPushed() {
+        return (id & 1) == 0;
+    }
+
+    public void sendHeaders(String head, boolean endStream) throws IOException {
+        sendHeaders(head, endStream, true);
+    }
+
+    // flush=false lets a caller pipeline several streams' frames into one write
+    public void sendHeaders(String head, boolean endStream, boolean flush) throws IOException {
+        link.send(Frame.headers(id, head, endStream), flush);
+        if (endStream) {
+            localEnd();
+        }
+    }
+
+    // Blocks while the offshore side has no room for more, which in turn stops the caller reading
+    // from its browser socket.
+    public void sendData(byte[] buffer, int offset, int length) throws IOException {
+        awaitSendWindow();
+        link.sendData(id, buffer, offset, length);
+        lock.lock();
+        try {
+            sendWindow -= length;
+            bytesOut += length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitSendWindow() throws IOException {
+        lock.lock();
+        try {
+            while (sendWindow <= 0) {
+                if (state == StreamState.CLOSED) {
+                    throw new IOException("Stream " + id + " was reset");
+                }
+                windowOpen.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for window on stream " + id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onWindowUpdate(int increment) {
+        lock.lock();
+        try {
+            sendWindow += increment;
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The local consumer drained this many DATA bytes; credit them back in batches.
+    public void consumed(int bytes) {
+        int credit;
+        lock.lock();
+        try {
+            unacknowledged += bytes;
+            if (unacknowledged < Frame.INITIAL_WINDOW / 4
+                    || state == StreamState.CLOSED || state == StreamState.HALF_CLOSED_REMOTE) {
+                return;
+            }
+            credit = unacknowledged;
+            unacknowledged = 0;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            link.send(Frame.windowUpdate(id, credit));
+        } catch (IOException e) {
+            Log.warn("Error sending window update on stream " + id + ": " + e.getMessage());
+        }
+    }
+
+    public void sendEnd() throws IOException {
+        if (state == StreamState.HALF_CLOSED_LOCAL || state == StreamState.CLOSED) {
+            return;
+        }
+        link.send(Frame.end(id));
+        localEnd();
+    }
+
+    // Abort the stream on both sides; safe to call more than once.
+    public void reset() {
+        if (state == StreamState.CLOSED) {
+            return;
+        }
+        state = StreamState.CLOSED;
+        retire();
+        settleOutstanding();
+        wakeSenders();
+        // Wake up anyone blocked in take() on this side as well
+        Consumer<Frame> current = handler;
+        if (current == null) {
+            inbound.offer(Frame.rst(id));
+        }
+        try {
+            link.send(Frame.rst(id));
+        } catch (IOException e) {
+            Log.warn("Error resetting stream " + id + ": " + e.getMessage());
+        }
+    }
+
+    // Next inbound frame, or null on timeout.
+    public Frame take(long timeoutMillis) throws InterruptedException {
+        return inbound.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean hasPendingFrames() {
+        return !inbound.isEmpty();
+    }
+
+    // Undo link compression; the decoder lives as long as the stream because its history spans frames.
+    Frame decode(LinkCodec codec, Frame frame) throws IOException {
+        if (decoder == null) {
+            decoder = codec.decoder();
+        }
+        return new Frame(frame.type, (byte) (frame.flags & ~Frame.FLAG_COMPRESSED), frame.streamId,
+                decoder.decode(frame.payload));
+    }
+
+    void deliver(Frame frame) {
+        if (frame.type == Frame.HEADERS) {
+            expectResponse(frame.payload);
+        } else if (frame.type == Frame.DATA) {
+            consumeOutstanding(frame.payload.length);
+        }
+        if (frame.type == Frame.END || frame.hasFlag(Frame.FLAG_END_STREAM)) {
+            remoteEnd();
+        } else if (frame.type == Frame.RST) {
+            state = StreamState.CLOSED;
+            retire();
+            wakeSenders();
+        }
+        if (frame.type == Frame.END || frame.type == Frame.RST || frame.hasFlag(Frame.FLAG_END_STREAM)) {
+            releaseDecoder();
+            settleOutstanding();
+        }
+        Consumer<Frame> current = handler;
+        if (current != null) {
+            current.accept(frame);
+        } else {
+            inbound.offer(frame);
+        }
+    }
+
+    // Once the head is in, a declared length replaces the nominal guess.
+    private void expectResponse(byte[] head) {
+        HttpHead parsed = HttpHead.parse(head, 0, head.length);
+        long length = parsed.statusCode() < 0 ? -1 : BodyFraming.forResponse("GET", parsed).contentLength();
+        lock.lock();
+        try {
+            if (!settled && length >= 0) {
+                link.addOutstanding(length - expected);
+                expected = length;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void consumeOutstanding(long bytes) {
+        lock.lock();
+        try {
+            bytesIn += bytes;
+            long taken = Math.min(expected, bytes);
+            expected -= taken;
+            link.addOutstanding(-taken);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeSenders() {
+        lock.lock();
+        try {
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void settleOutstanding() {
+        lock.lock();
+        try {
+            if (!settled) {
+                settled = true;
+                link.addOutstanding(-expected);
+                expected = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseDecoder() {
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
+    }
+
+    // Leaves the link's stream table once closed in both directions, recording what it carried.
+    private void retire() {
+        link.removeStream(id);
+        lock.lock();
+        try {
+            if (!retired) {
+                retired = true;
+                STREAM_BYTES_IN.record(bytesIn);
+                STREAM_BYTES_OUT.record(bytesOut);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void localEnd() {
+        state = state.onLocalEnd();
+        if (state == StreamState.CLOSED) {
+            retire();
+        }
+    }
+
+    private void remoteEnd() {
+        state = state.onRemoteEnd();
+        if (state == StreamState.CLOSED) {
+            retire();
+        }
+    }
+}
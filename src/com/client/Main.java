@@ -1,14 +1,54 @@
 package com.client;
 
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+
 public class Main {
     public static void main(String[] args) {
-//        ProxyClient client = new ProxyClient();
-//        //Sequential request
-////        client.addRequest("http://google.com");
-////        client.addRequest("http://fb.com");
-////        client.addRequest("http://twitter.com");
-//        client.startListening();
-
-        new ProxyClient();
+        // -Dadpump.executionMode=virtual|platform|bounded, -Dadpump.maxThreads=256 (bounded only)
+        ExecutionMode mode = ExecutionMode.fromName(System.getProperty("adpump.executionMode", "virtual"));
+        int maxThreads = Integer.getInteger("adpump.maxThreads", 256);
+
+        // -Dadpump.cacheDir=ship-cache, -Dadpump.cacheBudgetMB=1024 (0 disables the disk cache)
+        ShipCache cache = null;
+        long budgetMB = Long.getLong("adpump.cacheBudgetMB", 1024);
+        if (budgetMB > 0) {
+            try {
+                cache = new ShipCache(new File(System.getProperty("adpump.cacheDir", "ship-cache")),
+                        budgetMB << 20, 64 << 20);
+            } catch (IOException e) {
+                Log.warn("Ship cache disabled: " + e.getMessage());
+            }
+        }
+        ProxyClient client = new ProxyClient(mode, maxThreads, cache);
+
+        // -Dadpump.metricsPort=9101 serves Prometheus metrics on loopback (0 disables)
+        int metricsPort = Integer.getInteger("adpump.metricsPort", 9101);
+        if (metricsPort > 0) {
+            Metrics.serve(metricsPort);
+        }
+
+        // -Dadpump.threadStats=10 prints thread and heap use per tunnel every 10 seconds
+        int statsInterval = Integer.getInteger("adpump.threadStats", 0);
+        if (statsInterval > 0) {
+            Thread stats = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(statsInterval * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Log.info("Thread stats: " + client.threadReport());
+                    Log.info("Link stats: " + client.linkReport());
+                    Log.info("Scheduler: " + client.schedulerReport());
+                }
+            }, "thread-stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+        client.startListening();
     }
 }
@@ -0,0 +1,432 @@
+package com.client;
+
+import com.common.BodyFraming;
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// A browser GET waiting in the dispatch queue or in flight on the link. Identical GETs from other
+// browser threads subscribe to the same request instead of sending their own, and every subscriber
+// gets its own copy of the body frames. Frames arrive on the link reader thread.
+//
+// The request may be sent more than once: again after its link connection drops (continuing the body
+// where it stopped), and as a hedge racing a slow first attempt. Subscribers only ever see one response.
+// A response the offshore side pushes is a request like any other, whose first subscriber holds it
+// for the browser that has not asked yet.
+class PendingRequest {
+    private static final long MAX_REPLAY_BYTES = 1 << 20; // late joiners are replayed at most this much body
+
+    final long id;
+    final String url;
+    final String key;
+    final CompletableFuture<byte[]> head = new CompletableFuture<>(); // response head; body follows per subscriber
+    final long enqueuedAt = System.nanoTime();
+    volatile LinkStream stream;   // the attempt whose response is delivered
+    volatile String requestHead;  // as sent on the link
+    volatile long sentAt;         // wall clock, for cache age
+    volatile long sentNanos;      // first send, for head latency
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final List<Frame> replay = new ArrayList<>();
+    private long replayBytes;
+    private long credited;    // body bytes handed back to the link as window; guarded by this
+    private boolean joinable = true;
+    private int subscriptions;       // subscribers so far, including those that left
+    private Runnable onSettled = () -> { };
+    private Runnable onFinished = () -> { };
+    private boolean finished;
+    private LinkStream hedge;        // second attempt racing stream until one of them answers
+    private HttpHead responseHead;   // as delivered to the browsers
+    private boolean resuming;        // the next head continues a response already under way
+    private long bodyDelivered;      // body bytes handed to subscribers
+    private long skip;               // body bytes the current attempt repeats
+    private Predicate<PendingRequest> onLinkLost = request -> false;
+
+    PendingRequest(long id, String url, String key) {
+        this.id = id;
+        this.url = url;
+        this.key = key;
+    }
+
+    // Runs once when the request stops accepting subscribers.
+    synchronized void onSettled(Runnable onSettled) {
+        this.onSettled = onSettled;
+    }
+
+    // Runs once when the request no longer occupies the link, after any added before it.
+    synchronized void onFinished(Runnable onFinished) {
+        if (finished) {
+            onFinished.run();
+        } else {
+            Runnable previous = this.onFinished;
+            this.onFinished = () -> {
+                previous.run();
+                onFinished.run();
+            };
+        }
+    }
+
+    // Asked when the request's link connection drops; true if it will be sent again.
+    synchronized void onLinkLost(Predicate<PendingRequest> onLinkLost) {
+        this.onLinkLost = onLinkLost;
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized boolean isResuming() {
+        return resuming;
+    }
+
+    // Grows as the response gets further: 1 for the head, plus the body bytes delivered.
+    synchronized long progress() {
+        return (responseHead == null ? 0 : 1) + bodyDelivered;
+    }
+
+    synchronized boolean canHedge() {
+        return !finished && !head.isDone() && hedge == null && !resuming;
+    }
+
+    // Makes next the attempt to answer (or, as a hedge, the one racing it). False if it is not wanted.
+    synchronized boolean attach(LinkStream next, boolean asHedge) {
+        if (asHedge) {
+            if (!canHedge()) {
+                return false;
+            }
+            hedge = next;
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        stream = next;
+        skip = 0;
+        credited = bodyDelivered; // the new stream's window only covers what is still to come
+        return true;
+    }
+
+    // Extra request fields for the next attempt: a Range continuing a body that is partly delivered.
+    synchronized String resumeFields() {
+        if (!resuming || bodyDelivered == 0) {
+            return "";
+        }
+        String validator = validator(responseHead);
+        return "Range: bytes=" + bodyDelivered + "-\r\n" + (validator == null ? "" : "If-Range: " + validator + "\r\n");
+    }
+
+    // Fail the request for good, e.g. when no link came back in time.
+    void abandon(IOException cause) {
+        synchronized (this) {
+            resuming = false;
+        }
+        head.completeExceptionally(cause);
+        broadcast(Frame.rst(0));
+    }
+
+    synchronized void finished() {
+        if (!finished) {
+            finished = true;
+            onFinished.run();
+        }
+    }
+
+    // A new reader of this response, or null if it has progressed too far to join.
+    synchronized Subscriber subscribe() {
+        if (!joinable) {
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(subscribers.isEmpty());
+        subscriptions++;
+        subscriber.frames.addAll(replay);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    synchronized int subscriberCount() {
+        return subscribers.size();
+    }
+
+    // Whether anyone subscribed after the first.
+    synchronized boolean wasJoined() {
+        return subscriptions > 1;
+    }
+
+    // Give up on the request; resets its stream if it already reached the link.
+    void cancel() {
+        settle();
+        finished();
+        head.cancel(false);
+        LinkStream current = stream;
+        if (current != null) {
+            current.reset();
+        }
+    }
+
+    // Frames of one attempt, on its link reader thread.
+    void onFrame(LinkStream source, Frame frame) {
+        // A push the offshore side dropped before answering is treated like a dropped connection
+        boolean lost = source.isLinkLost() || source.isPushed() && !head.isDone();
+        if (frame.type == Frame.RST && lost && relink(source)) {
+            return;
+        }
+        LinkStream loser = null;
+        synchronized (this) {
+            if (source != stream && source != hedge) {
+                return; // an attempt we already gave up on
+            }
+            if (hedge != null) {
+                if (frame.type != Frame.HEADERS) {
+                    // One attempt ended without answering; the other may still answer
+                    stream = source == stream ? hedge : stream;
+                    hedge = null;
+                    return;
+                }
+                // The first head wins the race
+                loser = source == stream ? hedge : stream;
+                stream = source;
+                hedge = null;
+            }
+        }
+        if (loser != null) {
+            loser.reset();
+        }
+        if (frame.type == Frame.HEADERS) {
+            onHead(source, frame);
+            return;
+        }
+        if (!head.isDone()) {
+            head.completeExceptionally(new IOException("Stream " + frame.streamId
+                    + " ended without a response (" + Frame.typeName(frame.type) + ")"));
+        }
+        if (frame.type == Frame.DATA) {
+            frame = skipRepeated(source, frame);
+            if (frame == null) {
+                return;
+            }
+        }
+        broadcast(frame);
+    }
+
+    private void onHead(LinkStream source, Frame frame) {
+        boolean continuing;
+        synchronized (this) {
+            continuing = resuming;
+            resuming = false;
+        }
+        if (continuing) {
+            // The browsers already have a head; this one only has to be the same response
+            if (!continues(frame.payload)) {
+                Log.warn("Could not resume request ID " + id + ": the response changed");
+                source.reset();
+                broadcast(Frame.rst(frame.streamId));
+            } else if (frame.hasFlag(Frame.FLAG_END_STREAM)) {
+                broadcast(Frame.end(frame.streamId));
+            }
+            return;
+        }
+        if (Log.debug()) {
+            Log.debug("Response from offshore proxy (ID: " + id + "): "
+                    + frame.payloadAsString().split("\r\n", 2)[0]);
+        }
+        synchronized (this) {
+            responseHead = HttpHead.parse(frame.payload, 0, frame.payload.length);
+        }
+        head.complete(frame.payload);
+        if (frame.hasFlag(Frame.FLAG_END_STREAM)) {
+            broadcast(Frame.end(frame.streamId));
+        }
+    }
+
+    // The stream's link connection dropped. True if the request goes out again (or the stream no
+    // longer mattered); false to fail it like any reset.
+    private boolean relink(LinkStream source) {
+        synchronized (this) {
+            if (source == hedge) {
+                hedge = null;
+                return true;
+            }
+            if (finished || source != stream) {
+                return true;
+            }
+            if (hedge != null) {
+                stream = hedge;
+                hedge = null;
+                return true;
+            }
+            if (head.isDone() && (head.isCompletedExceptionally() || !resumable())) {
+                return false;
+            }
+            resuming = head.isDone();
+        }
+        if (onLinkLost.test(this)) {
+            return true;
+        }
+        synchronized (this) {
+            resuming = false;
+        }
+        return false;
+    }
+
+    // A body under way can be continued if its length is known and, once bytes went out, a Range
+    // with If-Range is sure to continue the same response.
+    private boolean resumable() {
+        return responseHead != null
+                && responseHead.get("Transfer-Encoding") == null
+                && BodyFraming.forResponse("GET", responseHead).contentLength() >= 0
+                && (bodyDelivered == 0 || validator(responseHead) != null);
+    }
+
+    // Whether the head of a repeated attempt continues the delivered response, and from where.
+    private synchronized boolean continues(byte[] payload) {
+        HttpHead again = HttpHead.parse(payload, 0, payload.length);
+        if (bodyDelivered > 0 && again.statusCode() == 206) {
+            String range = again.get("Content-Range");
+            skip = 0;
+            return range != null && range.trim().startsWith("bytes " + bodyDelivered + "-");
+        }
+        // The whole response again; the part already delivered is dropped
+        skip = bodyDelivered;
+        return again.statusCode() == responseHead.statusCode()
+                && Objects.equals(trimmed(again.get("Content-Length")), trimmed(responseHead.get("Content-Length")))
+                && Objects.equals(validator(again), validator(responseHead));
+    }
+
+    private Frame skipRepeated(LinkStream source, Frame frame) {
+        int drop;
+        synchronized (this) {
+            drop = (int) Math.min(skip, frame.payload.length);
+            skip -= drop;
+            bodyDelivered += frame.payload.length - drop;
+        }
+        if (drop == 0) {
+            return frame;
+        }
+        source.consumed(drop); // never reaches a browser, so credit it right away
+        if (drop == frame.payload.length) {
+            return frame.hasFlag(Frame.FLAG_END_STREAM) ? Frame.end(frame.streamId) : null;
+        }
+        return new Frame(frame.type, frame.flags, frame.streamId,
+                Arrays.copyOfRange(frame.payload, drop, frame.payload.length));
+    }
+
+    // Strong ETag or Last-Modified, usable in If-Range.
+    private static String validator(HttpHead response) {
+        String etag = trimmed(response.get("ETag"));
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return trimmed(response.get("Last-Modified"));
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private void broadcast(Frame frame) {
+        boolean last = frame.type == Frame.END || frame.type == Frame.RST || frame.hasFlag(Frame.FLAG_END_STREAM);
+        synchronized (this) {
+            if (joinable) {
+                replayBytes += frame.payload.length;
+                if (replayBytes > MAX_REPLAY_BYTES) {
+                    settle();
+                } else {
+                    replay.add(frame);
+                }
+            }
+            for (Subscriber subscriber : subscribers) {
+                subscriber.frames.offer(frame);
+            }
+        }
+        if (last) {
+            settle();
+            finished();
+        }
+    }
+
+    private synchronized void settle() {
+        if (joinable) {
+            joinable = false;
+            replay.clear();
+            onSettled.run();
+        }
+    }
+
+    private void leave(Subscriber subscriber) {
+        boolean abandoned;
+        synchronized (this) {
+            abandoned = subscribers.remove(subscriber) && subscribers.isEmpty();
+        }
+        if (abandoned) {
+            cancel(); // nobody wants the response any more; a no-op once it has completed
+        } else {
+            credit(); // the one that left may have been the slowest
+        }
+    }
+
+    // Window is granted at the pace of the slowest browser, so none of them needs an unbounded queue.
+    private void credit() {
+        long grant;
+        synchronized (this) {
+            if (subscribers.isEmpty()) {
+                return;
+            }
+            long slowest = Long.MAX_VALUE;
+            for (Subscriber subscriber : subscribers) {
+                slowest = Math.min(slowest, subscriber.consumed);
+            }
+            grant = slowest - credited;
+            if (grant <= 0) {
+                return;
+            }
+            credited = slowest;
+        }
+        LinkStream current = stream;
+        if (current != null) {
+            current.consumed((int) grant);
+        }
+    }
+
+    class Subscriber {
+        final boolean first;  // the browser that caused the request; it alone fills the ship cache
+        private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        private volatile long consumed; // body bytes this browser has taken
+
+        Subscriber(boolean first) {
+            this.first = first;
+        }
+
+        PendingRequest request() {
+            return PendingRequest.this;
+        }
+
+        // Next body frame, or null on timeout.
+        Frame take(long timeoutMillis) throws InterruptedException {
+            return frames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Call after the bytes were written to the browser.
+        void consumed(int bytes) {
+            consumed += bytes;
+            credit();
+        }
+
+        boolean hasPendingFrames() {
+            return !frames.isEmpty();
+        }
+
+        void leave() {
+            PendingRequest.this.leave(this);
+        }
+    }
+}
@@ -1,141 +1,341 @@
 package com.client;
 
+import com.common.BodyFraming;
+import com.common.BufferPool;
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.HttpParser;
+import com.common.Log;
+import com.common.Metrics;
+import com.common.PooledBuffer;
+import com.common.RequestKey;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class ProxyClient {
-    private String serverHost = "127.0.0.1";
-    private int serverPort = 8080;
-    private LinkedBlockingQueue<String> requestQueue = new LinkedBlockingQueue<>();
-    private Map<String, String> requestIdToUrl = new ConcurrentHashMap<>(); // Map request ID to URL
+    private static final String GATEWAY_TIMEOUT = "HTTP/1.1 504 Gateway Timeout\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 24\r\n" +
+            "\r\n" +
+            "Gateway timeout occurred";
+    private static final int BROWSER_IDLE_TIMEOUT_MS = 15000;
+    private static final long REPLAY_WINDOW_MS = 15000; // as long as a browser waits for a head
+    private static final byte[] GATEWAY_TIMEOUT_RESPONSE = GATEWAY_TIMEOUT.getBytes(StandardCharsets.ISO_8859_1);
+    private String serverHost = System.getProperty("adpump.offshoreHost", "127.0.0.1");
+    private int serverPort = Integer.getInteger("adpump.offshorePort", 8080);
+    private String linkCodecs = System.getProperty("adpump.linkCodecs", "deflate"); // offered to the offshore side
+    private final RequestScheduler scheduler = new RequestScheduler(
+            RequestScheduler.parseLimits(System.getProperty("adpump.classLimits", "")),
+            RequestScheduler.parseWeights(System.getProperty("adpump.clientWeights", "")));
+    private Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>(); // In-flight requests by request ID
+    private Map<String, PendingRequest> joinableRequests = new ConcurrentHashMap<>(); // by normalized URL, while others may still join
     private AtomicLong requestIdCounter = new AtomicLong(0); // For generating unique request IDs
-    private int clientPort = 8081;
-    private Socket serverSocket;
-    private PrintWriter serverOut;
-    private BufferedReader serverIn;
-    private OutputStream serverRawOut;
-    private InputStream serverRawIn;
+    private int clientPort = Integer.getInteger("adpump.proxyPort", 8081);
+    private int linkConnections = Integer.getInteger("adpump.linkConnections", 4); // parallel TCP connections on the link
+    private LinkPool links;
+    private final ExecutionMode executionMode;
+    private final ExecutorService handlerExecutor;
+    private final ExecutorService relayExecutor;
+    private final AtomicInteger activeTunnels = new AtomicInteger();
+    private final Semaphore tunnelSlots;  // handler threads tunnels may hold, see ExecutionMode.maxTunnels
+    private final ThreadStats threadStats = new ThreadStats();
+    private final ShipCache cache; // null when disabled
+    // Responses the offshore side pushed ahead of the browser, up to -Dadpump.pushHoldMB=16 (0 refuses pushes)
+    private final PushedResponses pushed = Long.getLong("adpump.pushHoldMB", 16) > 0
+            ? new PushedResponses(Long.getLong("adpump.pushHoldMB", 16) << 20) : null;
+    // -Dadpump.traceFile=ship.trace records every browser request for com.bench.Replay (unset: off)
+    private final TrafficRecorder recorder = TrafficRecorder.open(System.getProperty("adpump.traceFile"));
+    // Body chunks the offshore side may reference instead of resending, up to -Dadpump.chunkStoreMB=64 (0 disables)
+    private final ChunkStore chunks = Long.getLong("adpump.chunkStoreMB", 64) > 0
+            ? new ChunkStore(Long.getLong("adpump.chunkStoreMB", 64) << 20) : null;
+    // -Dadpump.replayJournal=1024 GETs survive a link drop at once (0 disables), each up to
+    // -Dadpump.replayAttempts=3 drops in a row; -Dadpump.hedgePercentile=95 hedges heads slower than p95 (0, the default, disables)
+    private final RequestJournal journal = new RequestJournal(
+            Integer.getInteger("adpump.replayJournal", 1024),
+            Integer.getInteger("adpump.replayAttempts", 3),
+            REPLAY_WINDOW_MS,
+            Double.parseDouble(System.getProperty("adpump.hedgePercentile", "0")),
+            this::send);
 
     public ProxyClient() {
+        this(ExecutionMode.VIRTUAL, 256, null);
+    }
+
+    // maxThreads only applies to ExecutionMode.BOUNDED
+    public ProxyClient(ExecutionMode executionMode, int maxThreads, ShipCache cache) {
+        this.executionMode = executionMode;
+        this.cache = cache;
+        handlerExecutor = executionMode.newHandlerExecutor(maxThreads);
+        relayExecutor = executionMode.newRelayExecutor(maxThreads);
+        tunnelSlots = new Semaphore(executionMode.maxTunnels(maxThreads));
+        registerMetrics();
+        if (executionMode == ExecutionMode.VIRTUAL && !executionMode.usesVirtualThreads()) {
+            Log.warn("Virtual threads need JDK 21+; running handlers on platform threads.");
+        }
         try {
-            serverSocket = new Socket(serverHost, serverPort);
-            serverOut = new PrintWriter(serverSocket.getOutputStream(), true);
-            serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            serverRawOut = serverSocket.getOutputStream();
-            serverRawIn = serverSocket.getInputStream();
-            System.out.println("Established persistent TCP connection to offshore proxy at " + serverHost + ":" + serverPort);
+            links = new LinkPool(serverHost, serverPort, linkCodecs, linkConnections,
+                    pushed == null ? null : this::acceptPush, chunks);
+            if (chunks != null) {
+                chunks.start(links::sendControl);
+            }
+            Log.info("Established " + links.liveCount() + " of " + links.size()
+                    + " link connections to offshore proxy at " + serverHost + ":" + serverPort);
+            Thread dispatcher = new Thread(this::processRequests, "request-dispatcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
         } catch (IOException e) {
-            System.err.println("Failed to connect to offshore proxy: " + e.getMessage());
+            Log.warn("Failed to connect to offshore proxy: " + e.getMessage());
             System.exit(1);
         }
     }
 
+    private void registerMetrics() {
+        Metrics.gauge("adpump_active_tunnels", "CONNECT tunnels open right now.", activeTunnels::get);
+        Metrics.gauge("adpump_requests_pending", "Browser GETs waiting for a response head.", pendingRequests::size);
+        Metrics.gauge("adpump_requests_journaled", "In-flight GETs that would be sent again after a link drop.",
+                journal::size);
+        if (chunks != null) {
+            Metrics.gauge("adpump_chunk_store_bytes", "Bytes of body chunks the offshore side may reference.",
+                    chunks::bytes);
+        }
+        if (pushed != null) {
+            Metrics.gauge("adpump_pushed_bytes_held", "Bytes of pushed responses waiting for a browser.", pushed::bytes);
+        }
+        Metrics.counter("adpump_log_dropped_total", "Log records dropped while the log writer was behind.", Log::droppedCount);
+        if (cache != null) {
+            Metrics.counter("adpump_cache_lookups_total{cache=\"ship\",result=\"hit\"}",
+                    "Cache lookups by outcome.", cache.hits::get);
+            Metrics.counter("adpump_cache_lookups_total{cache=\"ship\",result=\"miss\"}",
+                    "Cache lookups by outcome.", cache.misses::get);
+            Metrics.gauge("adpump_cache_hit_ratio{cache=\"ship\"}", "Share of cache lookups that were hits.",
+                    () -> cache.hits.get() / (double) Math.max(1, cache.hits.get() + cache.misses.get()));
+        }
+    }
+
     public void startListening() {
         try (ServerSocket serverSocket = new ServerSocket(clientPort)) {
-            System.out.println("Ship Proxy Client is listening on port " + clientPort + " for requests...");
+            Log.info("Ship Proxy Client is listening on port " + clientPort + " for requests...");
 
             while (true) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    new Thread(() -> handleBrowserRequest(clientSocket)).start();
+                    try {
+                        handlerExecutor.execute(() -> handleBrowserRequest(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        refuse(clientSocket);
+                    }
                 } catch (IOException e) {
-                    System.err.println("Error accepting browser request: " + e.getMessage());
+                    Log.warn("Error accepting browser request: " + e.getMessage());
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error starting proxy client: " + e.getMessage());
+            Log.warn("Error starting proxy client: " + e.getMessage());
+        }
+    }
+
+    // Every handler thread is busy and the queue is full: answer 503 from the accepting thread.
+    private static void refuse(Socket clientSocket) {
+        Log.warn("No handler thread for browser connection from " + clientSocket.getInetAddress().getHostAddress());
+        try (clientSocket) {
+            clientSocket.setSoTimeout(1000);
+            clientSocket.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Length: 10\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n" +
+                    "Too busy\n").getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException e) {
+            // the browser will retry or give up either way
         }
     }
 
     private void handleBrowserRequest(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             InputStream clientRawIn = clientSocket.getInputStream();
-             OutputStream clientRawOut = clientSocket.getOutputStream()) {
-
-            String firstLine = in.readLine();
-            if (firstLine == null) {
-                System.err.println("Empty request received from browser.");
-                return;
+        try (InputStream clientRawIn = recorder == null ? clientSocket.getInputStream()
+                     : new TrafficRecorder.CountingInput(clientSocket.getInputStream());
+             OutputStream clientRawOut = recorder == null ? clientSocket.getOutputStream()
+                     : new TrafficRecorder.CountingOutput(clientSocket.getOutputStream());
+             PrintWriter out = new PrintWriter(clientRawOut, true)) {
+            // Heads are parsed straight from the socket bytes. Whatever follows a head (tunnel bytes,
+            // the next pipelined request) stays in inbound for whoever reads next.
+            HttpParser request = new HttpParser();
+            HttpParser response = new HttpParser();
+            ByteBuffer inbound = ByteBuffer.allocate(8192);
+            inbound.flip();
+            int served = 0;
+            while (true) {
+                try {
+                    if (served > 0) {
+                        clientSocket.setSoTimeout(BROWSER_IDLE_TIMEOUT_MS); // idle keep-alive connections let go
+                    }
+                    if (!readHead(clientRawIn, inbound, request)) {
+                        break;
+                    }
+                    clientSocket.setSoTimeout(0);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                served++;
+                if (recorder != null) {
+                    if (!serveRecorded(request, response, inbound, clientSocket, out,
+                            (TrafficRecorder.CountingInput) clientRawIn, (TrafficRecorder.CountingOutput) clientRawOut)) {
+                        break;
+                    }
+                } else if (!serveBrowserRequest(request, response, inbound, clientSocket, out, clientRawIn, clientRawOut)) {
+                    break;
+                }
+                request.reset();
             }
-            System.out.println("Received request from browser: " + firstLine);
-
-            // Split the URL from the request "GET http://example.com"
-            String[] requestParts = firstLine.split(" ");
-            if (requestParts.length < 2) {
-                System.err.println("Invalid request format: " + firstLine);
-                return;
+            if (served == 0) {
+                Log.warn("Empty request received from browser.");
+            }
+        } catch (IOException e) {
+            Log.warn("Error handling browser request: " + e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                Log.warn("Error closing client socket: " + e.getMessage());
             }
-            String method = requestParts[0];
-            String url = requestParts[1];
+        }
+    }
 
+    // Reads until request holds a complete head, leaving any bytes after it in inbound (read mode).
+    // False if the browser closed the connection first.
+    private static boolean readHead(InputStream in, ByteBuffer inbound, HttpParser request) throws IOException {
+        while (!request.parse(inbound)) {
+            inbound.clear(); // the parser took everything
+            int bytesRead = in.read(inbound.array());
+            if (bytesRead == -1) {
+                return false;
+            }
+            inbound.limit(bytesRead);
+        }
+        return true;
+    }
 
-//            if (method.equals("CONNECT")) {
-//                System.out.println("Received CONNECT request for " + url + ". This proxy only supports HTTP GET requests.");
-//                String response = "HTTP/1.1 400 Bad Request\r\n" +
-//                        "Content-Type: text/plain\r\n" +
-//                        "Content-Length: 29\r\n" +
-//                        "\r\n" +
-//                        "Proxy only supports HTTP GET\n";
-//                out.println(response);
-//                out.flush();
-//                return;
-//            }
+    // serveBrowserRequest, measured for the traffic trace. Bytes the browser sent after the head, whether
+    // read already or by the request itself, are its upload; tunnel bytes for a CONNECT.
+    private boolean serveRecorded(HttpParser request, HttpParser response, ByteBuffer inbound, Socket clientSocket,
+                                  PrintWriter out, TrafficRecorder.CountingInput in, TrafficRecorder.CountingOutput rawOut)
+            throws IOException {
+        String method = request.method();
+        String target = request.target();
+        long started = System.nanoTime();
+        long uploadFrom = in.count() - inbound.remaining();
+        rawOut.reset();
+        try {
+            return serveBrowserRequest(request, response, inbound, clientSocket, out, in, rawOut);
+        } finally {
+            recorder.record(started, method, target, in.count() - inbound.remaining() - uploadFrom, rawOut.body());
+        }
+    }
 
-            if (method.equals("CONNECT")) {
-                handleConnectRequest(url, clientSocket, in, out, clientRawIn, clientRawOut);
-                return;
-            }
+    // Answers one request. True if the browser may send another on the same connection.
+    private boolean serveBrowserRequest(HttpParser request, HttpParser response, ByteBuffer inbound, Socket clientSocket,
+                                        PrintWriter out, InputStream clientRawIn, OutputStream clientRawOut)
+            throws IOException {
+        if (Log.debug()) {
+            Log.debug("Received request from browser: " + request.startLine());
+        }
+        String method = request.method();
+        String url = request.target();
+        if (request.isResponse() || url.isEmpty()) {
+            Log.warn("Invalid request format: " + request.startLine());
+            return false;
+        }
+        if (method.equals("CONNECT")) {
+            handleConnectRequest(url, clientSocket, inbound, out, clientRawIn, clientRawOut);
+            return false;
+        }
 
-            if (!method.equals("GET")) {
-                System.err.println("Unsupported method: " + method);
-                String response = "HTTP/1.1 405 Method Not Allowed\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 23\r\n" +
-                        "\r\n" +
-                        "Only GET is supported\n";
-                out.println(response);
-                out.flush();
-                return;
-            }
-            if (!url.startsWith("http://") && !url.startsWith("https://")) {
-                url = "http://" + url;
+        if (!method.equals("GET")) {
+            Log.warn("Unsupported method: " + method);
+            String errorResponse = "HTTP/1.1 405 Method Not Allowed\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Length: 23\r\n" +
+                    "\r\n" +
+                    "Only GET is supported\n";
+            out.println(errorResponse);
+            out.flush();
+            return false;
+        }
+        // A GET carrying a body is answered, but its body is never read, so the connection ends after it
+        BodyFraming requestBody = BodyFraming.forRequest(request);
+        boolean keepAlive = request.keepAlive() && requestBody != null && requestBody.isComplete();
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            url = "http://" + url;
+        }
+        if (cache != null) {
+            ShipCache.Location cached = cache.lookup(url);
+            if (cached != null) {
+                // Served from disk; the link is never touched
+                Log.debug("Ship cache hit", "url", url);
+                byte[] head = cache.writeTo(cached, clientRawOut);
+                return keepAlive && isReusable(response, head);
             }
-            addRequest(url);
-            String response = processRequests();
-            if (response != null) {
-                out.print(response);
-                out.flush();
-            } else {
-                String errorResponse = "HTTP/1.1 502 Bad Gateway\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 23\r\n" +
-                        "\r\n" +
-                        "Failed to fetch webpage\n";
-                out.println(errorResponse);
-                out.flush();
+        }
+        PushedResponses.Entry held = pushed == null ? null : pushed.take(RequestKey.normalize(url));
+        if (held != null) {
+            // Pushed along with the page that needs it; the link is never touched
+            Log.debug("Served pushed response", "url", url);
+            clientRawOut.write(held.head);
+            clientRawOut.write(held.body);
+            clientRawOut.flush();
+            return keepAlive && isReusable(response, held.head);
+        }
+        PendingRequest.Subscriber subscriber = subscribe(url, clientAddress(clientSocket));
+        try {
+            byte[] responseHead = awaitResponseHead(subscriber);
+            if (responseHead != null) {
+                // Head first, then body bytes straight from the link as they arrive
+                clientRawOut.write(responseHead);
+                if (responseHead == GATEWAY_TIMEOUT_RESPONSE) {
+                    clientRawOut.flush();
+                    return false;
+                }
+                streamBody(subscriber, responseHead, clientRawOut);
+                clientRawOut.flush();
+                return keepAlive && isReusable(response, responseHead);
             }
+            String errorResponse = "HTTP/1.1 502 Bad Gateway\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Length: 23\r\n" +
+                    "\r\n" +
+                    "Failed to fetch webpage\n";
+            out.println(errorResponse);
+            out.flush();
+            return false;
+        } finally {
+            subscriber.leave();
+        }
+    }
 
+    // After this response the connection can carry another request if the body ended without a close.
+    private static boolean isReusable(HttpParser response, byte[] head) {
+        response.reset();
+        try {
+            response.parse(head, 0, head.length);
         } catch (IOException e) {
-            System.err.println("Error handling browser request: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
-            }
+            return false;
         }
+        return response.isComplete() && response.keepAlive()
+                && !BodyFraming.forResponse("GET", response).isCloseDelimited();
     }
-    private void handleConnectRequest(String target, Socket clientSocket, BufferedReader clientIn, PrintWriter clientOut,
+
+    private void handleConnectRequest(String target, Socket clientSocket, ByteBuffer inbound, PrintWriter clientOut,
                                       InputStream clientRawIn, OutputStream clientRawOut) {
         try {
             // Parse the target (e.g., "www.google.com:443")
             String[] targetParts = target.split(":");
             if (targetParts.length != 2) {
-                System.err.println("Invalid CONNECT target: " + target);
+                Log.warn("Invalid CONNECT target: " + target);
                 clientOut.println("HTTP/1.1 400 Bad Request\r\n" +
                         "Content-Type: text/plain\r\n" +
                         "Content-Length: 15\r\n" +
@@ -147,14 +347,51 @@ public class ProxyClient {
             String host = targetParts[0];
             int port = Integer.parseInt(targetParts[1]);
 
-            // Send a CONNECT request to the offshore proxy over the persistent connection
-            serverOut.println("CONNECT " + host + ":" + port);
-            serverOut.flush();
+            if (!tunnelSlots.tryAcquire()) {
+                Log.warn("Too many open tunnels for " + target);
+                clientOut.print("HTTP/1.1 503 Service Unavailable\r\n" +
+                        "Content-Type: text/plain\r\n" +
+                        "Content-Length: 13\r\n" +
+                        "\r\n" +
+                        "Tunnels busy\n");
+                clientOut.flush();
+                return;
+            }
+            try {
+                tunnel(host, port, target, clientSocket, inbound, clientOut, clientRawIn, clientRawOut);
+            } finally {
+                tunnelSlots.release();
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.warn("Error handling CONNECT request: " + e.getMessage());
+        }
+    }
+
+    private void tunnel(String host, int port, String target, Socket clientSocket, ByteBuffer inbound,
+                        PrintWriter clientOut, InputStream clientRawIn, OutputStream clientRawOut)
+            throws IOException, InterruptedException {
+        // A tunnel holds its class's slot on the link for as long as it stays open
+        RequestScheduler.Ticket ticket = scheduler.admit(TrafficClass.TUNNEL, clientAddress(clientSocket), 15000);
+        if (ticket == null) {
+            Log.warn("No link capacity for tunnel to " + target);
+            clientOut.print("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Length: 10\r\n" +
+                    "\r\n" +
+                    "Link busy\n");
+            clientOut.flush();
+            return;
+        }
+        try {
+            // Open a dedicated stream for the tunnel so it does not block other requests on the link
+            LinkStream stream = currentLink().openStream();
+            stream.sendHeaders("CONNECT " + host + ":" + port + " HTTP/1.1\r\n\r\n", false);
 
             // Read the response from the offshore proxy
-            String response = serverIn.readLine();
-            if (!response.equals("OK")) {
-                System.err.println("Offshore proxy failed to establish connection: " + response);
+            Frame reply = stream.take(15000);
+            if (reply == null || reply.type != Frame.HEADERS || !reply.payloadAsString().startsWith("HTTP/1.1 200")) {
+                Log.warn("Offshore proxy failed to establish connection: " + (reply == null ? "timeout" : reply));
+                stream.reset();
                 clientOut.println("HTTP/1.1 502 Bad Gateway\r\n" +
                         "Content-Type: text/plain\r\n" +
                         "Content-Length: 23\r\n" +
@@ -165,177 +402,423 @@ public class ProxyClient {
             }
 
             // Send 200 Connection Established to the browser
-            clientOut.println("HTTP/1.1 200 Connection Established\r\n" +
+            // print, not println: any byte after the blank line would be taken as tunnel data
+            clientOut.print("HTTP/1.1 200 Connection Established\r\n" +
                     "Connection: close\r\n" +
                     "\r\n");
             clientOut.flush();
+            if (inbound.hasRemaining()) {
+                // the browser did not wait for our reply
+                stream.sendData(inbound.array(), inbound.position(), inbound.remaining());
+                inbound.position(inbound.limit());
+            }
 
-            // Start relaying data between the browser and the offshore proxy
-            Thread clientToServer = new Thread(() -> relayData(clientRawIn, serverRawOut));
-            Thread serverToClient = new Thread(() -> relayData(serverRawIn, clientRawOut));
-            clientToServer.start();
-            serverToClient.start();
-
-            // Wait for both threads to finish
-            clientToServer.join();
-            serverToClient.join();
+            // Upload runs on the relay executor, download on this handler thread
+            activeTunnels.incrementAndGet();
+            try {
+                runRelayPair(stream, clientSocket, clientRawIn, clientRawOut);
+            } finally {
+                activeTunnels.decrementAndGet();
+            }
+        } finally {
+            ticket.release();
+        }
+    }
 
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error handling CONNECT request: " + e.getMessage());
+    // Both relays of a tunnel start and stop together: whichever side fails first tears down the
+    // stream and the browser socket so the other side unblocks, and neither outlives this call.
+    private void runRelayPair(LinkStream stream, Socket clientSocket, InputStream clientRawIn, OutputStream clientRawOut)
+            throws InterruptedException {
+        Future<?> upload;
+        try {
+            upload = relayExecutor.submit(() -> relayToStream(clientRawIn, stream));
+        } catch (RejectedExecutionException e) {
+            Log.warn("No relay thread available for stream " + stream.getId() + "; closing tunnel.");
+            stream.reset();
+            return;
+        }
+        try {
+            relayFromStream(stream, clientRawOut, clientSocket);
+            upload.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Download finished but the browser side is still open; force it closed
+            stream.reset();
+            try {
+                clientSocket.close();
+            } catch (IOException closeException) {
+                Log.warn("Error closing client socket: " + closeException.getMessage());
+            }
+            try {
+                upload.get();
+            } catch (ExecutionException executionException) {
+                Log.warn("Upload relay for stream " + stream.getId() + " failed: " + executionException.getCause());
+            }
+        } finally {
+            if (!upload.isDone()) {
+                upload.cancel(true);
+            }
         }
     }
 
-    private void relayData(InputStream in, OutputStream out) {
+    // Thread count and heap per open tunnel, for comparing execution modes.
+    public String threadReport() {
+        return threadStats.report(executionMode, activeTunnels.get());
+    }
+
+    private void relayToStream(InputStream in, LinkStream stream) {
+        PooledBuffer loan = BufferPool.acquireHeap(Frame.MAX_DATA);
         try {
-            byte[] buffer = new byte[4096];
+            byte[] buffer = loan.buffer().array();
             int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                out.flush();
+            while ((bytesRead = in.read(buffer, 0, Frame.MAX_DATA)) != -1) {
+                stream.sendData(buffer, 0, bytesRead);
             }
+            stream.sendEnd();
         } catch (IOException e) {
-            System.err.println("Error relaying data: " + e.getMessage());
+            Log.warn("Error relaying data to stream " + stream.getId() + ": " + e.getMessage());
+            stream.reset();
+        } finally {
+            loan.release();
         }
     }
-    public void addRequest(String requestUrl) {
+
+    private void relayFromStream(LinkStream stream, OutputStream out, Socket clientSocket) {
         try {
-            String requestId = String.valueOf(requestIdCounter.incrementAndGet());
-            requestQueue.put(requestId + "|" + requestUrl); // Store request ID with URL
-            requestIdToUrl.put(requestId, requestUrl);
-            System.out.println("Added request (ID: " + requestId + "): " + requestUrl + " to queue.");
-        } catch (InterruptedException e) {
-            System.err.println("Failed to queue request: " + e.getMessage());
+            while (true) {
+                Frame frame = stream.take(Long.MAX_VALUE);
+                if (frame.type == Frame.DATA) {
+                    out.write(frame.payload);
+                    out.flush();
+                    stream.consumed(frame.payload.length); // only once the browser took it
+                }
+                if (frame.type == Frame.END || frame.type == Frame.RST || frame.hasFlag(Frame.FLAG_END_STREAM)) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.warn("Error relaying data from stream " + stream.getId() + ": " + e.getMessage());
+            stream.reset();
+            try {
+                clientSocket.close(); // fail the upload relay too
+            } catch (IOException closeException) {
+                // already closed
+            }
+        } finally {
+            try {
+                // Unblock the browser-side reader once the remote end is done
+                clientSocket.shutdownInput();
+            } catch (IOException e) {
+                // socket already closed
+            }
         }
     }
 
-    public String processRequests() {
-        while (!requestQueue.isEmpty()) {
-            try {
-                String requestEntry = requestQueue.take();
-                String[] parts = requestEntry.split("\\|", 2);
-                if (parts.length != 2) {
-                    System.err.println("Invalid request entry in queue: " + requestEntry);
-                    continue;
-                }
-                String requestId = parts[0];
-                String requestUrl = parts[1];
-                String response = sendRequestToProxy(requestId, requestUrl);
-                requestIdToUrl.remove(requestId); // Clean up after processing
-                return response;
-            } catch (InterruptedException e) {
-                System.err.println("Error processing queue: " + e.getMessage());
+    public PendingRequest addRequest(String requestUrl) {
+        PendingRequest request = new PendingRequest(requestIdCounter.incrementAndGet(), requestUrl, RequestKey.normalize(requestUrl));
+        enqueue(request, "local");
+        return request;
+    }
+
+    private void enqueue(PendingRequest request, String client) {
+        pendingRequests.put(request.id, request);
+        request.head.whenComplete((head, error) -> {
+            pendingRequests.remove(request.id);
+            if (error == null && request.sentNanos != 0) {
+                journal.headReceived(request);
             }
+        });
+        TrafficClass trafficClass = TrafficClass.forUrl(request.url);
+        RequestScheduler.Ticket ticket = scheduler.submit(trafficClass, client, () -> sendRequestToProxy(request));
+        request.onFinished(ticket::release);
+        if (Log.debug()) {
+            Log.debug("Added request (ID: " + request.id + ", " + trafficClass.name().toLowerCase() + ", "
+                    + client + "): " + request.url + " to queue.");
         }
-        return null;
     }
 
-    private String sendRequestToProxy(String requestId, String requestUrl) {
-        try {
-            if (serverSocket.isClosed()) {
-                System.out.println("Persistent connection closed. Attempting to reconnect...");
-                reconnectToServer();
-                if (serverSocket.isClosed()) {
-                    throw new IOException("Failed to reconnect to offshore proxy.");
+    private static String clientAddress(Socket clientSocket) {
+        return clientSocket.getInetAddress().getHostAddress();
+    }
+
+    // Single flight: a GET for a URL that is already queued or in flight shares that request's
+    // response instead of crossing the link again.
+    private PendingRequest.Subscriber subscribe(String url, String client) {
+        String key = RequestKey.normalize(url);
+        while (true) {
+            PendingRequest existing = joinableRequests.get(key);
+            if (existing != null) {
+                PendingRequest.Subscriber subscriber = existing.subscribe();
+                if (subscriber != null) {
+                    Log.debug("Joined in-flight request", "id", existing.id, "url", url);
+                    return subscriber;
                 }
+                joinableRequests.remove(key, existing);
+                continue;
+            }
+            PendingRequest request = new PendingRequest(requestIdCounter.incrementAndGet(), url, key);
+            if (joinableRequests.putIfAbsent(key, request) != null) {
+                continue;
             }
-            serverSocket.setSoTimeout(15000); // 15-second read timeout
+            request.onSettled(() -> joinableRequests.remove(key, request));
+            PendingRequest.Subscriber subscriber = request.subscribe();
+            enqueue(request, client);
+            return subscriber;
+        }
+    }
 
-            URL url = new URL(requestUrl);
-            String host = url.getHost();
+    // The offshore side opened a stream to push a page's subresource. It becomes a request other
+    // browsers can join like any in flight; a thread of its own holds the response for whoever asks
+    // later. Pushes we already have an answer for are reset. Runs on the link reader thread.
+    private void acceptPush(LinkStream stream, String requestHead) {
+        String[] requestLine = requestHead.split("\r\n", 2)[0].split(" ");
+        String url = requestLine.length == 3 ? requestLine[1] : "";
+        String key = RequestKey.normalize(url);
+        if (!url.startsWith("http://") || pushed.contains(key) || joinableRequests.containsKey(key)
+                || cache != null && cache.contains(url)) {
+            stream.reset();
+            pushed.refused();
+            return;
+        }
+        PendingRequest request = new PendingRequest(requestIdCounter.incrementAndGet(), url, key);
+        if (joinableRequests.putIfAbsent(key, request) != null) {
+            stream.reset();
+            pushed.refused();
+            return;
+        }
+        request.onSettled(() -> joinableRequests.remove(key, request));
+        request.requestHead = requestHead;
+        request.sentAt = System.currentTimeMillis();
+        request.sentNanos = System.nanoTime();
+        // Dropped before its head, it is sent the ordinary way if a browser is already waiting for it
+        request.onLinkLost(dropped -> dropped.subscriberCount() > 1 && resendPush(dropped));
+        request.attach(stream, false);
+        PendingRequest.Subscriber holder = request.subscribe();
+        stream.setHandler(frame -> request.onFrame(stream, frame));
+        handlerExecutor.execute(() -> holdPushed(holder));
+    }
 
-            String request = "GET " + requestUrl + " HTTP/1.1\r\n" +
-                    "Host: " + host + "\r\n" +
-                    "X-Request-ID: " + requestId + "\r\n" +
-                    "Connection: keep-alive\r\n" +
-                    "\r\n";
-            System.out.println("Sending request to offshore proxy (ID: " + requestId + "):\n" + request);
-            serverOut.println(request);
-            serverOut.flush();
-            if (serverOut.checkError()) {
-                System.err.println("Error sending request to offshore proxy (ID: " + requestId + ")");
-                reconnectToServer();
-                throw new IOException("Failed to send request to offshore proxy.");
-            }
-
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            String responseRequestId = null;
-            System.out.println("Response from offshore proxy for " + requestUrl + " (ID: " + requestId + "):");
-            try {
-                while ((responseLine = serverIn.readLine()) != null) {
-                    response.append(responseLine).append("\r\n");
-                    System.out.println(responseLine);
-                    if (responseLine.startsWith("X-Request-ID:")) {
-                        responseRequestId = responseLine.split(":", 2)[1].trim();
-                    }
-                    if (responseLine.isEmpty()) {
-                        break;
+    private boolean resendPush(PendingRequest request) {
+        handlerExecutor.execute(() -> {
+            if (!send(request, false)) {
+                request.abandon(new IOException("No link to offshore proxy"));
+            }
+        });
+        return true;
+    }
+
+    // Reads a pushed response to the end and holds it, unless a browser joined and already has it.
+    private void holdPushed(PendingRequest.Subscriber holder) {
+        PendingRequest request = holder.request();
+        try {
+            byte[] head = request.head.get(15, TimeUnit.SECONDS);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                Frame frame = holder.take(15000);
+                if (frame == null || frame.type == Frame.RST) {
+                    return;
+                }
+                if (frame.type == Frame.DATA) {
+                    body.write(frame.payload, 0, frame.payload.length);
+                    holder.consumed(frame.payload.length);
+                    if (body.size() > pushed.maxEntryBytes()) {
+                        return;
                     }
                 }
-            } catch (SocketTimeoutException e) {
-                System.err.println("Timeout while reading response from offshore proxy for request ID " + requestId + ": " + e.getMessage());
-                return "HTTP/1.1 504 Gateway Timeout\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 24\r\n" +
-                        "\r\n" +
-                        "Gateway timeout occurred";
-            } catch (IOException e) {
-                System.err.println("Error reading response from offshore proxy for request ID " + requestId + ": " + e.getMessage());
-                reconnectToServer();
-                throw e;
+                if (frame.type == Frame.END || frame.hasFlag(Frame.FLAG_END_STREAM)) {
+                    break;
+                }
             }
-
-            if (responseRequestId == null || !responseRequestId.equals(requestId)) {
-                System.err.println("Received response with mismatched or missing request ID. Expected: " + requestId + ", Got: " + responseRequestId);
-                return "HTTP/1.1 504 Gateway Timeout\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 24\r\n" +
-                        "\r\n" +
-                        "Gateway timeout occurred";
+            HttpHead response = HttpHead.parse(head, 0, head.length);
+            if (response.statusCode() != 200 || request.wasJoined()) {
+                return;
+            }
+            byte[] requestBytes = request.requestHead.getBytes(StandardCharsets.ISO_8859_1);
+            if (cache != null && ShipCache.isStorable(HttpHead.parse(requestBytes, 0, requestBytes.length), response)) {
+                cache.put(request.url, head, body.toByteArray(), request.sentAt);
             }
+            pushed.put(request.key, head, body.toByteArray());
+            Log.debug("Holding pushed response", "url", request.url, "bytes", body.size());
+        } catch (TimeoutException | ExecutionException | CancellationException e) {
+            Log.debug("Pushed response did not arrive", "url", request.url);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            holder.leave();
+        }
+    }
+
+    // Browser threads block only on their own request's future.
+    private byte[] awaitResponseHead(PendingRequest.Subscriber subscriber) {
+        PendingRequest request = subscriber.request();
+        try {
+            return request.head.get(15, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            Log.warn("Timeout while waiting for response from offshore proxy for request ID " + request.id);
+            subscriber.leave();
+            return GATEWAY_TIMEOUT_RESPONSE;
+        } catch (ExecutionException e) {
+            Log.warn("Failed to fetch request ID " + request.id + ": " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException | CancellationException e) {
+            subscriber.leave();
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-            String responseStr = response.toString();
-            int contentLength = -1;
-            for (String line : responseStr.split("\r\n")) {
-                if (line.toLowerCase().startsWith("content-length:")) {
-                    contentLength = Integer.parseInt(line.split(":")[1].trim());
+    // Copies DATA frames to the browser until END. Nothing is buffered beyond the frames in flight.
+    private void streamBody(PendingRequest.Subscriber subscriber, byte[] head, OutputStream out) throws IOException {
+        PendingRequest request = subscriber.request();
+        long bytes = 0;
+        ByteArrayOutputStream capture = null; // body copy for the ship cache
+        if (cache != null && subscriber.first && request.requestHead != null) {
+            byte[] requestBytes = request.requestHead.getBytes(StandardCharsets.ISO_8859_1);
+            if (ShipCache.isStorable(HttpHead.parse(requestBytes, 0, requestBytes.length), HttpHead.parse(head, 0, head.length))) {
+                capture = new ByteArrayOutputStream();
+            }
+        }
+        try {
+            while (true) {
+                Frame frame = subscriber.take(15000);
+                if (frame == null || frame.type == Frame.RST) {
+                    // Headers are already out, so the only honest signal left is a cut connection
+                    Log.warn("Response body for request ID " + request.id + " was cut off after " + bytes + " bytes");
+                    subscriber.leave();
+                    throw new IOException("Incomplete response body");
+                }
+                if (frame.type == Frame.DATA) {
+                    out.write(frame.payload);
+                    subscriber.consumed(frame.payload.length);
+                    bytes += frame.payload.length;
+                    if (capture != null) {
+                        capture.write(frame.payload);
+                        if (capture.size() > cache.maxEntryBytes()) {
+                            capture = null;
+                        }
+                    }
+                    if (!subscriber.hasPendingFrames()) {
+                        out.flush();
+                    }
+                }
+                if (frame.type == Frame.END || frame.hasFlag(Frame.FLAG_END_STREAM)) {
                     break;
                 }
             }
-            if (contentLength > 0) {
-                char[] body = new char[contentLength];
-                int charsRead = serverIn.read(body, 0, contentLength);
-                if (charsRead != contentLength) {
-                    System.err.println("Incomplete body read: expected " + contentLength + " chars, got " + charsRead);
+        } catch (InterruptedException e) {
+            subscriber.leave();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while streaming response");
+        }
+        if (capture != null) {
+            cache.put(request.url, head, capture.toByteArray(), request.sentAt);
+        }
+        Log.info("request complete", "id", request.id, "url", request.url, "bytes", bytes,
+                "ms", (System.nanoTime() - request.enqueuedAt) / 1_000_000);
+    }
+
+    // Single writer: takes requests in scheduler order and pipelines them onto the link without
+    // waiting for replies.
+    private void processRequests() {
+        while (true) {
+            try {
+                scheduler.take();
+                if (!scheduler.hasReady()) {
+                    links.flush();
                 }
-                response.append(new String(body, 0, charsRead));
+            } catch (InterruptedException e) {
+                Log.warn("Request dispatcher interrupted: " + e.getMessage());
+                return;
             }
-            System.out.println("Full response from offshore proxy (ID: " + requestId + "):\n" + response.toString());
-            System.out.println("Completed request for: " + requestUrl);
-            return response.toString();
+        }
+    }
 
+    private void sendRequestToProxy(PendingRequest pending) {
+        if (pending.head.isDone()) {
+            pending.finished();
+            return; // the browser already gave up
+        }
+        try {
+            URL url = new URL(pending.url);
+            String host = url.getHost();
+
+            pending.requestHead = "GET " + pending.url + " HTTP/1.1\r\n" +
+                    "Host: " + host + "\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n";
         } catch (MalformedURLException e) {
-            System.err.println("Invalid URL format: " + requestUrl + " - " + e.getMessage());
-            return "HTTP/1.1 400 Bad Request\r\n" +
+            Log.warn("Invalid URL format: " + pending.url + " - " + e.getMessage());
+            pending.head.complete(("HTTP/1.1 400 Bad Request\r\n" +
                     "Content-Type: text/plain\r\n" +
-                    "Content-Length: 15\r\n" +
+                    "Content-Length: 11\r\n" +
                     "\r\n" +
-                    "Invalid URL";
-        } catch (IOException e) {
-            System.err.println("Failed to send request to proxy: " + e.getMessage());
-            return null;
+                    "Invalid URL").getBytes(StandardCharsets.ISO_8859_1));
+            pending.finished();
+            return;
         }
+        pending.sentAt = System.currentTimeMillis();
+        pending.sentNanos = System.nanoTime();
+        boolean journaled = journal.admit(pending);
+        if (send(pending, false, !scheduler.hasReady())) {
+            journal.sent(pending);
+        } else if (!journaled || !journal.resendLater(pending)) {
+            pending.head.completeExceptionally(new IOException("No link to offshore proxy"));
+            pending.finished();
+        }
+    }
+
+    private boolean send(PendingRequest pending, boolean hedge) {
+        return send(pending, hedge, true);
     }
 
-    private void reconnectToServer() throws IOException {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            serverSocket.close();
+    // Opens a stream for the request, or for a hedge racing its first attempt, and sends the head.
+    // False if no link connection could take it. flush=false leaves the head buffered for the next
+    // request in a pipelined batch.
+    private boolean send(PendingRequest pending, boolean hedge, boolean flush) {
+        LinkStream stream = null;
+        try {
+            LinkConnection link = hedge ? links.pickOther(pending.stream.link()) : currentLink();
+            if (link == null) {
+                return false;
+            }
+            stream = link.openStream();
+            LinkStream opened = stream;
+            if (!pending.attach(opened, hedge)) {
+                opened.reset(); // answered or abandoned meanwhile
+                return true;
+            }
+            // The link reader thread completes the future and fans the body out to subscribers
+            opened.setHandler(frame -> pending.onFrame(opened, frame));
+            String head = pending.requestHead;
+            String resume = pending.resumeFields();
+            if (!resume.isEmpty()) {
+                head = head.substring(0, head.length() - 2) + resume + "\r\n";
+            }
+            if (Log.debug()) {
+                Log.debug("Sending request to offshore proxy (ID: " + pending.id + ", stream " + opened.getId()
+                        + (hedge ? ", hedge" : "") + "):\n" + head);
+            }
+            opened.sendHeaders(head, true, flush);
+            return true;
+        } catch (IOException e) {
+            Log.warn("Failed to send request to proxy: " + e.getMessage());
+            if (stream != null) {
+                stream.linkLost(); // resent or failed like any stream on a dropped connection
+                return true;
+            }
+            return false;
         }
-        serverSocket = new Socket(serverHost, serverPort);
-        serverOut = new PrintWriter(serverSocket.getOutputStream(), true);
-        serverIn = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-        serverRawOut = serverSocket.getOutputStream();
-        serverRawIn = serverSocket.getInputStream();
-        System.out.println("Re-established persistent TCP connection to offshore proxy at " + serverHost + ":" + serverPort);
     }
-}
\ No newline at end of file
+
+    // Least loaded live link connection; reconnects if every one of them is down.
+    private LinkConnection currentLink() throws IOException {
+        return links.pick();
+    }
+
+    public String linkReport() {
+        return links.report();
+    }
+
+    public String schedulerReport() {
+        return scheduler.report();
+    }
+}
@@ -0,0 +1,109 @@
+package com.client;
+
+import com.common.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Holding area for responses the offshore side pushed before any browser asked for them, in memory
+// by normalized URL. A GET takes its response out, so each is served once, like a pushed response in
+// HTTP/2; what nobody asks for within the TTL is dropped. The oldest go first when it is full.
+final class PushedResponses {
+    private static final long TTL_MS = 30000;
+    private static final Metrics.Counter USED = Metrics.counter("adpump_pushes_received_total{result=\"used\"}",
+            "Pushed responses by what became of them on the ship.");
+    private static final Metrics.Counter REFUSED = Metrics.counter("adpump_pushes_received_total{result=\"refused\"}",
+            "Pushed responses by what became of them on the ship.");
+    private static final Metrics.Counter EXPIRED = Metrics.counter("adpump_pushes_received_total{result=\"expired\"}",
+            "Pushed responses by what became of them on the ship.");
+
+    static final class Entry {
+        final byte[] head;
+        final byte[] body;
+        final long expiresAt;
+
+        Entry(byte[] head, byte[] body, long expiresAt) {
+            this.head = head;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        long size() {
+            return head.length + body.length;
+        }
+    }
+
+    private final long capacityBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(); // oldest first
+    private long bytes;
+
+    PushedResponses(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    long maxEntryBytes() {
+        return capacityBytes / 4;
+    }
+
+    synchronized void put(String key, byte[] head, byte[] body) {
+        Entry entry = new Entry(head, body, System.currentTimeMillis() + TTL_MS);
+        if (entry.size() > maxEntryBytes()) {
+            return;
+        }
+        Entry replaced = entries.remove(key);
+        if (replaced != null) {
+            bytes -= replaced.size();
+        }
+        expire();
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (bytes + entry.size() > capacityBytes && oldest.hasNext()) {
+            bytes -= oldest.next().size();
+            oldest.remove();
+            EXPIRED.inc();
+        }
+        entries.put(key, entry);
+        bytes += entry.size();
+    }
+
+    // The held response for key, removed so nobody else gets it; null if there is none.
+    synchronized Entry take(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        bytes -= entry.size();
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            EXPIRED.inc();
+            return null;
+        }
+        USED.inc();
+        return entry;
+    }
+
+    // A push was reset unused: the response was already here, in the cache or on its way.
+    void refused() {
+        REFUSED.inc();
+    }
+
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (now < entry.expiresAt) {
+                return; // held in arrival order, so the rest are younger
+            }
+            bytes -= entry.size();
+            oldest.remove();
+            EXPIRED.inc();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.client;
+
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-flight GETs that survive a link connection dropping. Requests are journaled as they are first
+// sent, up to capacity; when one's connection drops it is sent again on another connection (or the
+// first one to reconnect), continuing its body with a Range request if part of it already reached
+// the browser. GETs are idempotent, so sending one twice is safe. Tunnels are never journaled.
+//
+// With hedging on, a request whose head takes longer than the given percentile of recent heads gets
+// a second attempt on another connection, and whichever head arrives first is used.
+class RequestJournal {
+    private static final long RETRY_MS = 1000;
+    // Connections tend to drop together; waiting a moment lets the others' failures show before one is picked
+    private static final long SETTLE_MS = 200;
+    private static final int MIN_HEDGE_SAMPLES = 50;  // heads seen before the percentile is trusted
+    private static final Metrics.Histogram HEAD_LATENCY = Metrics.latency("adpump_response_head_seconds",
+            "From sending a GET on the link to its response head.");
+    private static final Metrics.Counter REPLAYED = Metrics.counter("adpump_requests_resent_total{reason=\"replay\"}",
+            "GETs sent on the link again, after a dropped connection or as a hedge.");
+    private static final Metrics.Counter RESUMED = Metrics.counter("adpump_requests_resent_total{reason=\"resume\"}",
+            "GETs sent on the link again, after a dropped connection or as a hedge.");
+    private static final Metrics.Counter HEDGED = Metrics.counter("adpump_requests_resent_total{reason=\"hedge\"}",
+            "GETs sent on the link again, after a dropped connection or as a hedge.");
+
+    interface Sender {
+        // Sends the request (or a hedge beside it) on some link connection; false if none could take it.
+        boolean send(PendingRequest request, boolean hedge);
+    }
+
+    private final int capacity;
+    private final int maxAttempts;
+    private final long windowMs;
+    private final double hedgePercentile;  // 0 disables hedging
+    private final Sender sender;
+    private final ConcurrentHashMap<PendingRequest, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // maxAttempts: drops in a row a request survives without getting further; windowMs: how long it may wait for a link to come back
+    RequestJournal(int capacity, int maxAttempts, long windowMs, double hedgePercentile, Sender sender) {
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.windowMs = windowMs;
+        this.hedgePercentile = hedgePercentile;
+        this.sender = sender;
+    }
+
+    private static final class Entry {
+        int drops;      // guarded by this; in a row, without the response getting further
+        long progress;  // guarded by this; how far the response had got at the last drop
+        long deadline;  // guarded by this; give up resending after this
+    }
+
+    // Journals a request as it is first sent. False when the journal is full; such a request fails
+    // if its connection drops.
+    boolean admit(PendingRequest request) {
+        if (entries.size() >= capacity) {
+            return false;
+        }
+        if (entries.putIfAbsent(request, new Entry()) == null) {
+            request.onLinkLost(this::resendLater);
+            request.onFinished(() -> entries.remove(request));
+        }
+        return true;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // The request went out on the link for the first time.
+    void sent(PendingRequest request) {
+        if (hedgePercentile <= 0 || HEAD_LATENCY.count() < MIN_HEDGE_SAMPLES) {
+            return;
+        }
+        long threshold = HEAD_LATENCY.quantile(hedgePercentile / 100);
+        timer.schedule(() -> hedge(request), threshold, TimeUnit.NANOSECONDS);
+    }
+
+    void headReceived(PendingRequest request) {
+        HEAD_LATENCY.recordSince(request.sentNanos);
+    }
+
+    private void hedge(PendingRequest request) {
+        if (request.canHedge() && sender.send(request, true)) {
+            HEDGED.inc();
+        }
+    }
+
+    // The request's connection dropped, or there was none to send it on. True if it will be sent again.
+    boolean resendLater(PendingRequest request) {
+        Entry entry = entries.get(request);
+        if (entry == null) {
+            return false;
+        }
+        long progress = request.progress();
+        synchronized (entry) {
+            if (progress > entry.progress) {
+                entry.progress = progress;
+                entry.drops = 0;
+            }
+            if (entry.drops >= maxAttempts) {
+                return false;
+            }
+            entry.drops++;
+            entry.deadline = System.currentTimeMillis() + windowMs;
+        }
+        timer.schedule(() -> resend(request, entry), SETTLE_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void resend(PendingRequest request, Entry entry) {
+        if (request.isFinished()) {
+            return;
+        }
+        boolean resuming = request.isResuming();
+        if (sender.send(request, false)) {
+            (resuming ? RESUMED : REPLAYED).inc();
+            Log.info("request resent", "id", request.id, "url", request.url, "resume", resuming);
+            return;
+        }
+        long deadline;
+        synchronized (entry) {
+            deadline = entry.deadline;
+        }
+        if (System.currentTimeMillis() < deadline) {
+            timer.schedule(() -> resend(request, entry), RETRY_MS, TimeUnit.MILLISECONDS);
+        } else {
+            Log.warn("Giving up on request ID " + request.id + ": no link to the offshore proxy");
+            request.abandon(new IOException("Link to offshore proxy is down"));
+        }
+    }
+}
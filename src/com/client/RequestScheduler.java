@@ -0,0 +1,248 @@
+package com.client;
+
+import com.common.Log;
+import com.common.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Decides which waiting request goes onto the link next. Classes are served in strict priority
+// order, each capped at a number of streams in flight so a busy class leaves room for the rest.
+// Within a class, browser clients share by weighted deficit round robin, so one machine pulling
+// a hundred files does not hold up a colleague's single page.
+public class RequestScheduler {
+    private static final Map<TrafficClass, Metrics.Histogram> QUEUE_WAIT = new EnumMap<>(TrafficClass.class);
+
+    static {
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            QUEUE_WAIT.put(trafficClass, Metrics.latency(
+                    "adpump_queue_wait_seconds{class=\"" + trafficClass.name().toLowerCase() + "\"}",
+                    "Time from a request entering the scheduler to its dispatch onto the link."));
+        }
+    }
+
+    private final Map<TrafficClass, ClassQueue> classes = new EnumMap<>(TrafficClass.class);
+    private final Map<String, Double> clientWeights;
+
+    // Admission to the link for one request or tunnel. Released exactly once, when it is done.
+    public final class Ticket {
+        final TrafficClass trafficClass;
+        final String client;
+        private final Runnable dispatch;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final long submittedAt = System.nanoTime();
+        private boolean dispatched; // guarded by the scheduler
+
+        Ticket(TrafficClass trafficClass, String client, Runnable dispatch) {
+            this.trafficClass = trafficClass;
+            this.client = client;
+            this.dispatch = dispatch;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                RequestScheduler.this.release(this);
+            }
+        }
+    }
+
+    private static final class ClientQueue {
+        final String name;
+        final double weight;
+        final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+        double deficit;
+
+        ClientQueue(String name, double weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    private static final class ClassQueue {
+        final int limit;
+        final Map<String, ClientQueue> clients = new HashMap<>();
+        final ArrayDeque<ClientQueue> active = new ArrayDeque<>(); // clients with work, in round-robin order
+        int inFlight;
+
+        ClassQueue(int limit) {
+            this.limit = limit;
+        }
+
+        boolean isReady() {
+            return !active.isEmpty() && inFlight < limit;
+        }
+    }
+
+    // limits: streams in flight per class; weights: share of each browser client, default 1
+    public RequestScheduler(Map<TrafficClass, Integer> limits, Map<String, Double> clientWeights) {
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            classes.put(trafficClass, new ClassQueue(Math.max(1, limits.getOrDefault(trafficClass, trafficClass.defaultLimit))));
+        }
+        this.clientWeights = clientWeights;
+    }
+
+    // "interactive=64,bulk=2" style overrides of the class limits.
+    public static Map<TrafficClass, Integer> parseLimits(String spec) {
+        Map<TrafficClass, Integer> limits = new EnumMap<>(TrafficClass.class);
+        for (String[] setting : parsePairs(spec)) {
+            TrafficClass trafficClass = TrafficClass.fromName(setting[0]);
+            try {
+                if (trafficClass != null) {
+                    limits.put(trafficClass, Integer.parseInt(setting[1]));
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            Log.warn("Ignoring class limit '" + setting[0] + "=" + setting[1] + "'");
+        }
+        return limits;
+    }
+
+    // "10.0.0.5=2,10.0.0.6=0.5" style browser client weights.
+    public static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> weights = new HashMap<>();
+        for (String[] setting : parsePairs(spec)) {
+            try {
+                double weight = Double.parseDouble(setting[1]);
+                if (weight > 0) {
+                    weights.put(setting[0], weight);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            Log.warn("Ignoring client weight '" + setting[0] + "=" + setting[1] + "'");
+        }
+        return weights;
+    }
+
+    private static Iterable<String[]> parsePairs(String spec) {
+        ArrayDeque<String[]> pairs = new ArrayDeque<>();
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.split("=", 2);
+            if (pair.length == 2) {
+                pairs.add(new String[]{pair[0].trim(), pair[1].trim()});
+            }
+        }
+        return pairs;
+    }
+
+    // Queue work for the dispatcher thread, which runs dispatch once the ticket's turn comes.
+    public synchronized Ticket submit(TrafficClass trafficClass, String client, Runnable dispatch) {
+        Ticket ticket = new Ticket(trafficClass, client, dispatch);
+        ClassQueue queue = classes.get(trafficClass);
+        ClientQueue clientQueue = queue.clients.get(client);
+        if (clientQueue == null) {
+            clientQueue = new ClientQueue(client, clientWeights.getOrDefault(client, 1.0));
+            queue.clients.put(client, clientQueue);
+            queue.active.add(clientQueue);
+        }
+        clientQueue.tickets.add(ticket);
+        notifyAll();
+        return ticket;
+    }
+
+    // Blocks the calling thread until the ticket is dispatched. Used by tunnels, which drive their
+    // own stream once admitted. Returns null if the wait timed out.
+    public Ticket admit(TrafficClass trafficClass, String client, long timeoutMillis) throws InterruptedException {
+        CompletableFuture<Void> admitted = new CompletableFuture<>();
+        Ticket ticket = submit(trafficClass, client, () -> admitted.complete(null));
+        try {
+            admitted.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return ticket;
+        } catch (TimeoutException | ExecutionException e) {
+            admitted.cancel(false);
+            ticket.release();
+            return null;
+        } catch (InterruptedException e) {
+            ticket.release();
+            throw e;
+        }
+    }
+
+    // Next ticket whose class has room, already counted as in flight. Dispatcher thread only.
+    public Ticket take() throws InterruptedException {
+        Ticket ticket;
+        synchronized (this) {
+            while ((ticket = poll()) == null) {
+                wait();
+            }
+        }
+        ticket.dispatch.run();
+        return ticket;
+    }
+
+    // True while another ticket could be dispatched right away.
+    public synchronized boolean hasReady() {
+        for (ClassQueue queue : classes.values()) {
+            if (queue.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Ticket poll() {
+        for (ClassQueue queue : classes.values()) {
+            while (queue.isReady()) {
+                Ticket ticket = nextFairTicket(queue);
+                if (ticket.released.get()) {
+                    continue; // given up while waiting
+                }
+                ticket.dispatched = true;
+                queue.inFlight++;
+                QUEUE_WAIT.get(ticket.trafficClass).recordSince(ticket.submittedAt);
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    // Deficit round robin with a cost of one per request.
+    private Ticket nextFairTicket(ClassQueue queue) {
+        while (true) {
+            ClientQueue client = queue.active.peek();
+            if (client.deficit < 1) {
+                client.deficit += client.weight;
+                queue.active.add(queue.active.poll());
+                continue;
+            }
+            Ticket ticket = client.tickets.poll();
+            client.deficit -= 1;
+            if (client.tickets.isEmpty()) {
+                queue.active.poll();
+                queue.clients.remove(client.name);
+            }
+            return ticket;
+        }
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.dispatched) {
+            classes.get(ticket.trafficClass).inFlight--;
+            notifyAll();
+        }
+    }
+
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<TrafficClass, ClassQueue> entry : classes.entrySet()) {
+            int waiting = 0;
+            for (ClientQueue client : entry.getValue().active) {
+                waiting += client.tickets.size();
+            }
+            report.append(report.length() == 0 ? "" : ", ").append(entry.getKey().name().toLowerCase())
+                    .append('=').append(entry.getValue().inFlight).append('/').append(entry.getValue().limit)
+                    .append(" (").append(waiting).append(" waiting)");
+        }
+        return report.toString();
+    }
+}
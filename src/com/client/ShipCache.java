@@ -0,0 +1,293 @@
+package com.client;
+
+import com.common.BufferPool;
+import com.common.CacheControl;
+import com.common.HttpHead;
+import com.common.Log;
+import com.common.PooledBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+// Disk cache of GET responses on the ship. Records are appended to fixed-size memory-mapped segment
+// files; an in-memory index maps URLs to the latest record. Segments are scanned on startup, so the
+// cache survives restarts, and the oldest segment is dropped whole when the disk budget is reached.
+// Each record carries a checksum of everything after its magic, since after a power cut the page
+// holding the magic can reach the disk without the rest; the scan stops at the first record that
+// does not match. A segment is forced to disk when it fills up and at shutdown.
+public class ShipCache {
+    private static final int MAGIC = 0xADC0FFEF;
+    // magic, key length, head length, body length, response time, initial age, lifetime, checksum
+    private static final int RECORD_HEADER = 4 + 4 + 4 + 4 + 8 + 8 + 8 + 4;
+    private static final int CHECKSUM = RECORD_HEADER - 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>(); // oldest first; guarded by this
+    private Segment active;                                          // guarded by this
+    private int nextSegmentId;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    // Where one stored response lives, plus what is needed to judge its freshness.
+    static final class Location {
+        final Segment segment;
+        final int headOffset;
+        final int headLength;
+        final int bodyLength;
+        final long responseTime;
+        final long initialAge;
+        final long lifetime;
+
+        Location(Segment segment, int headOffset, int headLength, int bodyLength,
+                 long responseTime, long initialAge, long lifetime) {
+            this.segment = segment;
+            this.headOffset = headOffset;
+            this.headLength = headLength;
+            this.bodyLength = bodyLength;
+            this.responseTime = responseTime;
+            this.initialAge = initialAge;
+            this.lifetime = lifetime;
+        }
+
+        long age(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        boolean isFresh(long now) {
+            return age(now) < lifetime;
+        }
+    }
+
+    public ShipCache(File directory, long budgetBytes, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, budgetBytes / segmentSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        load();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "ship-cache-flush"));
+    }
+
+    public long maxEntryBytes() {
+        return segmentSize / 4;
+    }
+
+    public int entryCount() {
+        return index.size();
+    }
+
+    // Rebuild the index from whatever segments a previous run left behind.
+    private synchronized void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                int id;
+                try {
+                    id = Integer.parseInt(file.getName().substring(8, file.getName().length() - 4));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Segment segment = new Segment(id, file, map(file));
+                scan(segment);
+                segments.add(segment);
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+            }
+        }
+        while (segments.size() > maxSegments) {
+            dropOldest();
+        }
+        active = segments.peekLast();
+        if (active == null) {
+            active = newSegment();
+        }
+        Log.info("Ship cache loaded " + index.size() + " entries from " + segments.size() + " segments in " + directory);
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_HEADER <= segmentSize && buffer.getInt(position) == MAGIC) {
+            int keyLength = buffer.getInt(position + 4);
+            int headLength = buffer.getInt(position + 8);
+            int bodyLength = buffer.getInt(position + 12);
+            long size = (long) RECORD_HEADER + keyLength + headLength + bodyLength;
+            if (keyLength < 0 || headLength < 0 || bodyLength < 0 || position + size > segmentSize) {
+                break;
+            }
+            int end = (int) (position + size);
+            if (buffer.getInt(position + CHECKSUM) != checksum(buffer, position, end)) {
+                break; // torn or never finished: whatever follows was written after it
+            }
+            byte[] key = new byte[keyLength];
+            buffer.position(position + RECORD_HEADER);
+            buffer.get(key);
+            index.put(new String(key, StandardCharsets.UTF_8), new Location(segment,
+                    position + RECORD_HEADER + keyLength, headLength, bodyLength,
+                    buffer.getLong(position + 16), buffer.getLong(position + 24), buffer.getLong(position + 32)));
+            position = end;
+        }
+        segment.writePosition = position;
+    }
+
+    // CRC-32C of a record without its magic and checksum fields.
+    private static int checksum(ByteBuffer buffer, int position, int end) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(position + CHECKSUM).position(position + 4);
+        crc.update(view);
+        view.limit(end).position(position + RECORD_HEADER);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        int id = nextSegmentId++;
+        File file = new File(directory, String.format("segment-%06d.dat", id));
+        Segment segment = new Segment(id, file, map(file));
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            dropOldest();
+        }
+        return segment;
+    }
+
+    private void dropOldest() {
+        Segment oldest = segments.poll();
+        if (oldest == null) {
+            return;
+        }
+        index.values().removeIf(location -> location.segment == oldest);
+        // Readers still holding the mapping keep working; the space is released once they let go
+        if (!oldest.file.delete()) {
+            Log.warn("Could not delete cache segment " + oldest.file);
+        }
+    }
+
+    // A fresh stored response for url, or null. Lock-free.
+    public Location lookup(String url) {
+        Location location = index.get(url);
+        if (location == null || !location.isFresh(System.currentTimeMillis())) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return location;
+    }
+
+    // Whether a fresh response for url is stored, without counting a lookup.
+    public boolean contains(String url) {
+        Location location = index.get(url);
+        return location != null && location.isFresh(System.currentTimeMillis());
+    }
+
+    // Writes a stored response to the browser straight out of the mapped segment; returns the head sent.
+    public byte[] writeTo(Location location, OutputStream out) throws IOException {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        byte[] head = new byte[location.headLength];
+        buffer.position(location.headOffset);
+        buffer.get(head);
+        long now = System.currentTimeMillis();
+        byte[] sentHead = HttpHead.withField(head, "Age", String.valueOf(location.age(now) / 1000));
+        out.write(sentHead);
+        PooledBuffer loan = BufferPool.acquireHeap(16384);
+        try {
+            byte[] chunk = loan.buffer().array();
+            int remaining = location.bodyLength;
+            while (remaining > 0) {
+                int length = Math.min(16384, remaining);
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+                remaining -= length;
+            }
+        } finally {
+            loan.release();
+        }
+        out.flush();
+        return sentHead;
+    }
+
+    // Ship-side storability: the same rules as the offshore cache, since crew browsers share it.
+    public static boolean isStorable(HttpHead request, HttpHead response) {
+        return CacheControl.isStorable(request, response, true);
+    }
+
+    public synchronized void put(String url, byte[] head, byte[] body, long requestTime) {
+        HttpHead response = HttpHead.parse(head, 0, head.length);
+        CacheControl control = CacheControl.parse(response);
+        long now = System.currentTimeMillis();
+        long lifetime = control.noCache ? 0 : Math.max(0, CacheControl.freshnessLifetime(response, control, true));
+        if (lifetime == 0) {
+            return; // never fresh, and the ship does not revalidate: leave it to the offshore cache
+        }
+        byte[] key = url.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER + key.length + head.length + body.length;
+        if (recordSize > maxEntryBytes()) {
+            return;
+        }
+        try {
+            if (active.writePosition + recordSize > segmentSize) {
+                active.buffer.force(); // full: nothing more is written to it
+                active = newSegment();
+            }
+        } catch (IOException e) {
+            Log.warn("Could not open a new cache segment: " + e.getMessage());
+            return;
+        }
+        ByteBuffer buffer = active.buffer.duplicate();
+        int position = active.writePosition;
+        long initialAge = CacheControl.initialAge(response, requestTime, now);
+        buffer.position(position + 4);
+        buffer.putInt(key.length).putInt(head.length).putInt(body.length)
+                .putLong(now).putLong(initialAge).putLong(lifetime)
+                .putInt(0).put(key).put(head).put(body);
+        buffer.putInt(position + CHECKSUM, checksum(buffer, position, position + recordSize));
+        // The magic goes in last and marks the record complete for the next startup scan
+        buffer.putInt(position, MAGIC);
+        active.writePosition = position + recordSize;
+        index.put(url, new Location(active, position + RECORD_HEADER + key.length, head.length, body.length,
+                now, initialAge, lifetime));
+    }
+
+    // Older segments were forced when they filled up.
+    public synchronized void flush() {
+        active.buffer.force();
+    }
+}
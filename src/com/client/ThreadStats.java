@@ -0,0 +1,35 @@
+package com.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+// Snapshot of OS threads and heap against the number of open tunnels, for comparing execution modes.
+public class ThreadStats {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final int baselineThreads;
+    private final long baselineHeap;
+
+    public ThreadStats() {
+        baselineThreads = THREADS.getThreadCount();
+        baselineHeap = MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    // Virtual threads are not counted by the ThreadMXBean, which is the point of the comparison.
+    public String report(ExecutionMode mode, int activeTunnels) {
+        int threads = THREADS.getThreadCount();
+        long heap = MEMORY.getHeapMemoryUsage().getUsed();
+        String perTunnel = activeTunnels == 0 ? "n/a" :
+                String.format("%.2f threads, %d KB heap",
+                        (threads - baselineThreads) / (double) activeTunnels,
+                        (heap - baselineHeap) / 1024 / activeTunnels);
+        return "mode=" + mode +
+                " tunnels=" + activeTunnels +
+                " osThreads=" + threads +
+                " peakOsThreads=" + THREADS.getPeakThreadCount() +
+                " heapUsedKB=" + heap / 1024 +
+                " perTunnel=" + perTunnel;
+    }
+}
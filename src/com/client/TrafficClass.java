@@ -0,0 +1,51 @@
+package com.client;
+
+import java.util.Locale;
+
+// Scheduling classes for work on the link, highest priority first.
+public enum TrafficClass {
+    INTERACTIVE(64),   // pages a crew member is looking at
+    TUNNEL(256),       // CONNECT tunnels, mostly HTTPS browsing; each holds its slot while open
+    SUBRESOURCE(48),   // scripts, styles, images and fonts of those pages
+    BULK(4);           // large downloads and updates
+
+    private static final String[] SUBRESOURCE_TYPES = {
+            ".js", ".css", ".png", ".jpg", ".jpeg", ".gif", ".svg", ".webp", ".ico", ".woff", ".woff2", ".ttf", ".json"};
+    private static final String[] BULK_TYPES = {
+            ".zip", ".gz", ".tgz", ".tar", ".bz2", ".xz", ".7z", ".rar", ".iso", ".img", ".dmg", ".exe", ".msi",
+            ".deb", ".rpm", ".apk", ".bin", ".dat", ".pdf", ".mp4", ".mkv", ".avi", ".mov", ".mp3"};
+
+    final int defaultLimit;  // streams of this class in flight on the link at once
+
+    TrafficClass(int defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    // Judged from the path alone; the ship sends no Accept field to go by.
+    public static TrafficClass forUrl(String url) {
+        String path = url.toLowerCase(Locale.ROOT);
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        for (String type : BULK_TYPES) {
+            if (path.endsWith(type)) {
+                return BULK;
+            }
+        }
+        for (String type : SUBRESOURCE_TYPES) {
+            if (path.endsWith(type)) {
+                return SUBRESOURCE;
+            }
+        }
+        return INTERACTIVE;
+    }
+
+    public static TrafficClass fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.client;
+
+import com.common.Log;
+import com.common.Metrics;
+import com.common.Trace;
+
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Records every browser request the ship answers into a com.common.Trace file, for replaying real
+// traffic with com.bench.Replay. Handler threads only count bytes and queue a record; one background
+// thread writes them out. Like the log, records that find the queue full are dropped and counted.
+final class TrafficRecorder {
+    private static final int QUEUE = 8192;
+    private static final Metrics.Counter RECORDED = Metrics.counter("adpump_trace_records_total{result=\"written\"}",
+            "Browser requests handed to the traffic trace.");
+    private static final Metrics.Counter DROPPED = Metrics.counter("adpump_trace_records_total{result=\"dropped\"}",
+            "Browser requests handed to the traffic trace.");
+
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<Trace.Record> queue = new ArrayBlockingQueue<>(QUEUE);
+    private final Trace.Writer writer;
+
+    private TrafficRecorder(Trace.Writer writer) {
+        this.writer = writer;
+        Thread thread = new Thread(this::writeLoop, "trace-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "trace-flush"));
+    }
+
+    // A recorder writing to path, or null when path is unset or cannot be written.
+    static TrafficRecorder open(String path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            TrafficRecorder recorder = new TrafficRecorder(new Trace.Writer(new FileOutputStream(path)));
+            Log.info("Recording browser traffic to " + path);
+            return recorder;
+        } catch (IOException e) {
+            Log.warn("Traffic recording disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // One request of a browser connection, measured from just after its head was read.
+    void record(long startedNanos, String method, String target, long requestBytes, long responseBytes) {
+        long now = System.nanoTime();
+        Trace.Record record = new Trace.Record((startedNanos - startNanos) / 1000, Trace.method(method), target,
+                (now - startedNanos) / 1000, requestBytes, responseBytes);
+        if (queue.offer(record)) {
+            RECORDED.inc();
+        } else {
+            DROPPED.inc();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Trace.Record record = queue.poll(1, TimeUnit.SECONDS);
+                synchronized (writer) {
+                    if (record == null) {
+                        writer.flush(); // idle: make what we have readable
+                    } else {
+                        writer.write(record);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Traffic recording stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        synchronized (writer) {
+            try {
+                for (Trace.Record record; (record = queue.poll()) != null; ) {
+                    writer.write(record);
+                }
+                writer.flush();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+    }
+
+    // Bytes read from a browser socket.
+    static final class CountingInput extends FilterInputStream {
+        private long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        long count() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    // Bytes written to a browser socket after each response head, which ends at the first blank line
+    // since the last reset.
+    static final class CountingOutput extends FilterOutputStream {
+        private int matched;  // of "\r\n\r\n"
+        private long body;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        void reset() {
+            matched = 0;
+            body = 0;
+        }
+
+        long body() {
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            int i = 0;
+            while (matched < 4 && i < length) {
+                count(buffer[offset + i++]);
+            }
+            body += length - i;
+        }
+
+        private void count(int b) {
+            if (matched == 4) {
+                body++;
+            } else {
+                matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+        }
+    }
+}
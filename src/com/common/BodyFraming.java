@@ -0,0 +1,189 @@
+package com.common;
+
+// Tracks where a response body ends without touching its bytes, so they can be forwarded as-is.
+public final class BodyFraming {
+    private enum Mode { EMPTY, LENGTH, CHUNKED, UNTIL_CLOSE }
+
+    private enum Chunk { SIZE, EXTENSION, SIZE_LF, DATA, DATA_CR, DATA_LF, TRAILER }
+
+    private final Mode mode;
+    private final long length;
+    private long remaining;
+    private Chunk chunk = Chunk.SIZE;
+    private long chunkSize;
+    private boolean sawDigit;
+    private int trailerLineLength;
+    private boolean complete;
+
+    private BodyFraming(Mode mode, long remaining) {
+        this.mode = mode;
+        this.length = remaining;
+        this.remaining = remaining;
+        this.complete = mode == Mode.EMPTY || (mode == Mode.LENGTH && remaining == 0);
+    }
+
+    // RFC 7230 section 3.3.3, in order.
+    public static BodyFraming forResponse(String requestMethod, HttpHead head) {
+        int status = head.statusCode();
+        if ("HEAD".equals(requestMethod) || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            return new BodyFraming(Mode.EMPTY, 0);
+        }
+        String transferEncoding = head.get("Transfer-Encoding");
+        if (transferEncoding != null) {
+            return transferEncoding.toLowerCase().endsWith("chunked")
+                    ? new BodyFraming(Mode.CHUNKED, 0)
+                    : new BodyFraming(Mode.UNTIL_CLOSE, 0);
+        }
+        String contentLength = head.get("Content-Length");
+        if (contentLength != null) {
+            try {
+                return new BodyFraming(Mode.LENGTH, Long.parseLong(contentLength.trim()));
+            } catch (NumberFormatException e) {
+                return new BodyFraming(Mode.UNTIL_CLOSE, 0);
+            }
+        }
+        return new BodyFraming(Mode.UNTIL_CLOSE, 0);
+    }
+
+    // The same rules, from fields the parser already picked out.
+    public static BodyFraming forResponse(String requestMethod, HttpParser head) {
+        int status = head.statusCode();
+        if ("HEAD".equals(requestMethod) || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            return new BodyFraming(Mode.EMPTY, 0);
+        }
+        if (head.hasTransferEncoding()) {
+            return head.isChunked() ? new BodyFraming(Mode.CHUNKED, 0) : new BodyFraming(Mode.UNTIL_CLOSE, 0);
+        }
+        return head.contentLength() >= 0 ? new BodyFraming(Mode.LENGTH, head.contentLength())
+                : new BodyFraming(Mode.UNTIL_CLOSE, 0);
+    }
+
+    // A request without Transfer-Encoding or Content-Length has no body. Null if the body cannot be
+    // delimited: Transfer-Encoding other than chunked, or a bad Content-Length.
+    public static BodyFraming forRequest(HttpParser head) {
+        if (head.hasTransferEncoding()) {
+            return head.isChunked() ? new BodyFraming(Mode.CHUNKED, 0) : null;
+        }
+        if (head.contentLength() == -2) {
+            return null;
+        }
+        return head.contentLength() > 0 ? new BodyFraming(Mode.LENGTH, head.contentLength())
+                : new BodyFraming(Mode.EMPTY, 0);
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // The body only ends when the origin closes; the connection cannot be reused.
+    public boolean isCloseDelimited() {
+        return mode == Mode.UNTIL_CLOSE;
+    }
+
+    // Content-Length of the body, or -1 when it is chunked or close-delimited.
+    public long contentLength() {
+        return mode == Mode.LENGTH ? length : mode == Mode.EMPTY ? 0 : -1;
+    }
+
+    // Consumes up to length bytes and returns how many belong to this body.
+    public int consume(byte[] data, int offset, int length) {
+        if (complete) {
+            return 0;
+        }
+        switch (mode) {
+            case LENGTH: {
+                int take = (int) Math.min(remaining, length);
+                remaining -= take;
+                complete = remaining == 0;
+                return take;
+            }
+            case CHUNKED:
+                return consumeChunked(data, offset, length);
+            case UNTIL_CLOSE:
+                return length;
+            default:
+                return 0;
+        }
+    }
+
+    private int consumeChunked(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && !complete) {
+            switch (chunk) {
+                case SIZE: {
+                    int digit = Character.digit(data[i], 16);
+                    if (digit >= 0) {
+                        chunkSize = chunkSize * 16 + digit;
+                        sawDigit = true;
+                    } else if (data[i] == '\r') {
+                        chunk = Chunk.SIZE_LF;
+                    } else {
+                        chunk = Chunk.EXTENSION; // ';ext' or whitespace
+                    }
+                    i++;
+                    break;
+                }
+                case EXTENSION:
+                    if (data[i] == '\r') {
+                        chunk = Chunk.SIZE_LF;
+                    } else if (data[i] == '\n') {
+                        i--; // treat bare LF like CRLF
+                        chunk = Chunk.SIZE_LF;
+                    }
+                    i++;
+                    break;
+                case SIZE_LF:
+                    i++;
+                    if (!sawDigit) {
+                        chunk = Chunk.SIZE; // stray blank line
+                    } else if (chunkSize == 0) {
+                        chunk = Chunk.TRAILER;
+                        trailerLineLength = 0;
+                    } else {
+                        chunk = Chunk.DATA;
+                        remaining = chunkSize;
+                    }
+                    break;
+                case DATA: {
+                    int take = (int) Math.min(remaining, end - i);
+                    remaining -= take;
+                    i += take;
+                    if (remaining == 0) {
+                        chunk = Chunk.DATA_CR;
+                    }
+                    break;
+                }
+                case DATA_CR:
+                    chunk = data[i] == '\r' ? Chunk.DATA_LF : Chunk.SIZE;
+                    if (chunk == Chunk.SIZE) {
+                        resetSize(); // bare LF after data
+                    }
+                    i++;
+                    break;
+                case DATA_LF:
+                    resetSize();
+                    i++;
+                    break;
+                case TRAILER:
+                    if (data[i] == '\n') {
+                        if (trailerLineLength == 0) {
+                            complete = true;
+                        }
+                        trailerLineLength = 0;
+                    } else if (data[i] != '\r') {
+                        trailerLineLength++;
+                    }
+                    i++;
+                    break;
+            }
+        }
+        return i - offset;
+    }
+
+    private void resetSize() {
+        chunk = Chunk.SIZE;
+        chunkSize = 0;
+        sawDigit = false;
+    }
+}
@@ -0,0 +1,164 @@
+package com.common;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Off-heap buffers for socket I/O and framing, recycled instead of reallocated. Sizes are rounded up
+// to powers of two from 4 KB to 2 MB. Each thread keeps a few buffers per size for itself, which is
+// all an event loop needs in steady state; the rest go to a shared queue per size. Larger requests
+// are allocated on the heap and simply dropped on release. Heap buffers of the same sizes are pooled
+// separately, for the ship's blocking streams, which read and write arrays.
+//
+// Leak detection (-Dadpump.bufferLeakDetection=off|sample|all, default sample) tracks one loan in 128,
+// or every loan, and reports where a buffer was acquired if its handle is collected unreleased.
+public final class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 21;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int LOCAL_LIMIT = 8;              // per size class and thread
+    private static final long SHARED_BYTES_PER_CLASS = 16L << 20;
+    private static final int SAMPLE_RATE = 128;
+
+    static final Cleaner CLEANER = Cleaner.create();
+
+    // Direct buffers at [sizeClass], heap buffers at [CLASSES + sizeClass]
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] SHARED = newSharedQueues();
+    private static final AtomicInteger[] SHARED_COUNTS = new AtomicInteger[2 * CLASSES];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> LOCAL =
+            ThreadLocal.withInitial(() -> new ArrayDeque[2 * CLASSES]);
+    private static final String LEAK_DETECTION = System.getProperty("adpump.bufferLeakDetection", "sample");
+
+    private static final AtomicLong allocated = new AtomicLong();
+    private static final AtomicLong reused = new AtomicLong();
+    private static final AtomicLong outstanding = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+
+    static {
+        for (int i = 0; i < SHARED_COUNTS.length; i++) {
+            SHARED_COUNTS[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newSharedQueues() {
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[2 * CLASSES];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
+    }
+
+    // A cleared buffer with at least capacity bytes; its limit is set to capacity.
+    public static PooledBuffer acquire(int capacity) {
+        return acquire(capacity, true);
+    }
+
+    // Like acquire, but backed by an array, for reading and writing blocking streams.
+    public static PooledBuffer acquireHeap(int capacity) {
+        return acquire(capacity, false);
+    }
+
+    private static PooledBuffer acquire(int capacity, boolean direct) {
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            int queue = direct ? sizeClass : CLASSES + sizeClass;
+            ArrayDeque<ByteBuffer> local = localQueue(queue);
+            buffer = local.poll();
+            if (buffer == null) {
+                buffer = SHARED[queue].poll();
+                if (buffer != null) {
+                    SHARED_COUNTS[queue].decrementAndGet();
+                }
+            }
+            if (buffer == null) {
+                int size = 1 << (sizeClass + MIN_SHIFT);
+                buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                allocated.incrementAndGet();
+            } else {
+                reused.incrementAndGet();
+            }
+        } else {
+            buffer = ByteBuffer.allocate(capacity);
+            allocated.incrementAndGet();
+        }
+        buffer.clear().limit(capacity);
+        outstanding.incrementAndGet();
+        return new PooledBuffer(buffer, track());
+    }
+
+    static void recycle(ByteBuffer buffer) {
+        outstanding.decrementAndGet();
+        int capacity = buffer.capacity();
+        int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (Integer.bitCount(capacity) != 1 || sizeClass < 0 || sizeClass >= CLASSES) {
+            return; // an oversized heap buffer
+        }
+        int queue = buffer.isDirect() ? sizeClass : CLASSES + sizeClass;
+        ArrayDeque<ByteBuffer> local = localQueue(queue);
+        if (local.size() < LOCAL_LIMIT) {
+            local.push(buffer); // most recently used first: still warm in cache
+            return;
+        }
+        if ((long) SHARED_COUNTS[queue].get() << (sizeClass + MIN_SHIFT) < SHARED_BYTES_PER_CLASS) {
+            SHARED_COUNTS[queue].incrementAndGet();
+            SHARED[queue].add(buffer);
+        }
+        // otherwise let the GC free it
+    }
+
+    private static int sizeClass(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private static ArrayDeque<ByteBuffer> localQueue(int queue) {
+        ArrayDeque<ByteBuffer>[] queues = LOCAL.get();
+        if (queues[queue] == null) {
+            queues[queue] = new ArrayDeque<>(LOCAL_LIMIT);
+        }
+        return queues[queue];
+    }
+
+    private static boolean track() {
+        switch (LEAK_DETECTION) {
+            case "off":
+                return false;
+            case "all":
+                return true;
+            default:
+                return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+        }
+    }
+
+    static void reportLeak(Throwable origin) {
+        leaks.incrementAndGet();
+        StringWriter trace = new StringWriter();
+        origin.printStackTrace(new PrintWriter(trace));
+        Log.error("LEAK: a pooled buffer was garbage collected without release. " + trace);
+    }
+
+    public static long outstanding() {
+        return outstanding.get();
+    }
+
+    public static long leakCount() {
+        return leaks.get();
+    }
+
+    public static String report() {
+        return "allocated=" + allocated.get() + " reused=" + reused.get()
+                + " outstanding=" + outstanding.get() + " leaks=" + leaks.get();
+    }
+}
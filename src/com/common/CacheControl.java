@@ -0,0 +1,158 @@
+package com.common;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+// Cache-Control directives and RFC 7234 freshness rules shared by the ship and offshore caches.
+public final class CacheControl {
+    private static final long HEURISTIC_MAX_MS = 24L * 60 * 60 * 1000;
+
+    public boolean noStore;
+    public boolean noCache;
+    public boolean isPrivate;
+    public boolean isPublic;
+    public boolean mustRevalidate;
+    public long maxAge = -1;   // seconds
+    public long sMaxAge = -1;  // seconds
+    public long minFresh = -1; // seconds, request only
+    public long maxStale = -1; // seconds, request only; Long.MAX_VALUE when any staleness will do
+
+    public static CacheControl parse(HttpHead head) {
+        CacheControl control = new CacheControl();
+        for (String[] field : head.fields()) {
+            if (field[0].equalsIgnoreCase("Cache-Control")) {
+                control.apply(field[1]);
+            } else if (field[0].equalsIgnoreCase("Pragma") && field[1].toLowerCase().contains("no-cache")) {
+                control.noCache = true;
+            }
+        }
+        return control;
+    }
+
+    private void apply(String value) {
+        for (String directive : value.split(",")) {
+            String[] parts = directive.trim().split("=", 2);
+            String name = parts[0].trim().toLowerCase();
+            String argument = parts.length > 1 ? parts[1].trim().replace("\"", "") : null;
+            switch (name) {
+                case "no-store": noStore = true; break;
+                case "no-cache": noCache = true; break;
+                case "private": isPrivate = true; break;
+                case "public": isPublic = true; break;
+                case "must-revalidate":
+                case "proxy-revalidate": mustRevalidate = true; break;
+                case "max-age": maxAge = seconds(argument); break;
+                case "s-maxage": sMaxAge = seconds(argument); break;
+                case "min-fresh": minFresh = seconds(argument); break;
+                case "max-stale": maxStale = argument == null ? Long.MAX_VALUE : seconds(argument); break;
+                default: break;
+            }
+        }
+    }
+
+    private static long seconds(String value) {
+        try {
+            return value == null ? -1 : Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0; // an invalid lifetime means stale
+        }
+    }
+
+    // Freshness lifetime in milliseconds, or -1 when the response gives nothing to go on.
+    public static long freshnessLifetime(HttpHead response, CacheControl control, boolean sharedCache) {
+        if (sharedCache && control.sMaxAge >= 0) {
+            return control.sMaxAge * 1000;
+        }
+        if (control.maxAge >= 0) {
+            return control.maxAge * 1000;
+        }
+        long date = parseDate(response.get("Date"));
+        String expires = response.get("Expires");
+        if (expires != null) {
+            long expiresAt = parseDate(expires);
+            if (expiresAt < 0) {
+                return 0; // invalid Expires means already expired
+            }
+            return Math.max(0, expiresAt - (date >= 0 ? date : System.currentTimeMillis()));
+        }
+        long lastModified = parseDate(response.get("Last-Modified"));
+        if (lastModified >= 0) {
+            // Heuristic freshness: 10% of the time since the last change, capped at a day
+            long reference = date >= 0 ? date : System.currentTimeMillis();
+            return Math.min(HEURISTIC_MAX_MS, Math.max(0, (reference - lastModified) / 10));
+        }
+        return -1;
+    }
+
+    // Whether a stored response of this age and freshness lifetime, both in ms, may answer a request
+    // with these directives (RFC 7234 section 5.2.1): max-age caps its age, min-fresh demands lifetime
+    // to spare, and max-stale accepts it that far past its lifetime unless it must be revalidated.
+    public boolean accepts(long age, long lifetime, boolean mustRevalidate) {
+        if (noCache || maxAge >= 0 && age >= maxAge * 1000) {
+            return false;
+        }
+        long fresh = lifetime - age;
+        if (minFresh >= 0 && fresh < minFresh * 1000) {
+            return false;
+        }
+        if (fresh > 0) {
+            return true;
+        }
+        return !mustRevalidate && maxStale >= 0 && (maxStale == Long.MAX_VALUE || -fresh <= maxStale * 1000);
+    }
+
+    // Storability of a GET response (RFC 7234 section 3). A shared cache also refuses private responses,
+    // responses setting a cookie, which would hand one user's cookie to everyone else, and, unless the
+    // response says otherwise, anything sent with Authorization.
+    public static boolean isStorable(HttpHead request, HttpHead response, boolean sharedCache) {
+        CacheControl requestControl = parse(request);
+        CacheControl responseControl = parse(response);
+        if (requestControl.noStore || responseControl.noStore
+                || (sharedCache && (responseControl.isPrivate || response.get("Set-Cookie") != null))) {
+            return false;
+        }
+        if (sharedCache && request.get("Authorization") != null && !responseControl.isPublic && responseControl.sMaxAge < 0) {
+            return false;
+        }
+        String vary = response.get("Vary");
+        if (vary != null && vary.trim().equals("*")) {
+            return false;
+        }
+        switch (response.statusCode()) {
+            case 200: case 203: case 204: case 300: case 301: case 404: case 405: case 410: case 414: case 501:
+                break;
+            default:
+                return false;
+        }
+        // Without a lifetime or a validator there is nothing we could ever serve
+        return freshnessLifetime(response, responseControl, sharedCache) > 0
+                || response.get("ETag") != null || response.get("Last-Modified") != null;
+    }
+
+    // Age of a response when it arrived, in ms (RFC 7234 section 4.2.3).
+    public static long initialAge(HttpHead response, long requestTime, long responseTime) {
+        long date = parseDate(response.get("Date"));
+        long ageField;
+        try {
+            String age = response.get("Age");
+            ageField = age == null ? 0 : Long.parseLong(age.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            ageField = 0;
+        }
+        long apparentAge = date < 0 ? 0 : Math.max(0, responseTime - date);
+        return Math.max(apparentAge, ageField) + Math.max(0, responseTime - requestTime);
+    }
+
+    // Milliseconds since the epoch for an HTTP-date, or -1 if absent or unparseable.
+    public static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.common;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SplittableRandom;
+
+// Content-defined chunking for link deduplication. Bodies are cut where a rolling hash of the last 64
+// bytes hits a pattern, so a boundary depends only on nearby content: the same script under another
+// URL, or with a few bytes changed, still cuts into mostly the same chunks. Chunks are named by a
+// 128-bit prefix of their SHA-256.
+public final class Chunks {
+    public static final int MIN_CHUNK = 1024;
+    public static final int MAX_CHUNK = Frame.MAX_DATA;    // a literal chunk always fits one DATA frame
+    public static final int KEY_SIZE = 16;
+    private static final long BOUNDARY_MASK = 0xFFF0000000000000L; // top 12 bits: about 4 KB past MIN_CHUNK
+    private static final long[] GEAR = new long[256];
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EEDC0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private Chunks() {
+    }
+
+    public static Key key(byte[] data, int offset, int length) {
+        MessageDigest sha = SHA256.get();
+        sha.update(data, offset, length);
+        ByteBuffer digest = ByteBuffer.wrap(sha.digest());
+        return new Key(digest.getLong(), digest.getLong());
+    }
+
+    // Name of a chunk. Immutable, so it can key maps on both sides of the link.
+    public static final class Key {
+        private final long high;
+        private final long low;
+
+        public Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        public static Key read(ByteBuffer buffer) {
+            return new Key(buffer.getLong(), buffer.getLong());
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            buffer.putLong(high).putLong(low);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).high == high && ((Key) other).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ high >>> 32);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", high, low);
+        }
+    }
+
+    // Gear hash over one body. Feed it the bytes of the chunk being built, in order.
+    public static final class Cutter {
+        private long hash;
+        private int length;   // bytes in the current chunk
+
+        // How many of the given bytes belong to the current chunk: up to and including a boundary,
+        // or all of them (-1) if none was found.
+        public int next(byte[] data, int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+                length++;
+                if (length >= MAX_CHUNK || length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) {
+                    hash = 0;
+                    length = 0;
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+}
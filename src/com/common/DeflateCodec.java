@@ -0,0 +1,100 @@
+package com.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// java.util.zip deflate with a sync flush after every frame. Deflater and Inflater hold native
+// memory that is expensive to create, so they are reset and reused instead of reallocated per stream.
+final class DeflateCodec extends LinkCodec {
+    private static final int POOL_LIMIT = 256;
+
+    private final ConcurrentLinkedQueue<DeflateEncoder> encoders = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<InflateDecoder> decoders = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public Encoder encoder() {
+        DeflateEncoder encoder = encoders.poll();
+        return encoder != null ? encoder : new DeflateEncoder();
+    }
+
+    @Override
+    public Decoder decoder() {
+        InflateDecoder decoder = decoders.poll();
+        return decoder != null ? decoder : new InflateDecoder();
+    }
+
+    private final class DeflateEncoder implements Encoder {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        // Incompressible input goes out as stored blocks: 5 bytes per block, plus the flush marker.
+        @Override
+        public int maxEncodedLength(int length) {
+            return length + 5 * (length / 16383 + 1) + 64;
+        }
+
+        @Override
+        public void encode(byte[] data, int offset, int length, ByteBuffer out) {
+            deflater.setInput(data, offset, length);
+            deflater.deflate(out, Deflater.SYNC_FLUSH);
+            // a SYNC_FLUSH that stops short of the end of out has written everything
+            if (!out.hasRemaining()) {
+                throw new IllegalStateException("Deflate output exceeded its bound");
+            }
+        }
+
+        @Override
+        public void release() {
+            deflater.reset();
+            if (encoders.size() < POOL_LIMIT) {
+                encoders.add(this);
+            } else {
+                deflater.end();
+            }
+        }
+    }
+
+    private final class InflateDecoder implements Decoder {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] output = new byte[Frame.MAX_DATA * 4];
+
+        @Override
+        public byte[] decode(byte[] data) throws IOException {
+            inflater.setInput(data);
+            int written = 0;
+            try {
+                while (true) {
+                    int inflated = inflater.inflate(output, written, output.length - written);
+                    written += inflated;
+                    if (written == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    } else if (inflated == 0 || inflater.needsInput() || inflater.finished()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed frame: " + e.getMessage());
+            }
+            return Arrays.copyOf(output, written);
+        }
+
+        @Override
+        public void release() {
+            inflater.reset();
+            if (decoders.size() < POOL_LIMIT) {
+                decoders.add(this);
+            } else {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A single unit on the ship <-> offshore link.
+// Wire layout: length (4) | type (1) | flags (1) | stream id (4) | payload (length bytes)
+public final class Frame {
+    public static final int HEADER_SIZE = 10;
+    public static final int MAX_DATA = 16384;          // largest DATA payload we produce
+    public static final int MAX_PAYLOAD = 1 << 20;     // largest payload we accept
+    public static final int INITIAL_WINDOW = 256 * 1024; // DATA bytes a sender may have unacknowledged per stream
+
+    public static final byte HEADERS = 1;
+    public static final byte DATA = 2;
+    public static final byte END = 3;
+    public static final byte RST = 4;
+    public static final byte PING = 5;
+    public static final byte SETTINGS = 6;             // connection setup, key=value lines
+    public static final byte WINDOW_UPDATE = 7;        // receiver drained this many more DATA bytes of the stream
+    public static final byte PUSH = 8;                 // offshore opens an even stream to answer the request in the payload
+    public static final byte CHUNKS = 9;               // ship's chunk store changed: '+' or '-' and a key, per record
+
+    public static final byte FLAG_ACK = 0x1;           // PING reply
+    public static final byte FLAG_END_STREAM = 0x2;    // HEADERS/DATA that also half-closes the stream
+    public static final byte FLAG_COMPRESSED = 0x4;    // DATA payload is encoded with the negotiated codec
+    public static final byte FLAG_CHUNK = 0x8;         // DATA payload is one whole chunk the ship may store
+    public static final byte FLAG_CHUNK_REF = 0x10;    // DATA payload is the key of a chunk the ship holds
+
+    public final byte type;
+    public final byte flags;
+    public final int streamId;
+    public final byte[] payload;
+
+    public Frame(byte type, byte flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload == null ? new byte[0] : payload;
+    }
+
+    public static Frame headers(int streamId, String head, boolean endStream) {
+        return new Frame(HEADERS, endStream ? FLAG_END_STREAM : 0, streamId, head.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public static Frame data(int streamId, byte[] buffer, int offset, int length) {
+        byte[] payload = new byte[length];
+        System.arraycopy(buffer, offset, payload, 0, length);
+        return new Frame(DATA, (byte) 0, streamId, payload);
+    }
+
+    public static Frame end(int streamId) {
+        return new Frame(END, (byte) 0, streamId, null);
+    }
+
+    public static Frame rst(int streamId) {
+        return new Frame(RST, (byte) 0, streamId, null);
+    }
+
+    // The request a pushed stream answers; its response follows on the same stream like any other.
+    public static Frame push(int streamId, String request) {
+        return new Frame(PUSH, (byte) 0, streamId, request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public static Frame settings(String settings) {
+        return new Frame(SETTINGS, (byte) 0, 0, settings.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // Credit is counted in DATA bytes before link compression, which is what the receiver buffers.
+    public static Frame windowUpdate(int streamId, int increment) {
+        return new Frame(WINDOW_UPDATE, (byte) 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    public int windowIncrement() {
+        return payload.length < 4 ? 0 : ByteBuffer.wrap(payload).getInt();
+    }
+
+    public static Frame ping(byte flags, byte[] payload) {
+        return new Frame(PING, flags, 0, payload);
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    public String payloadAsString() {
+        return new String(payload, StandardCharsets.ISO_8859_1);
+    }
+
+    // The payload follows from the caller's own array.
+    public static void writeHeader(DataOutputStream out, int length, byte type, byte flags, int streamId)
+            throws IOException {
+        out.writeInt(length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(streamId);
+    }
+
+    // Header and payload appended to buffer.
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(payload.length).put(type).put(flags).putInt(streamId).put(payload);
+    }
+
+    // Fills in a frame header at index, for callers that write the payload first.
+    public static void putHeader(ByteBuffer buffer, int index, int length, byte type, byte flags, int streamId) {
+        buffer.putInt(index, length).put(index + 4, type).put(index + 5, flags).putInt(index + 6, streamId);
+    }
+
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        int streamId = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, flags, streamId, payload);
+    }
+
+    public static String typeName(byte type) {
+        switch (type) {
+            case HEADERS: return "HEADERS";
+            case DATA: return "DATA";
+            case END: return "END";
+            case RST: return "RST";
+            case PING: return "PING";
+            case SETTINGS: return "SETTINGS";
+            case WINDOW_UPDATE: return "WINDOW_UPDATE";
+            case PUSH: return "PUSH";
+            case CHUNKS: return "CHUNKS";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return typeName(type) + "[stream=" + streamId + ", flags=" + flags + ", length=" + payload.length + "]";
+    }
+}
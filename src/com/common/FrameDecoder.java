@@ -0,0 +1,53 @@
+package com.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Incremental frame parser for non-blocking reads: feed whatever arrived, take frames while complete.
+public final class FrameDecoder {
+    private FrameDecoder() {
+    }
+
+    // Returns the next complete frame in buffer (read mode), or null leaving the position untouched.
+    public static Frame next(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Frame.HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < 0 || length > Frame.MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < Frame.HEADER_SIZE + length) {
+            return null;
+        }
+        byte type = buffer.get(start + 4);
+        byte flags = buffer.get(start + 5);
+        int streamId = buffer.getInt(start + 6);
+        byte[] payload = new byte[length];
+        buffer.position(start + Frame.HEADER_SIZE);
+        buffer.get(payload);
+        return new Frame(type, flags, streamId, payload);
+    }
+
+    // Whether a complete frame starts at the buffer position (read mode). Lets callers look at the
+    // header in place, e.g. to hand DATA payloads on without copying them out.
+    public static boolean hasFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Frame.HEADER_SIZE) {
+            return false;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > Frame.MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return buffer.remaining() >= Frame.HEADER_SIZE + length;
+    }
+
+    // Bytes needed to hold the frame whose header starts at the buffer position, or -1 if unknown yet.
+    public static int pendingFrameSize(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        return Frame.HEADER_SIZE + buffer.getInt(buffer.position());
+    }
+}
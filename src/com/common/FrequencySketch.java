@@ -0,0 +1,63 @@
+package com.common;
+
+// Count-min sketch of access frequency with periodic halving (the TinyLFU admission filter).
+// Updates are deliberately racy: a lost increment only makes an estimate slightly low.
+public final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] counters;
+    private final int mask;
+    private final int resetThreshold;
+    private int additions;
+
+    public FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(64, expectedEntries) * 2 - 1) << 1;
+        counters = new int[DEPTH][width];
+        mask = width - 1;
+        resetThreshold = width * 10;
+    }
+
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (counters[i][index] < 15) {
+                counters[i][index]++;
+            }
+        }
+        if (++additions >= resetThreshold) {
+            halve();
+        }
+    }
+
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i][indexOf(hash, i)]);
+        }
+        return min;
+    }
+
+    // Ages all counts so popularity from long ago fades out.
+    private void halve() {
+        additions = 0;
+        for (int[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
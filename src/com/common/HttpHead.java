@@ -0,0 +1,108 @@
+package com.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// The start line and header fields of an HTTP/1.1 message, parsed from raw head bytes.
+public final class HttpHead {
+    private final String startLine;
+    private final List<String[]> fields;
+
+    HttpHead(String startLine, List<String[]> fields) {
+        this.startLine = startLine;
+        this.fields = fields;
+    }
+
+    // head must run up to and including the blank line
+    public static HttpHead parse(byte[] head, int offset, int length) {
+        HttpParser parser = new HttpParser();
+        try {
+            parser.parse(head, offset, length);
+        } catch (IOException e) {
+            // larger than any head we accept: keep what fitted
+        }
+        parser.finish();
+        return parser.toHead();
+    }
+
+    public String startLine() {
+        return startLine;
+    }
+
+    // Status code of a response head, or -1 if the start line is not a status line.
+    public int statusCode() {
+        if (!startLine.startsWith("HTTP/")) {
+            return -1;
+        }
+        int space = startLine.indexOf(' ');
+        if (space < 0 || startLine.length() < space + 4) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(startLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // First value of the named field (case-insensitive), or null.
+    public String get(String name) {
+        for (String[] field : fields) {
+            if (field[0].equalsIgnoreCase(name)) {
+                return field[1];
+            }
+        }
+        return null;
+    }
+
+    public boolean hasToken(String name, String token) {
+        for (String[] field : fields) {
+            if (field[0].equalsIgnoreCase(name)) {
+                for (String value : field[1].split(",")) {
+                    if (value.trim().equalsIgnoreCase(token)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public List<String[]> fields() {
+        return fields;
+    }
+
+    // Copy of raw head bytes with every occurrence of the named field replaced by one new value.
+    public static byte[] withField(byte[] head, String name, String value) {
+        return edited(head, name, name + ": " + value + "\r\n");
+    }
+
+    // Copy of raw head bytes without the named field.
+    public static byte[] withoutField(byte[] head, String name) {
+        return edited(head, name, "");
+    }
+
+    private static byte[] edited(byte[] head, String name, String replacement) {
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        StringBuilder out = new StringBuilder(text.length() + replacement.length() + 2);
+        for (String line : text.split("\r\n")) {
+            if (!line.isEmpty() && !(line.regionMatches(true, 0, name, 0, name.length())
+                    && line.length() > name.length() && line.charAt(name.length()) == ':')) {
+                out.append(line).append("\r\n");
+            }
+        }
+        out.append(replacement).append("\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Index just past the blank line ending the head, or -1 if it has not fully arrived.
+    public static int headEnd(byte[] data, int offset, int length) {
+        for (int i = offset; i + 3 < offset + length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+}
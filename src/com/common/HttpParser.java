@@ -0,0 +1,424 @@
+package com.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Incremental HTTP/1.1 head parser working on raw bytes. Feed it whatever arrived, in any pieces;
+// it stops right after the blank line, so what follows (body, or the next pipelined message) stays
+// with the caller. Fields are kept as offsets into one reused array and read through views, so
+// steady-state parsing allocates nothing. reset() readies the same parser for the next message.
+//
+// Like HttpHead it is tolerant: field lines without a colon are skipped and the start line is taken
+// as it is. Callers check method(), target() or statusCode() for what they need.
+public final class HttpParser {
+    public static final int MAX_HEAD_SIZE = 65536;
+
+    private byte[] head = new byte[1024];
+    private int length;            // head bytes taken so far
+    private int lineStart;
+    private boolean sawStartLine;
+    private boolean complete;
+    private boolean response;
+    // start line parts: method, target, version for requests; version, status, reason for responses
+    private int part1End;
+    private int part2Start;
+    private int part2End;
+    private int part3Start;
+    private int startLineEnd;
+    private int status;
+    // four offsets per field: name start, name end, value start, value end
+    private int[] fields = new int[64];
+    private int fieldCount;
+    private long contentLength;    // -1 when absent, -2 when unusable
+    private boolean transferEncoding;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+
+    public HttpParser() {
+        reset();
+    }
+
+    public void reset() {
+        length = 0;
+        lineStart = 0;
+        sawStartLine = false;
+        complete = false;
+        response = false;
+        part1End = part2Start = part2End = part3Start = startLineEnd = 0;
+        status = -1;
+        fieldCount = 0;
+        contentLength = -1;
+        transferEncoding = false;
+        chunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+    }
+
+    // Takes bytes from buffer up to the end of the head. True once the head is complete, with the
+    // buffer positioned at the first byte after it.
+    public boolean parse(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            int taken = parse(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+            buffer.position(position + taken);
+            return complete;
+        }
+        while (!complete && buffer.hasRemaining()) {
+            append(buffer.get());
+        }
+        return complete;
+    }
+
+    // Takes bytes up to the end of the head and returns how many it took; see isComplete().
+    public int parse(byte[] data, int offset, int count) throws IOException {
+        int i = offset;
+        int end = offset + count;
+        while (!complete && i < end) {
+            append(data[i++]);
+        }
+        return i - offset;
+    }
+
+    // Completes a head that was handed over without its blank line.
+    public void finish() {
+        if (complete) {
+            return;
+        }
+        if (length > lineStart) {
+            endOfLine(length);
+        }
+        complete = true;
+    }
+
+    private void append(byte b) throws IOException {
+        if (length == head.length) {
+            if (length >= MAX_HEAD_SIZE) {
+                throw new IOException("HTTP head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            head = Arrays.copyOf(head, Math.min(MAX_HEAD_SIZE, length * 2));
+        }
+        head[length++] = b;
+        if (b == '\n') {
+            int end = length - 1;
+            if (end > lineStart && head[end - 1] == '\r') {
+                end--;
+            }
+            if (end == lineStart) {
+                if (sawStartLine) {
+                    complete = true;
+                } else {
+                    length = 0; // blank lines before a message, e.g. after a pipelined chunked body
+                    lineStart = 0;
+                }
+                return;
+            }
+            endOfLine(end);
+            lineStart = length;
+        }
+    }
+
+    private void endOfLine(int end) {
+        if (!sawStartLine) {
+            startLine(lineStart, end);
+            sawStartLine = true;
+        } else if (head[lineStart] == ' ' || head[lineStart] == '\t') {
+            continuation(end);
+        } else {
+            field(lineStart, end);
+        }
+    }
+
+    private void startLine(int start, int end) {
+        startLineEnd = end;
+        response = startsWith(start, end, "HTTP/");
+        part1End = indexOf(' ', start, end);
+        if (part1End < 0) {
+            part1End = part2Start = part2End = part3Start = end;
+            return;
+        }
+        part2Start = part1End + 1;
+        part2End = indexOf(' ', part2Start, end);
+        if (part2End < 0) {
+            part2End = part3Start = end;
+        } else {
+            part3Start = part2End + 1;
+        }
+        if (response && part2End - part2Start == 3) {
+            int code = 0;
+            for (int i = part2Start; i < part2End; i++) {
+                int digit = head[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return;
+                }
+                code = code * 10 + digit;
+            }
+            status = code;
+        }
+    }
+
+    private void field(int start, int end) {
+        int colon = indexOf(':', start, end);
+        if (colon <= start) {
+            return;
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isSpace(head[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isSpace(head[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isSpace(head[valueEnd - 1])) {
+            valueEnd--;
+        }
+        if (fieldCount * 4 == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        int index = fieldCount * 4;
+        fields[index] = start;
+        fields[index + 1] = nameEnd;
+        fields[index + 2] = valueStart;
+        fields[index + 3] = valueEnd;
+        fieldCount++;
+        noteFraming(fieldCount - 1);
+    }
+
+    // obs-fold: a line starting with whitespace continues the previous value
+    private void continuation(int end) {
+        if (fieldCount == 0) {
+            return;
+        }
+        int index = (fieldCount - 1) * 4;
+        for (int i = fields[index + 3]; i < lineStart; i++) {
+            head[i] = ' ';
+        }
+        int valueEnd = end;
+        while (valueEnd > lineStart && isSpace(head[valueEnd - 1])) {
+            valueEnd--;
+        }
+        if (valueEnd > lineStart) {
+            fields[index + 3] = valueEnd;
+            noteFraming(fieldCount - 1);
+        }
+    }
+
+    // Fields that decide how the message is framed are read once, while parsing.
+    private void noteFraming(int field) {
+        if (nameIs(field, "Content-Length")) {
+            long value = parseLength(field);
+            contentLength = contentLength == -1 || contentLength == value ? value : -2;
+        } else if (nameIs(field, "Transfer-Encoding")) {
+            transferEncoding = true;
+            chunked = valueEndsWith(field, "chunked");
+        } else if (nameIs(field, "Connection")) {
+            connectionClose |= hasToken(field, "close");
+            connectionKeepAlive |= hasToken(field, "keep-alive");
+        }
+    }
+
+    private long parseLength(int field) {
+        int start = fields[field * 4 + 2];
+        int end = fields[field * 4 + 3];
+        if (start == end || end - start > 18) {
+            return -2;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -2;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isResponse() {
+        return response;
+    }
+
+    // Bytes of the head, blank line included.
+    public int headLength() {
+        return length;
+    }
+
+    public byte[] headBytes() {
+        return Arrays.copyOf(head, length);
+    }
+
+    public String startLine() {
+        return string(0, startLineEnd);
+    }
+
+    public boolean methodIs(String method) {
+        return !response && regionEquals(0, part1End, method, false);
+    }
+
+    public String method() {
+        return response ? "" : string(0, part1End);
+    }
+
+    // Request target as sent, e.g. an absolute URL or host:port for CONNECT.
+    public String target() {
+        return response ? "" : string(part2Start, part2End);
+    }
+
+    // Status code of a response, or -1.
+    public int statusCode() {
+        return status;
+    }
+
+    public boolean isHttp10() {
+        return response ? startsWith(0, part1End, "HTTP/1.0") : startsWith(part3Start, startLineEnd, "HTTP/1.0");
+    }
+
+    // -1 when there is no Content-Length, -2 when it is malformed or given twice with different values.
+    public long contentLength() {
+        return contentLength;
+    }
+
+    public boolean hasTransferEncoding() {
+        return transferEncoding;
+    }
+
+    // Transfer-Encoding ends in chunked.
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    // Whether the connection may carry another message after this one, from the version and Connection.
+    public boolean keepAlive() {
+        return !connectionClose && (!isHttp10() || connectionKeepAlive);
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    // Case-insensitive, without copying the name out.
+    public boolean nameIs(int field, String name) {
+        return regionEquals(fields[field * 4], fields[field * 4 + 1], name, true);
+    }
+
+    public String name(int field) {
+        return string(fields[field * 4], fields[field * 4 + 1]);
+    }
+
+    public String value(int field) {
+        return string(fields[field * 4 + 2], fields[field * 4 + 3]);
+    }
+
+    // Index of the first field with this name, or -1.
+    public int indexOf(String name) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameIs(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String get(String name) {
+        int field = indexOf(name);
+        return field < 0 ? null : value(field);
+    }
+
+    // Whether any field with this name lists token among its comma-separated values.
+    public boolean hasToken(String name, String token) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (nameIs(i, name) && hasToken(i, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasToken(int field, String token) {
+        int i = fields[field * 4 + 2];
+        int end = fields[field * 4 + 3];
+        while (i < end) {
+            int comma = indexOf(',', i, end);
+            int itemEnd = comma < 0 ? end : comma;
+            int start = i;
+            while (start < itemEnd && isSpace(head[start])) {
+                start++;
+            }
+            int stop = itemEnd;
+            while (stop > start && isSpace(head[stop - 1])) {
+                stop--;
+            }
+            if (regionEquals(start, stop, token, true)) {
+                return true;
+            }
+            i = itemEnd + 1;
+        }
+        return false;
+    }
+
+    private boolean valueEndsWith(int field, String suffix) {
+        int end = fields[field * 4 + 3];
+        int start = end - suffix.length();
+        return start >= fields[field * 4 + 2] && regionEquals(start, end, suffix, true);
+    }
+
+    // Appends the field's line as received, "name: value\r\n", to out.
+    public void writeField(int field, ByteBuffer out) {
+        int start = fields[field * 4];
+        out.put(head, start, fields[field * 4 + 3] - start).put((byte) '\r').put((byte) '\n');
+    }
+
+    // A standalone HttpHead with the same start line and fields.
+    public HttpHead toHead() {
+        List<String[]> list = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            list.add(new String[]{name(i), value(i)});
+        }
+        return new HttpHead(startLine(), list);
+    }
+
+    private boolean regionEquals(int start, int end, String text, boolean ignoreCase) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int a = head[start + i];
+            int b = text.charAt(i);
+            if (a != b && (!ignoreCase || (a | 0x20) != (b | 0x20) || !Character.isLetter(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        return end - start >= prefix.length() && regionEquals(start, start + prefix.length(), prefix, false);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (head[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private String string(int start, int end) {
+        return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
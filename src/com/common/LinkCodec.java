@@ -0,0 +1,66 @@
+package com.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A payload codec for DATA frames, negotiated per link connection with SETTINGS.
+// One encoder/decoder pair covers one stream, so the codec's history spans all of its frames.
+public abstract class LinkCodec {
+    private static final Map<String, LinkCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    public static void register(LinkCodec codec) {
+        CODECS.put(codec.name(), codec);
+    }
+
+    public static LinkCodec forName(String name) {
+        return name == null ? null : CODECS.get(name.trim());
+    }
+
+    public abstract String name();
+
+    // Implementations pool their native state, so always release what you take.
+    public abstract Encoder encoder();
+
+    public abstract Decoder decoder();
+
+    public interface Encoder {
+        // Room the encoded form of length input bytes can take at most.
+        int maxEncodedLength(int length);
+
+        // Appends the encoded bytes to out, which must have maxEncodedLength(length) bytes left.
+        // Everything passed in so far is decodable from what has been written.
+        void encode(byte[] data, int offset, int length, ByteBuffer out);
+
+        void release();
+    }
+
+    public interface Decoder {
+        byte[] decode(byte[] data) throws IOException;
+
+        void release();
+    }
+
+    // Compressing these again only burns CPU: media and archives are already dense,
+    // and anything with a Content-Encoding has been compressed by the origin.
+    public static boolean isCompressible(HttpHead response) {
+        String encoding = response.get("Content-Encoding");
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+            return false;
+        }
+        String type = response.get("Content-Type");
+        if (type == null) {
+            return true;
+        }
+        type = type.toLowerCase();
+        return !(type.startsWith("image/") && !type.startsWith("image/svg")
+                || type.startsWith("video/") || type.startsWith("audio/") || type.startsWith("font/woff")
+                || type.contains("zip") || type.contains("compressed") || type.contains("octet-stream")
+                || type.contains("x-7z") || type.contains("x-rar") || type.contains("x-bzip"));
+    }
+}
@@ -0,0 +1,230 @@
+package com.common;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logging. Callers only check the level and drop a record into a bounded lock-free ring;
+// one background thread formats the records and writes them out in batches, errors and warnings to
+// stderr and the rest to stdout. When the ring is full records are dropped and counted rather than
+// holding up the caller.
+//
+// -Dadpump.logLevel=error|warn|info|debug (default info)
+// -Dadpump.logBodyBytes=256   how much of a head or body a debug dump shows
+//
+// Records carry key/value fields after the message: Log.info("fetched", "host", host, "bytes", n)
+// prints "fetched host=example.com bytes=1234".
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("adpump.logLevel", "info"));
+    private static final int BODY_BYTES = Integer.getInteger("adpump.logBodyBytes", 256);
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    // Bounded multi-producer ring: a slot is free for position p when its sequence is p, and holds a
+    // record for the writer when its sequence is p + 1.
+    private static final Record[] slots = new Record[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;  // writer thread only
+    private static final LongAdder dropped = new LongAdder();
+    private static long reportedDrops;  // writer thread only
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    private static final class Record {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Object[] fields;
+
+        Record(Level level, String message, Object[] fields) {
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+
+    public static boolean enabled(Level level) {
+        return level.ordinal() <= LEVEL.ordinal();
+    }
+
+    // Guard for debug output whose message is expensive to build.
+    public static boolean debug() {
+        return enabled(Level.DEBUG);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, NO_FIELDS);
+    }
+
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, NO_FIELDS);
+    }
+
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, NO_FIELDS);
+    }
+
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, NO_FIELDS);
+    }
+
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    // Head or body text for a debug dump, cut to -Dadpump.logBodyBytes.
+    public static String body(byte[] data, int offset, int length) {
+        int shown = Math.min(length, BODY_BYTES);
+        String text = new String(data, offset, shown, StandardCharsets.ISO_8859_1);
+        return shown < length ? text + "... (" + length + " bytes)" : text;
+    }
+
+    public static String body(String text) {
+        return text.length() <= BODY_BYTES ? text : text.substring(0, BODY_BYTES) + "... (" + text.length() + " chars)";
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    private static void log(Level level, String message, Object[] fields) {
+        if (!enabled(level)) {
+            return;
+        }
+        Record record = new Record(level, message, fields);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = record;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment(); // full: the writer is behind
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private static Record poll() {
+        int index = (int) (head & MASK);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return record;
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(2_000_000);
+            }
+        }
+    }
+
+    // Writes out everything queued so far; false if there was nothing.
+    private static synchronized boolean drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        Record record;
+        int count = 0;
+        while ((record = poll()) != null) {
+            format(record, record.level.ordinal() <= Level.WARN.ordinal() ? err : out);
+            count++;
+            if (out.length() + err.length() > 64 * 1024) {
+                flush(out, err);
+            }
+        }
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            err.append(Instant.now()).append(" WARN  [log-writer] dropped ").append(drops - reportedDrops)
+                    .append(" log records while the writer was behind\n");
+            reportedDrops = drops;
+        }
+        flush(out, err);
+        return count > 0;
+    }
+
+    private static void flush(StringBuilder out, StringBuilder err) {
+        write(System.out, out);
+        write(System.err, err);
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+
+    private static void format(Record record, StringBuilder out) {
+        out.append(Instant.ofEpochMilli(record.time)).append(' ').append(record.level);
+        for (int i = record.level.name().length(); i < 5; i++) {
+            out.append(' ');
+        }
+        out.append(" [").append(record.thread).append("] ").append(record.message);
+        Object[] fields = record.fields;
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            out.append(' ').append(fields[i]).append('=');
+            String value = String.valueOf(fields[i + 1]);
+            if (value.indexOf(' ') >= 0 || value.indexOf('\n') >= 0 || value.isEmpty()) {
+                out.append('"').append(value.replace("\"", "\\\"").replace("\r", "\\r").replace("\n", "\\n")).append('"');
+            } else {
+                out.append(value);
+            }
+        }
+        out.append('\n');
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + "; using info");
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.common;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+// Process-wide counters, gauges and histograms for the hot paths, exported in the Prometheus text
+// format from a loopback-only /metrics endpoint. Recording never locks: counters are LongAdders and
+// histograms bump one slot of an atomic array.
+//
+// A series is named with its labels, e.g. metric_name{direction="in"}. Series sharing a base name
+// share the HELP and TYPE lines.
+public final class Metrics {
+    private static final List<Series> SERIES = new ArrayList<>(); // guarded by itself; registration is rare
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String series, String help) {
+        Counter counter = new Counter();
+        register(new Series(series, help, "counter", counter));
+        return counter;
+    }
+
+    // A counter kept elsewhere, read at scrape time.
+    public static void counter(String series, String help, LongSupplier value) {
+        register(new Series(series, help, "counter", value));
+    }
+
+    public static void gauge(String series, String help, DoubleSupplier value) {
+        register(new Series(series, help, "gauge", value));
+    }
+
+    // Recorded in nanoseconds, exported in seconds, with buckets from about 1 microsecond to 69 seconds.
+    public static Histogram latency(String series, String help) {
+        Histogram histogram = new Histogram(1e-9, 10, 36);
+        register(new Series(series, help, "histogram", histogram));
+        return histogram;
+    }
+
+    // Recorded and exported in bytes, with buckets from 64 bytes to 4 GB.
+    public static Histogram bytes(String series, String help) {
+        Histogram histogram = new Histogram(1, 6, 32);
+        register(new Series(series, help, "histogram", histogram));
+        return histogram;
+    }
+
+    private static void register(Series series) {
+        synchronized (SERIES) {
+            SERIES.add(series);
+        }
+    }
+
+    // Serves /metrics on 127.0.0.1:port from one daemon thread.
+    public static void serve(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            Log.info("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Log.warn("Metrics endpoint disabled: " + e.getMessage());
+        }
+    }
+
+    public static String scrape() {
+        List<Series> snapshot;
+        synchronized (SERIES) {
+            snapshot = new ArrayList<>(SERIES);
+        }
+        StringBuilder out = new StringBuilder(4096);
+        List<String> described = new ArrayList<>();
+        for (Series series : snapshot) {
+            if (!described.contains(series.baseName)) {
+                described.add(series.baseName);
+                out.append("# HELP ").append(series.baseName).append(' ').append(series.help).append('\n');
+                out.append("# TYPE ").append(series.baseName).append(' ').append(series.type).append('\n');
+            }
+            series.write(out);
+        }
+        return out.toString();
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Log-linear buckets in the style of HdrHistogram: eight per power of two, so any recorded value
+    // is known to within 12.5%. Bucket i holds values in (lower(i), lower(i + 1)], which makes every
+    // power of two an exact Prometheus bucket boundary.
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final double unit;       // exported value of one recorded unit
+        private final int firstExponent; // exported le boundaries are 2^firstExponent .. 2^lastExponent
+        private final int lastExponent;
+
+        Histogram(double unit, int firstExponent, int lastExponent) {
+            this.unit = unit;
+            this.firstExponent = firstExponent;
+            this.lastExponent = lastExponent;
+        }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        // Upper bound of the bucket holding the q-th value (0..1) in recorded units, or 0 if empty.
+        public long quantile(double q) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return upper(i);
+                }
+            }
+            return 0;
+        }
+
+        static int bucket(long value) {
+            long x = Math.max(0, value - 1);
+            if (x < SUB_COUNT) {
+                return (int) x;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(x);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((x >>> (exponent - SUB_BITS)) - SUB_COUNT);
+        }
+
+        // Largest value that lands in bucket i.
+        static long upper(int i) {
+            if (i < SUB_COUNT - 1) {
+                return i + 1;
+            }
+            int next = i + 1;
+            int exponent = next / SUB_COUNT + SUB_BITS - 1;
+            long lower = (long) (SUB_COUNT + next % SUB_COUNT) << (exponent - SUB_BITS);
+            return lower; // bucket i ends where bucket i + 1 begins, values being shifted by one
+        }
+
+        void write(StringBuilder out, String baseName, String labels) {
+            long cumulative = 0;
+            int bucket = 0;
+            for (int exponent = firstExponent; exponent <= lastExponent; exponent++) {
+                long boundary = 1L << exponent;
+                int end = bucket(boundary);
+                for (; bucket <= end; bucket++) {
+                    cumulative += counts.get(bucket);
+                }
+                out.append(baseName).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("le=\"").append(number(boundary * unit)).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(baseName).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                    .append("le=\"+Inf\"} ").append(count()).append('\n');
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(baseName).append("_sum").append(suffix).append(' ').append(number(sum.sum() * unit)).append('\n');
+            out.append(baseName).append("_count").append(suffix).append(' ').append(count()).append('\n');
+        }
+    }
+
+    private static final class Series {
+        final String name;
+        final String baseName;
+        final String labels;   // inside the braces, or empty
+        final String help;
+        final String type;
+        final Object source;
+
+        Series(String name, String help, String type, Object source) {
+            int brace = name.indexOf('{');
+            this.name = name;
+            this.baseName = brace < 0 ? name : name.substring(0, brace);
+            this.labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+            this.help = help;
+            this.type = type;
+            this.source = source;
+        }
+
+        void write(StringBuilder out) {
+            if (source instanceof Counter) {
+                out.append(name).append(' ').append(((Counter) source).get()).append('\n');
+            } else if (source instanceof LongSupplier) {
+                out.append(name).append(' ').append(((LongSupplier) source).getAsLong()).append('\n');
+            } else if (source instanceof DoubleSupplier) {
+                out.append(name).append(' ').append(number(((DoubleSupplier) source).getAsDouble())).append('\n');
+            } else {
+                ((Histogram) source).write(out, baseName, labels);
+            }
+        }
+    }
+}
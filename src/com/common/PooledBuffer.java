@@ -0,0 +1,64 @@
+package com.common;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+// A buffer on loan from BufferPool. Release it exactly once; a handle that is dropped without
+// release is reported as a leak when leak detection is tracking it.
+public final class PooledBuffer {
+    private ByteBuffer buffer;
+    private final Leak leak;          // null unless this loan is tracked
+    private final Cleaner.Cleanable cleanable;
+
+    PooledBuffer(ByteBuffer buffer, boolean track) {
+        this.buffer = buffer;
+        if (track) {
+            leak = new Leak(buffer, new Throwable("Buffer acquired here"));
+            cleanable = BufferPool.CLEANER.register(this, leak);
+        } else {
+            leak = null;
+            cleanable = null;
+        }
+    }
+
+    public ByteBuffer buffer() {
+        if (buffer == null) {
+            throw new IllegalStateException("Pooled buffer used after release");
+        }
+        return buffer;
+    }
+
+    public void release() {
+        ByteBuffer released = buffer;
+        if (released == null) {
+            Log.warn("Pooled buffer released twice");
+            return;
+        }
+        buffer = null;
+        if (leak != null) {
+            leak.released = true;
+            cleanable.clean();
+        }
+        BufferPool.recycle(released);
+    }
+
+    // Runs when the handle became unreachable, or on release. Must not reference the handle.
+    private static final class Leak implements Runnable {
+        private final ByteBuffer buffer;
+        private final Throwable origin;
+        volatile boolean released;
+
+        Leak(ByteBuffer buffer, Throwable origin) {
+            this.buffer = buffer;
+            this.origin = origin;
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                BufferPool.reportLeak(origin);
+                BufferPool.recycle(buffer); // nobody can reach it any more, so it is safe to reuse
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.common;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+// Identity of a GET for request coalescing: the normalized URL plus the request fields that
+// responses commonly vary on. Requests with credentials or conditions of their own are never shared.
+public final class RequestKey {
+    private static final String[] VARY_FIELDS = {"Accept", "Accept-Encoding", "Accept-Language"};
+
+    private RequestKey() {
+    }
+
+    // Lower-case scheme and host, no default port, no fragment, "/" for an empty path.
+    public static String normalize(String url) {
+        try {
+            URI uri = new URI(url);
+            String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+            String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+            int port = uri.getPort();
+            if (port == ("https".equals(scheme) ? 443 : 80)) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+            return scheme + "://" + host + (port == -1 ? "" : ":" + port) + path + query;
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+    // Key for coalescing this request, or null if it must go to the origin on its own.
+    public static String of(String url, HttpHead request) {
+        if (request != null) {
+            if (request.get("Authorization") != null || request.get("Cookie") != null || request.get("Range") != null
+                    || request.get("If-None-Match") != null || request.get("If-Modified-Since") != null) {
+                return null;
+            }
+            CacheControl control = CacheControl.parse(request);
+            if (control.noCache || control.noStore) {
+                return null;
+            }
+        }
+        StringBuilder key = new StringBuilder(normalize(url));
+        if (request != null) {
+            for (String field : VARY_FIELDS) {
+                String value = request.get(field);
+                if (value != null) {
+                    key.append('\n').append(field).append(':').append(value);
+                }
+            }
+        }
+        return key.toString();
+    }
+}
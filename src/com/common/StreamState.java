@@ -0,0 +1,17 @@
+package com.common;
+
+// Lifecycle of a stream on the link, seen from one endpoint.
+public enum StreamState {
+    OPEN,
+    HALF_CLOSED_LOCAL,   // we sent END, peer may still send
+    HALF_CLOSED_REMOTE,  // peer sent END, we may still send
+    CLOSED;
+
+    public StreamState onLocalEnd() {
+        return this == HALF_CLOSED_REMOTE || this == CLOSED ? CLOSED : HALF_CLOSED_LOCAL;
+    }
+
+    public StreamState onRemoteEnd() {
+        return this == HALF_CLOSED_LOCAL || this == CLOSED ? CLOSED : HALF_CLOSED_REMOTE;
+    }
+}
@@ -0,0 +1,184 @@
+package com.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary trace of browser requests, recorded by the ship (-Dadpump.traceFile) and replayed by
+// com.bench.Replay. A magic and a version, then one record per finished request, every number a
+// varint: start relative to the previous record's start in microseconds (zigzag, since requests finish
+// out of order), method, target, duration in microseconds, request body bytes and response body bytes.
+// A target is the index of one seen before, or the count of those seen followed by a new one in
+// UTF-8, so a page's repeated hosts and URLs cost a byte or two each.
+public final class Trace {
+    public static final int GET = 0;
+    public static final int CONNECT = 1;
+    public static final int OTHER = 2;
+    private static final int MAGIC = 0x41505452; // "APTR"
+    private static final int VERSION = 1;
+    private static final int MAX_TARGET = 8192;
+
+    private Trace() {
+    }
+
+    public static int method(String name) {
+        return name.equals("GET") ? GET : name.equals("CONNECT") ? CONNECT : OTHER;
+    }
+
+    public static final class Record {
+        public final long startMicros;   // since the trace started
+        public final int method;
+        public final String target;      // absolute URL for GET, host:port for CONNECT
+        public final long durationMicros;
+        public final long requestBytes;  // upload after the head; tunnel bytes for CONNECT
+        public final long responseBytes; // download after the head; tunnel bytes for CONNECT
+
+        public Record(long startMicros, int method, String target, long durationMicros, long requestBytes,
+                      long responseBytes) {
+            this.startMicros = startMicros;
+            this.method = method;
+            this.target = target;
+            this.durationMicros = durationMicros;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+        }
+    }
+
+    // Not thread safe; one writer thread owns it.
+    public static final class Writer implements Closeable {
+        private final OutputStream out;
+        private final Map<String, Integer> targets = new HashMap<>();
+        private long lastStart;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new BufferedOutputStream(out, 65536);
+            writeVarint(MAGIC);
+            writeVarint(VERSION);
+        }
+
+        public void write(Record record) throws IOException {
+            long delta = record.startMicros - lastStart;
+            lastStart = record.startMicros;
+            writeVarint(delta << 1 ^ delta >> 63);
+            writeVarint(record.method);
+            Integer index = targets.get(record.target);
+            if (index != null) {
+                writeVarint(index);
+            } else {
+                writeVarint(targets.size());
+                byte[] target = record.target.getBytes(StandardCharsets.UTF_8);
+                writeVarint(target.length);
+                out.write(target);
+                targets.put(record.target, targets.size());
+            }
+            writeVarint(record.durationMicros);
+            writeVarint(record.requestBytes);
+            writeVarint(record.responseBytes);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final InputStream in;
+        private final List<String> targets = new ArrayList<>();
+        private long lastStart;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedInputStream(in, 65536);
+            if (readVarint() != MAGIC) {
+                throw new IOException("Not a request trace");
+            }
+            long version = readVarint();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+        }
+
+        // The next record, or null at the end of the trace. A record cut off by a crash ends it too.
+        public Record next() throws IOException {
+            int first = in.read();
+            if (first == -1) {
+                return null;
+            }
+            try {
+                long zigzag = readVarint(first);
+                lastStart += zigzag >>> 1 ^ -(zigzag & 1);
+                int method = (int) readVarint();
+                int index = (int) readVarint();
+                String target;
+                if (index < targets.size()) {
+                    target = targets.get(index);
+                } else {
+                    int length = (int) readVarint();
+                    if (index != targets.size() || length > MAX_TARGET) {
+                        throw new IOException("Corrupt trace");
+                    }
+                    byte[] bytes = in.readNBytes(length);
+                    if (bytes.length < length) {
+                        return null;
+                    }
+                    target = new String(bytes, StandardCharsets.UTF_8);
+                    targets.add(target);
+                }
+                return new Record(lastStart, method, target, readVarint(), readVarint(), readVarint());
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private long readVarint() throws IOException {
+            int first = in.read();
+            if (first == -1) {
+                throw new EOFException();
+            }
+            return readVarint(first);
+        }
+
+        private long readVarint(int b) throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                if (shift > 56) {
+                    throw new IOException("Corrupt trace");
+                }
+                b = in.read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+// Attached to a SelectionKey; the event loop calls it when the channel is ready.
+interface ChannelHandler {
+    void handle(SelectionKey key) throws IOException;
+
+    // Called when the loop shuts down; must release the channel.
+    void close();
+
+    // Called by the loop when handle() throws; must release the channel and tell whoever is waiting
+    // on it, which for a stream means its ship.
+    default void failed(Exception cause) {
+        close();
+    }
+}
@@ -0,0 +1,45 @@
+package com.server;
+
+import com.common.Chunks;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What one ship's chunk store holds, as far as the ship has told us through CHUNKS frames. Shared by
+// all of the ship's link connections, which may sit on different loops. Only chunks the ship announced
+// after storing them are ever referenced, so a reference never overtakes the chunk it names; the ship
+// keeps chunks it evicted a while after announcing it, for references already on their way.
+final class ChunkIndex {
+    private static final int MAX_KEYS = 1 << 20;
+    private static final int RECORD = 1 + Chunks.KEY_SIZE;
+
+    private final Set<Chunks.Key> keys = ConcurrentHashMap.newKeySet();
+    volatile long lastUsed = System.currentTimeMillis();
+
+    boolean contains(Chunks.Key key) {
+        return keys.contains(key);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    // A CHUNKS payload: records of '+' (stored) or '-' (evicted) and a key, in the order it happened.
+    void apply(byte[] payload) {
+        ByteBuffer records = ByteBuffer.wrap(payload);
+        while (records.remaining() >= RECORD) {
+            byte op = records.get();
+            Chunks.Key key = Chunks.Key.read(records);
+            if (op == '+') {
+                if (keys.size() >= MAX_KEYS) {
+                    keys.clear(); // far beyond any store we expect; forgetting only costs literal bytes
+                }
+                keys.add(key);
+            } else {
+                keys.remove(key);
+            }
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+}
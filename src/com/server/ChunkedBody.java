@@ -0,0 +1,39 @@
+package com.server;
+
+import com.common.Chunks;
+import com.common.LinkCodec;
+
+// A response body on its way to a ship that keeps a chunk store. Bytes are gathered until the next
+// content-defined boundary, and each whole chunk goes out as a reference when the ship already holds
+// it, or as a literal it can store. At most one chunk is held back.
+final class ChunkedBody {
+    // Smaller bodies gain nothing: their single chunk would rarely cut the same way twice
+    static final long MIN_BODY = 2 * Chunks.MIN_CHUNK;
+
+    private final Chunks.Cutter cutter = new Chunks.Cutter();
+    private final byte[] chunk = new byte[Chunks.MAX_CHUNK];
+    private int length;
+
+    void write(ShipConnection ship, ServerStream stream, LinkCodec.Encoder encoder, byte[] data, int offset, int count) {
+        while (count > 0) {
+            int cut = cutter.next(data, offset, count);
+            int taken = cut < 0 ? count : cut;
+            System.arraycopy(data, offset, chunk, length, taken);
+            length += taken;
+            offset += taken;
+            count -= taken;
+            if (cut >= 0) {
+                ship.sendChunk(stream, encoder, chunk, length, true);
+                length = 0;
+            }
+        }
+    }
+
+    // The body ended; what is left is the last chunk, too short to be worth storing if under the minimum.
+    void finish(ShipConnection ship, ServerStream stream, LinkCodec.Encoder encoder) {
+        if (length > 0) {
+            ship.sendChunk(stream, encoder, chunk, length, length >= Chunks.MIN_CHUNK);
+            length = 0;
+        }
+    }
+}
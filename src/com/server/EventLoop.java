@@ -0,0 +1,201 @@
+package com.server;
+
+import com.common.BufferPool;
+import com.common.Frame;
+import com.common.Log;
+import com.common.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread. Every channel registered here, ship side and origin side alike,
+// is only ever touched from this thread, so handlers need no locking.
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final ArrayDeque<Runnable> flushes = new ArrayDeque<>();  // loop thread only
+    private volatile boolean running = true;
+    // Shared by every origin read on this loop; each read is fully handled before the next starts
+    private final PooledBuffer readBuffer = BufferPool.acquire(Frame.MAX_DATA);
+    private final byte[] scratch = new byte[Frame.MAX_DATA];
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void join() throws InterruptedException {
+        thread.join();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Run a task on the loop thread; safe to call from any thread.
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Loop thread only. Cleared; must not be held across a return to the loop.
+    ByteBuffer readBuffer() {
+        return readBuffer.buffer().clear();
+    }
+
+    // Loop thread only. Heap copy of what was read, for code that works on arrays.
+    byte[] scratch() {
+        return scratch;
+    }
+
+    // Loop thread only. Runs once this iteration's events, tasks and timers are done, so everything a
+    // connection queued in between leaves in one gathering write.
+    void flushLater(Runnable flush) {
+        flushes.add(flush);
+    }
+
+    // Loop thread only.
+    Timer schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(task, System.currentTimeMillis() + delayMillis);
+        timers.add(timer);
+        return timer;
+    }
+
+    // Loop thread only.
+    SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    int connectionCount() {
+        return selector.keys().size();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(nextTimeout());
+            } catch (IOException e) {
+                Log.warn("Selector error on " + thread.getName() + ": " + e.getMessage());
+                continue;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ChannelHandler handler = (ChannelHandler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    Log.warn("Channel error: " + e.getMessage());
+                    handler.failed(e);
+                } catch (RuntimeException e) {
+                    Log.error("Unexpected error in handler: " + e);
+                    handler.failed(e);
+                }
+            }
+            runTasks();
+            runTimers();
+            runFlushes();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((ChannelHandler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.warn("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private long nextTimeout() {
+        if (!tasks.isEmpty()) {
+            return 1;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0; // block until woken
+        }
+        return Math.max(1, next.deadline - System.currentTimeMillis());
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Unexpected error in loop task: " + e);
+            }
+        }
+    }
+
+    private void runFlushes() {
+        Runnable flush;
+        while ((flush = flushes.poll()) != null) {
+            try {
+                flush.run();
+            } catch (RuntimeException e) {
+                Log.error("Unexpected error flushing: " + e);
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.currentTimeMillis();
+        while (!timers.isEmpty() && timers.peek().deadline <= now) {
+            Timer timer = timers.poll();
+            if (!timer.cancelled) {
+                try {
+                    timer.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Unexpected error in timer: " + e);
+                }
+            }
+        }
+    }
+
+    static final class Timer implements Comparable<Timer> {
+        private final Runnable task;
+        private final long deadline;
+        private boolean cancelled;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.server;
+
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.LinkCodec;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A GET answered from another stream's origin fetch. Lives on its own ship's loop like any stream.
+// Body chunks from the flight wait in our own queue until our ship gives window for them.
+class FollowerStream extends ServerStream {
+    private final OriginFlight flight;
+    private LinkCodec.Encoder encoder;  // this ship's codec, which may differ from the leader's
+    private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+    private int queuedOffset;           // bytes of the first queued chunk already sent
+    private boolean ended;              // END goes out once the queue is empty
+    // Body bytes handed to us and not sent yet; the flight charges it on the leader's loop
+    final AtomicLong backlog = new AtomicLong();
+
+    FollowerStream(ShipConnection ship, int id, OriginFlight flight) {
+        super(id, ship);
+        this.flight = flight;
+    }
+
+    void deliverHead(byte[] head, HttpHead parsed) {
+        if (isClosed()) {
+            return;
+        }
+        if (sendHead(head, parsed)) {
+            encoder = ship.encoderFor(parsed);
+        }
+    }
+
+    void deliverBody(byte[] chunk) {
+        if (!isClosed()) {
+            queued.add(chunk);
+            pump();
+        }
+    }
+
+    void deliverEnd() {
+        if (!isClosed()) {
+            ended = true;
+            pump();
+        }
+    }
+
+    void deliverResponse(byte[] head, byte[] body) {
+        if (!isClosed()) {
+            sendResponse(head, body);
+        }
+    }
+
+    void deliverResponse(byte[] response) {
+        if (!isClosed()) {
+            ship.sendResponse(id, response);
+            localEnd();
+        }
+    }
+
+    void deliverReset() {
+        if (!isClosed()) {
+            ship.resetStream(this);
+        }
+    }
+
+    // Sends queued body as far as the window allows, like ServerStream.sendResponse.
+    private void pump() {
+        while (!queued.isEmpty() && sendWindow > 0 && !isClosed()) {
+            byte[] chunk = queued.peek();
+            int length = Math.min(Frame.MAX_DATA, chunk.length - queuedOffset);
+            ship.sendData(this, encoder, chunk, queuedOffset, length);
+            queuedOffset += length;
+            backlog.addAndGet(-length);
+            if (queuedOffset == chunk.length) {
+                queued.poll();
+                queuedOffset = 0;
+            }
+        }
+        if (isClosed() || !queued.isEmpty()) {
+            return;
+        }
+        if (ended) {
+            sendEnd(encoder);
+            localEnd();
+        } else if (sendWindow - backlog.get() > 0) {
+            flight.followerDrained();
+        }
+    }
+
+    // Our ship caught up; send what waited, and the leader may be waiting on us.
+    @Override
+    void onWindowOpen() {
+        pump();
+        flight.followerReady();
+    }
+
+    @Override
+    void close() {
+        if (encoder != null) {
+            encoder.release();
+            encoder = null;
+        }
+        queued.clear();
+        flight.leave(this);
+    }
+}
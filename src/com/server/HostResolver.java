@@ -0,0 +1,196 @@
+package com.server;
+
+import com.common.Log;
+import com.common.Metrics;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+// Name cache in front of the blocking system resolver, shared by every loop. An answer is fresh for
+// ttlMs; a host still asked for in the last quarter of that is looked up again in the background,
+// so busy hosts never expire. Past the TTL an answer is still served for staleMs while a refresh
+// runs, and kept if the refresh fails. Unknown hosts are remembered for negativeTtlMs. Concurrent
+// lookups of one host share a single query.
+//
+// The JDK does not expose record TTLs, so the TTLs are ours (-Dadpump.dnsTtl, -Dadpump.dnsNegativeTtl
+// and -Dadpump.dnsStale, in seconds). -Dadpump.dnsHosts=ads.example.com=127.0.0.1,... answers the
+// listed names locally without asking DNS, for tests against a local origin.
+final class HostResolver {
+    private static final int MAX_ENTRIES = 10000;
+    private static final Metrics.Counter HITS = Metrics.counter("adpump_dns_lookups_total{result=\"hit\"}",
+            "Host name lookups by how the cache answered them.");
+    private static final Metrics.Counter STALE = Metrics.counter("adpump_dns_lookups_total{result=\"stale\"}",
+            "Host name lookups by how the cache answered them.");
+    private static final Metrics.Counter NEGATIVE = Metrics.counter("adpump_dns_lookups_total{result=\"negative\"}",
+            "Host name lookups by how the cache answered them.");
+    private static final Metrics.Counter MISSES = Metrics.counter("adpump_dns_lookups_total{result=\"miss\"}",
+            "Host name lookups by how the cache answered them.");
+
+    interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    private final Lookup lookup;
+    private final Executor executor;
+    private final LongSupplier clock; // milliseconds
+    private final long ttlMs;
+    private final long staleMs;
+    private final long negativeTtlMs;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<InetAddress>> queries = new ConcurrentHashMap<>();
+
+    HostResolver(Lookup lookup, Executor executor, long ttlMs, long staleMs, long negativeTtlMs) {
+        this(lookup, executor, System::currentTimeMillis, ttlMs, staleMs, negativeTtlMs);
+    }
+
+    HostResolver(Lookup lookup, Executor executor, LongSupplier clock, long ttlMs, long staleMs, long negativeTtlMs) {
+        this.lookup = lookup;
+        this.executor = executor;
+        this.clock = clock;
+        this.ttlMs = ttlMs;
+        this.staleMs = staleMs;
+        this.negativeTtlMs = negativeTtlMs;
+    }
+
+    // One answer per name; a null address records a failed lookup.
+    private static final class Entry {
+        final InetAddress address;
+        final UnknownHostException failure;
+        final long refreshAt;   // asked for after this, the name is looked up again in the background
+        final long expiresAt;
+        final long staleUntil;
+
+        Entry(InetAddress address, UnknownHostException failure, long refreshAt, long expiresAt, long staleUntil) {
+            this.address = address;
+            this.failure = failure;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    CompletableFuture<InetAddress> resolve(String host) {
+        String name = host.toLowerCase(Locale.ROOT);
+        long now = clock.getAsLong();
+        Entry entry = entries.get(name);
+        if (entry != null && now < entry.expiresAt) {
+            if (entry.address == null) {
+                NEGATIVE.inc();
+                return CompletableFuture.failedFuture(entry.failure);
+            }
+            HITS.inc();
+            if (now >= entry.refreshAt) {
+                query(name);
+            }
+            return CompletableFuture.completedFuture(entry.address);
+        }
+        if (entry != null && entry.address != null && now < entry.staleUntil) {
+            STALE.inc();
+            query(name);
+            return CompletableFuture.completedFuture(entry.address);
+        }
+        MISSES.inc();
+        return query(name);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // Starts a lookup unless one for the name is already running, and returns the running one.
+    private CompletableFuture<InetAddress> query(String name) {
+        CompletableFuture<InetAddress> created = new CompletableFuture<>();
+        CompletableFuture<InetAddress> running = queries.putIfAbsent(name, created);
+        if (running != null) {
+            return running;
+        }
+        try {
+            executor.execute(() -> runQuery(name, created));
+        } catch (RuntimeException e) {
+            queries.remove(name, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private void runQuery(String name, CompletableFuture<InetAddress> query) {
+        InetAddress address = null;
+        UnknownHostException failure = null;
+        try {
+            address = lookup.lookup(name)[0];
+        } catch (UnknownHostException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new UnknownHostException(name + ": " + e);
+        }
+        long now = clock.getAsLong();
+        if (address != null) {
+            store(name, new Entry(address, null, now + ttlMs * 3 / 4, now + ttlMs, now + ttlMs + staleMs));
+        } else {
+            Entry previous = entries.get(name);
+            if (previous != null && previous.address != null && now < previous.staleUntil) {
+                // Keep serving the old answer rather than failing a host that worked; try again later
+                store(name, new Entry(previous.address, null, now + negativeTtlMs,
+                        Math.min(previous.staleUntil, now + negativeTtlMs), previous.staleUntil));
+            } else {
+                store(name, new Entry(null, failure, Long.MAX_VALUE, now + negativeTtlMs, now + negativeTtlMs));
+            }
+        }
+        queries.remove(name, query);
+        if (address != null) {
+            query.complete(address);
+        } else {
+            query.completeExceptionally(failure);
+        }
+    }
+
+    private void store(String name, Entry entry) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(name)) {
+            long now = clock.getAsLong();
+            entries.values().removeIf(old -> now >= old.staleUntil);
+            if (entries.size() >= MAX_ENTRIES) {
+                entries.clear(); // every name is in use; start over rather than grow without bound
+            }
+        }
+        entries.put(name, entry);
+    }
+
+    // Answers the given names locally and everything else through fallback.
+    static Lookup stub(Map<String, InetAddress> hosts, Lookup fallback) {
+        if (hosts.isEmpty()) {
+            return fallback;
+        }
+        return host -> {
+            InetAddress address = hosts.get(host.toLowerCase(Locale.ROOT));
+            return address != null ? new InetAddress[]{address} : fallback.lookup(host);
+        };
+    }
+
+    // "ads.example.com=127.0.0.1,cdn.example.net=10.0.0.7" style fixed answers.
+    static Map<String, InetAddress> parseHosts(String spec) {
+        Map<String, InetAddress> hosts = new HashMap<>();
+        for (String item : spec.split(",")) {
+            String[] pair = item.trim().split("=", 2);
+            if (pair.length < 2 || pair[0].isEmpty()) {
+                if (!item.isBlank()) {
+                    Log.warn("Ignoring DNS stub entry '" + item.trim() + "'");
+                }
+                continue;
+            }
+            try {
+                // An address literal, so this never goes to DNS
+                hosts.put(pair[0].trim().toLowerCase(Locale.ROOT), InetAddress.getByName(pair[1].trim()));
+            } catch (UnknownHostException e) {
+                Log.warn("Ignoring DNS stub entry '" + item.trim() + "': " + e.getMessage());
+            }
+        }
+        return hosts;
+    }
+}
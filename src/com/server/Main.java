@@ -1,7 +1,14 @@
 package com.server;
 
+import com.common.Metrics;
+
 public class Main {
     public static void main(String[] args) {
+        // -Dadpump.metricsPort=9102 serves Prometheus metrics on loopback (0 disables)
+        int metricsPort = Integer.getInteger("adpump.metricsPort", 9102);
+        if (metricsPort > 0) {
+            Metrics.serve(metricsPort);
+        }
         new OffshoreServer();
     }
 }
@@ -1,250 +1,330 @@
 package com.server;
 
+import com.common.BufferPool;
+import com.common.CacheControl;
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.HttpParser;
+import com.common.Log;
+import com.common.Metrics;
+import com.common.RequestKey;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class OffshoreServer {
-    private ServerSocket serverSocket;
-    private int port = 8080;
-    private PrintWriter out;
-    private BufferedReader in;
-    private OutputStream rawOut;
-    private InputStream rawIn;
-    private Socket clientSocket;
+    static final String BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 23\r\n" +
+            "\r\n" +
+            "Failed to fetch webpage";
+    static final String GATEWAY_TIMEOUT = "HTTP/1.1 504 Gateway Timeout\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 24\r\n" +
+            "\r\n" +
+            "Gateway timeout occurred";
+    static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: 11\r\n" +
+            "\r\n" +
+            "Invalid URL";
 
-    public OffshoreServer() {
-        System.setProperty("http.keepAlive", "true");
-        System.setProperty("http.maxConnections", "10");
-        try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Offshore Proxy Server started on port " + port);
+    private ServerSocketChannel serverChannel;
+    private int port = Integer.getInteger("adpump.offshorePort", 8080);
+    private final EventLoop[] loops;
+    private final OriginPool[] originPools;  // one per loop, so pooled sockets never change selector
+    private int maxConnectionsPerHost = 32;
+    private int maxIdleConnectionsPerHost = 8;
+    private long idleConnectionTimeoutMs = 30000;
+    private final ResponseCache responseCache =
+            new ResponseCache(Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4));
+    private final ConcurrentHashMap<String, OriginFlight> flights = new ConcurrentHashMap<>(); // joinable fetches
+    private int nextLoop;
+    private final Set<ShipConnection> ships = ConcurrentHashMap.newKeySet();
+    // Name lookups block, so they stay off the event loops
+    private final ExecutorService resolver = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final HostResolver hostResolver = new HostResolver(
+            HostResolver.stub(HostResolver.parseHosts(System.getProperty("adpump.dnsHosts", "")), InetAddress::getAllByName),
+            resolver,
+            Long.getLong("adpump.dnsTtl", 60) * 1000,
+            Long.getLong("adpump.dnsStale", 300) * 1000,
+            Long.getLong("adpump.dnsNegativeTtl", 10) * 1000);
+    // Subresource bytes pushed to the ship per HTML page; 0 turns pushing off
+    private final long pushBudget = Long.getLong("adpump.pushBudgetKB", 512) * 1024;
+    // What each ship's chunk store holds, by the id it gives in SETTINGS; outlives its link connections
+    private final ConcurrentHashMap<String, ChunkIndex> chunkIndexes = new ConcurrentHashMap<>();
+    private static final int MAX_CHUNK_INDEXES = 256;
 
+    public OffshoreServer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
 
-            clientSocket = serverSocket.accept();
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            rawOut = clientSocket.getOutputStream();
-            rawIn = clientSocket.getInputStream();
-            System.out.println("Established persistent connection with proxy client");
+    public OffshoreServer(int loopCount) {
+        registerMetrics();
+        loops = new EventLoop[Math.max(1, loopCount)];
+        originPools = new OriginPool[loops.length];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("offshore-loop-" + i);
+                originPools[i] = new OriginPool(loops[i], maxConnectionsPerHost, maxIdleConnectionsPerHost,
+                        idleConnectionTimeoutMs);
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Log.info("Offshore Proxy Server started on port " + port + " with " + loops.length + " event loops");
             startListening();
         } catch (IOException e) {
-            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            Log.warn("Could not listen on port " + port + ": " + e.getMessage());
         }
     }
 
-    private void startListening() {
-        while (true) {
-            try {
-                String firstLine = in.readLine();
-                if (firstLine == null) {
-                    System.out.println("No more data from proxy client. Closing connection.");
-                    break;
-                }
-
-                if (firstLine.startsWith("CONNECT")) {
-                    handleConnectRequest(firstLine);
-                    continue;
-                }
-
-                StringBuilder request = new StringBuilder();
-                request.append(firstLine).append("\r\n");
-                String requestId = null;
-                String inputLine;
-                while ((inputLine = in.readLine()) != null && !inputLine.isEmpty()) {
-                    request.append(inputLine).append("\r\n");
-                    if (inputLine.startsWith("X-Request-ID:")) {
-                        requestId = inputLine.split(":", 2)[1].trim();
-                    }
-                }
-                System.out.println("Received request from proxy client (ID: " + requestId + "):\n" + request.toString());
-
-                String[] requestLines = request.toString().split("\r\n");
-                if (requestLines.length == 0) {
-                    System.err.println("Empty request received.");
-                    continue;
-                }
-                String[] requestLineParts = requestLines[0].split(" ");
-                if (requestLineParts.length < 2) {
-                    System.err.println("Invalid request format: " + requestLines[0]);
-                    continue;
-                }
-                String method = requestLineParts[0];
-                String targetUrl = requestLineParts[1];
-
-                String response = fetchWebpage(targetUrl, request.toString());
-                if (requestId != null) {
-                    response = "X-Request-ID: " + requestId + "\r\n" + response;
-                }
-                System.out.println("Sending response to proxy client (ID: " + requestId + "):\n" + response);
-                out.print(response);
-                out.flush();
-                if (out.checkError()) {
-                    System.err.println("Error sending response to proxy client (ID: " + requestId + ")");
-                    break;
-                }
+    private void registerMetrics() {
+        Metrics.gauge("adpump_ship_connections", "Link connections from ships.", ships::size);
+        Metrics.gauge("adpump_active_tunnels", "CONNECT tunnels open right now.", TunnelStream.OPEN::get);
+        Metrics.gauge("adpump_inflight_fetches", "Origin fetches other requests can still join.", flights::size);
+        Metrics.counter("adpump_log_dropped_total", "Log records dropped while the log writer was behind.", Log::droppedCount);
+        Metrics.counter("adpump_cache_lookups_total{cache=\"offshore\",result=\"hit\"}",
+                "Cache lookups by outcome.", responseCache.hits::get);
+        Metrics.counter("adpump_cache_lookups_total{cache=\"offshore\",result=\"miss\"}",
+                "Cache lookups by outcome.", responseCache.misses::get);
+        Metrics.gauge("adpump_cache_hit_ratio{cache=\"offshore\"}", "Share of cache lookups that were hits.",
+                () -> responseCache.hits.get() / (double) Math.max(1, responseCache.hits.get() + responseCache.misses.get()));
+        Metrics.gauge("adpump_chunk_index_keys", "Chunks the ships' stores hold, as they told us.",
+                () -> chunkIndexes.values().stream().mapToLong(ChunkIndex::size).sum());
+        Metrics.gauge("adpump_dns_cache_entries", "Host names in the resolver cache.", hostResolver::size);
+        Metrics.gauge("adpump_buffers_outstanding", "Pooled buffers on loan.", BufferPool::outstanding);
+        Metrics.counter("adpump_buffer_leaks_total", "Pooled buffers collected without release.", BufferPool::leakCount);
+    }
 
+    private void startListening() throws IOException {
+        // Loop 0 also accepts; each ship is pinned to one loop together with its origin sockets
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
             } catch (IOException e) {
-                System.err.println("Error handling client: " + e.getMessage());
-                break;
+                Log.warn("Could not accept on port " + port + ": " + e.getMessage());
             }
+        });
+        for (EventLoop loop : loops) {
+            loop.start();
         }
-
         try {
-            clientSocket.close();
-            serverSocket.close();
-        } catch (IOException e) {
-            System.err.println("Error closing server: " + e.getMessage());
+            for (EventLoop loop : loops) {
+                loop.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void handleConnectRequest(@NotNull String connectLine) {
-        try {
-            // Parse the CONNECT request (e.g., "CONNECT www.google.com:443")
-            String[] parts = connectLine.split(" ");
-            if (parts.length != 2) {
-                System.err.println("Invalid CONNECT request: " + connectLine);
-                out.println("ERROR");
-                out.flush();
-                return;
-            }
-            String[] targetParts = parts[1].split(":");
-            if (targetParts.length != 2) {
-                System.err.println("Invalid CONNECT target: " + parts[1]);
-                out.println("ERROR");
-                out.flush();
-                return;
+    private class Acceptor implements ChannelHandler {
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                SocketChannel accepted = channel;
+                int index = nextLoop++ % loops.length;
+                EventLoop loop = loops[index];
+                loop.execute(() -> {
+                    try {
+                        ships.add(new ShipConnection(OffshoreServer.this, loop, originPools[index], accepted));
+                    } catch (IOException e) {
+                        Log.warn("Error accepting proxy client: " + e.getMessage());
+                        try {
+                            accepted.close();
+                        } catch (IOException closeException) {
+                            Log.warn("Error closing proxy client socket: " + closeException.getMessage());
+                        }
+                    }
+                });
             }
-            String host = targetParts[0];
-            int port = Integer.parseInt(targetParts[1]);
-
-            // Connect to the target server
-            Socket targetSocket = new Socket(host, port);
-            System.out.println("Connected to target server: " + host + ":" + port);
-
-            // Send OK to the proxy client to indicate successful connection
-            out.println("OK");
-            out.flush();
-
-            // Start relaying data between the proxy client and the target server
-            Thread clientToTarget = new Thread(() -> {
-                try {
-                    relayData(rawIn, targetSocket.getOutputStream());
-                } catch (IOException e) {
-                    System.err.println("Error in client-to-target relay: " + e.getMessage());
-                }
-            });
-            Thread targetToClient = new Thread(() -> {
-                try {
-                    relayData(targetSocket.getInputStream(), rawOut);
-                } catch (IOException e) {
-                    System.err.println("Error in target-to-client relay: " + e.getMessage());
-                }
-            });
-            clientToTarget.start();
-            targetToClient.start();
+        }
 
-            // Wait for both threads to finish
-            clientToTarget.join();
-            targetToClient.join();
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing server: " + e.getMessage());
+            }
+        }
+    }
 
-            // Close the target socket
-            targetSocket.close();
+    void shipDisconnected(ShipConnection ship) {
+        ships.remove(ship);
+    }
 
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error handling CONNECT request: " + e.getMessage());
-            out.println("ERROR");
-            out.flush();
-        }
+    CompletableFuture<InetSocketAddress> resolve(String host, int port) {
+        return hostResolver.resolve(host).thenApply(address -> new InetSocketAddress(address, port));
     }
 
-    private void relayData(@NotNull InputStream in, OutputStream out) {
+    ServerStream handleConnectRequest(ShipConnection ship, int streamId, @NotNull String target) {
+        // Parse the CONNECT target (e.g., "www.google.com:443")
+        String[] targetParts = target.split(":");
+        int targetPort;
         try {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                out.flush();
-            }
-        } catch (IOException e) {
-            System.err.println("Error relaying data: " + e.getMessage());
+            targetPort = targetParts.length == 2 ? Integer.parseInt(targetParts[1]) : -1;
+        } catch (NumberFormatException e) {
+            targetPort = -1;
         }
+        if (targetPort < 0) {
+            Log.warn("Invalid CONNECT target: " + target);
+            ship.send(Frame.headers(streamId, "HTTP/1.1 400 Bad Request\r\n\r\n", true));
+            return null;
+        }
+        TunnelStream tunnel = new TunnelStream(this, ship, streamId, targetParts[0], targetPort);
+        ship.addStream(tunnel);
+        tunnel.start();
+        return tunnel;
     }
-    private @NotNull String fetchWebpage(String targetUrl, String clientRequest) {
+
+    // request is only valid during the call. pushedFor is the page a pushed stream belongs to, or null
+    // when the ship asked.
+    ServerStream fetchWebpage(ShipConnection ship, int streamId, HttpParser request, PagePush pushedFor) {
+        String targetUrl = request.target();
+        URL url;
         try {
-            URL url = new URL(targetUrl);
-            String host = url.getHost();
-            int port = url.getPort() == -1 ? 80 : url.getPort();
+            url = new URL(targetUrl);
+        } catch (MalformedURLException e) {
+            Log.warn("Invalid URL: " + targetUrl + " - " + e.getMessage());
+            ship.sendResponse(streamId, BAD_REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+            return null;
+        }
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? 80 : url.getPort();
 
-            Socket targetSocket = null;
-            try {
-                targetSocket = new Socket();
-                targetSocket.connect(new InetSocketAddress(host, port), 5000);
-                targetSocket.setSoTimeout(10000);
-            } catch (IOException e) {
-                System.err.println("Error connecting to target server " + host + ":" + port + ": " + e.getMessage());
-                if (targetSocket != null) {
-                    try {
-                        targetSocket.close();
-                    } catch (IOException closeException) {
-                        System.err.println("Error closing target socket: " + closeException.getMessage());
-                    }
+        // Serve from the shared cache when we can; otherwise fetch, revalidating a stale copy if it has validators
+        String conditional = "";
+        ResponseCache.Entry stale = null;
+        HttpHead requestHead = request.toHead();
+        boolean cacheable = request.methodIs("GET");
+        if (cacheable) {
+            CacheControl requestControl = CacheControl.parse(requestHead);
+            ResponseCache.Entry cached = responseCache.lookup(targetUrl, requestHead);
+            long now = System.currentTimeMillis();
+            if (cached != null && requestControl.accepts(cached.age(now), cached.lifetime, cached.mustRevalidate)) {
+                responseCache.hits.incrementAndGet();
+                Log.debug("Cache hit", "url", targetUrl);
+                StoredResponse stored = new StoredResponse(ship, streamId);
+                stored.pushedFor = pushedFor;
+                ship.addStream(stored);
+                byte[] head = cached.headWithAge(now);
+                stored.sendResponse(head, cached.body);
+                PagePush pushing = pushedFor == null
+                        ? pushFor(ship, targetUrl, "GET", HttpHead.parse(head, 0, head.length)) : null;
+                if (pushing != null) {
+                    pushing.scan(cached.body, 0, cached.body.length);
                 }
-                return "HTTP/1.1 502 Bad Gateway\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 23\r\n" +
-                        "\r\n" +
-                        "Failed to fetch webpage";
+                return stored;
             }
-
-            try (PrintWriter targetOut = new PrintWriter(targetSocket.getOutputStream(), true);
-                 BufferedReader targetIn = new BufferedReader(new InputStreamReader(targetSocket.getInputStream()))) {
-
-                System.out.println("Sending request to target server (" + host + "):\n" + clientRequest);
-                targetOut.print(clientRequest);
-                targetOut.flush();
-
-                StringBuilder response = new StringBuilder();
-                String line;
-                try {
-                    while ((line = targetIn.readLine()) != null) {
-                        response.append(line).append("\r\n");
-                    }
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Timeout while reading response from " + host + ": " + e.getMessage());
-                    return "HTTP/1.1 504 Gateway Timeout\r\n" +
-                            "Content-Type: text/plain\r\n" +
-                            "Content-Length: 24\r\n" +
-                            "\r\n" +
-                            "Gateway timeout occurred";
+            responseCache.misses.incrementAndGet();
+            if (cached != null && cached.hasValidators()) {
+                stale = cached;
+                conditional = cached.validators();
+            }
+        }
+        // Single flight: ride along on an identical fetch that is already under way, from any ship
+        String flightKey = cacheable ? RequestKey.of(targetUrl, requestHead) : null;
+        if (flightKey != null) {
+            OriginFlight inFlight = flights.get(flightKey);
+            if (inFlight != null) {
+                FollowerStream follower = new FollowerStream(ship, streamId, inFlight);
+                follower.pushedFor = pushedFor;
+                ship.addStream(follower);
+                if (inFlight.join(follower)) {
+                    Log.debug("Joined in-flight fetch", "url", targetUrl);
+                    return follower;
                 }
+                ship.removeStream(streamId);
+            }
+        }
+        OriginExchange exchange = new OriginExchange(this, ship, streamId, host, port, request.method(),
+                toOriginRequest(url, request, conditional));
+        exchange.pushedFor = pushedFor;
+        if (cacheable) {
+            exchange.enableCaching(responseCache, targetUrl, requestHead, stale);
+        }
+        if (pushedFor == null && pushBudget > 0) {
+            exchange.enablePush(targetUrl);
+        }
+        if (flightKey != null) {
+            OriginFlight flight = new OriginFlight(flightKey, flights, exchange);
+            if (flights.putIfAbsent(flightKey, flight) == null) {
+                exchange.lead(flight);
+            }
+        }
+        ship.addStream(exchange);
+        exchange.start();
+        return exchange;
+    }
 
-                System.out.println("Received response from target server (" + host + "):\n" + response.toString());
-                return response.toString();
+    // The chunk store of the ship with the given id. A ship that restarts comes back with a new id and
+    // an empty store; the index it left behind is dropped once too many others are newer.
+    ChunkIndex chunkIndex(String shipId) {
+        ChunkIndex index = chunkIndexes.computeIfAbsent(shipId, id -> new ChunkIndex());
+        index.lastUsed = System.currentTimeMillis();
+        if (chunkIndexes.size() > MAX_CHUNK_INDEXES) {
+            chunkIndexes.entrySet().stream()
+                    .filter(entry -> entry.getValue() != index)
+                    .min((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed))
+                    .ifPresent(oldest -> chunkIndexes.remove(oldest.getKey(), oldest.getValue()));
+        }
+        return index;
+    }
 
-            } catch (IOException e) {
-                System.err.println("Error fetching webpage from " + host + ": " + e.getMessage());
-                return "HTTP/1.1 502 Bad Gateway\r\n" +
-                        "Content-Type: text/plain\r\n" +
-                        "Content-Length: 23\r\n" +
-                        "\r\n" +
-                        "Failed to fetch webpage";
-            } finally {
-                try {
-                    targetSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing target socket: " + e.getMessage());
-                }
+    // Pushes for an HTML page the ship is fetching, or null when the ship, the response or our settings rule them out.
+    PagePush pushFor(ShipConnection ship, String url, String method, HttpHead response) {
+        if (pushBudget <= 0 || !ship.acceptsPush() || !PagePush.isPage(method, response)) {
+            return null;
+        }
+        try {
+            return new PagePush(this, ship, new URI(url), pushBudget);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    // Origin-form request line and our own connection management, so the origin keeps the socket open
+    // for the pool. Hop-by-hop fields from the ship are dropped.
+    private static byte[] toOriginRequest(URL url, HttpParser request, String extraFields) {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String method = request.method();
+        ByteBuffer out = ByteBuffer.allocate(request.headLength() + method.length() + path.length()
+                + extraFields.length() + 64);
+        putAscii(out, method);
+        out.put((byte) ' ');
+        putAscii(out, path);
+        putAscii(out, " HTTP/1.1\r\n");
+        for (int i = 0; i < request.fieldCount(); i++) {
+            if (!request.nameIs(i, "Connection") && !request.nameIs(i, "Proxy-Connection")
+                    && !request.nameIs(i, "Keep-Alive")) {
+                request.writeField(i, out);
             }
+        }
+        putAscii(out, extraFields);
+        putAscii(out, "Connection: keep-alive\r\n\r\n");
+        return Arrays.copyOf(out.array(), out.position());
+    }
 
-        } catch (MalformedURLException e) {
-            System.err.println("Invalid URL: " + targetUrl + " - " + e.getMessage());
-            return "HTTP/1.1 400 Bad Request\r\n" +
-                    "Content-Type: text/plain\r\n" +
-                    "Content-Length: 15\r\n" +
-                    "\r\n" +
-                    "Invalid URL";
+    private static void putAscii(ByteBuffer out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out.put((byte) text.charAt(i));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package com.server;
+
+import com.common.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+// A socket to one origin host:port, either leased to an exchange or parked idle in its OriginPool.
+class OriginConnection {
+    final String hostKey;
+    SocketChannel channel;   // null until the leasing exchange connects it
+    SelectionKey key;
+    boolean reused;          // came out of the idle pool rather than a fresh connect
+    long idleSince;
+
+    OriginConnection(String hostKey) {
+        this.hostKey = hostKey;
+    }
+
+    boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing target socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package com.server;
+
+import com.common.BodyFraming;
+import com.common.HttpHead;
+import com.common.HttpParser;
+import com.common.LinkCodec;
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// A single GET to an origin server, driven by the ship connection's event loop.
+// The response head goes out as one HEADERS frame as soon as it is complete; body bytes are
+// forwarded as DATA frames as they arrive, byte for byte, and END follows the last one.
+class OriginExchange extends ServerStream implements ChannelHandler {
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long READ_TIMEOUT_MS = 10000;
+    private static final Metrics.Histogram ORIGIN_CONNECT =
+            Metrics.latency("adpump_origin_connect_seconds", "TCP connect time to origin servers.");
+    private static final Metrics.Histogram ORIGIN_TTFB =
+            Metrics.latency("adpump_origin_ttfb_seconds", "Time from the request reaching an origin to its first response byte.");
+
+    private final OffshoreServer server;
+    private final String host;
+    private final int port;
+    private final String method;
+    private final ByteBuffer request;
+    private final HttpParser response = new HttpParser();
+    private BodyFraming framing;  // null until the head is complete
+    private long bodyBytes;
+    private OriginConnection connection;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private EventLoop.Timer timer;
+    private boolean reusable = true;   // cleared as soon as anything rules out keep-alive
+    private ResponseCache cache;
+    private String cacheKey;
+    private HttpHead requestHead;
+    private ResponseCache.Entry revalidating;  // stale entry we asked the origin to confirm
+    private long requestTime;
+    private byte[] captureHead;
+    private HttpHead captureParsed;
+    private ByteArrayOutputStream capture;     // body copy for the cache, dropped if it grows too large
+    private LinkCodec.Encoder encoder;         // link compression for this body, if worthwhile
+    private OriginFlight flight;               // identical GETs riding on this fetch, if any
+    private String pageUrl;                    // set when an HTML response may get its subresources pushed
+    private PagePush pushing;                  // subresources found in this page so far
+    private long lastActivity;
+    private long connectStartedAt;   // nanoTime, for the connect histogram
+    private long requestSentAt;      // nanoTime once the request is written, 0 after the first response byte
+    private boolean connected;
+    private boolean paused;       // origin reads stopped until the ship (and followers) drain
+    private boolean finished;
+    private final long createdAt = System.nanoTime();
+
+    OriginExchange(OffshoreServer server, ShipConnection ship, int id, String host, int port, String method, byte[] request) {
+        super(id, ship);
+        this.server = server;
+        this.host = host;
+        this.port = port;
+        this.method = method;
+        this.request = ByteBuffer.wrap(request);
+    }
+
+    // Store a cacheable response under url, and treat a 304 as confirmation of the stale entry if given.
+    void enableCaching(ResponseCache cache, String url, HttpHead requestHead, ResponseCache.Entry revalidating) {
+        this.cache = cache;
+        this.cacheKey = url;
+        this.requestHead = requestHead;
+        this.revalidating = revalidating;
+    }
+
+    // Scan an HTML response for subresources and push them to the ship along with it.
+    void enablePush(String url) {
+        this.pageUrl = url;
+    }
+
+    // Share everything read from the origin with followers of this flight.
+    void lead(OriginFlight flight) {
+        this.flight = flight;
+    }
+
+    void start() {
+        requestTime = System.currentTimeMillis();
+        ship.originPool().acquire(host, port, this::onConnection);
+    }
+
+    private void onConnection(OriginConnection leased) {
+        if (finished) {
+            ship.originPool().release(leased, leased.isConnected());
+            return;
+        }
+        connection = leased;
+        if (leased.isConnected()) {
+            // Reused keep-alive socket: take over its key and send straight away
+            channel = leased.channel;
+            key = leased.key;
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_WRITE);
+            connected = true;
+            lastActivity = System.currentTimeMillis();
+            timer = ship.loop().schedule(this::checkTimeout, READ_TIMEOUT_MS);
+            return;
+        }
+        server.resolve(host, port).whenComplete((address, error) -> ship.loop().execute(() -> {
+            if (error != null) {
+                Log.warn("Error resolving target server " + host + ": " + error.getMessage());
+                fail(OffshoreServer.BAD_GATEWAY);
+            } else {
+                connect(address);
+            }
+        }));
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (finished) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            connectStartedAt = System.nanoTime();
+            boolean done = channel.connect(address);
+            if (done) {
+                ORIGIN_CONNECT.recordSince(connectStartedAt);
+            }
+            key = ship.loop().register(channel, done ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            connection.channel = channel;
+            connection.key = key;
+            connected = done;
+            lastActivity = System.currentTimeMillis();
+            timer = ship.loop().schedule(this::checkTimeout, CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            Log.warn("Error connecting to target server " + host + ":" + port + ": " + e.getMessage());
+            fail(OffshoreServer.BAD_GATEWAY);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                ORIGIN_CONNECT.recordSince(connectStartedAt);
+                connected = true;
+                lastActivity = System.currentTimeMillis();
+                if (Log.debug()) {
+                    Log.debug("Sending request to target server (" + host + "):\n"
+                            + Log.body(request.array(), 0, request.limit()));
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable()) {
+                channel.write(request);
+                if (!request.hasRemaining()) {
+                    requestSentAt = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            if (retryOnFreshConnection()) {
+                return;
+            }
+            Log.warn("Error fetching webpage from " + host + ": " + e.getMessage());
+            fail(OffshoreServer.BAD_GATEWAY);
+        }
+    }
+
+    // A pooled socket the origin closed just before we used it fails before any response byte.
+    // GETs are idempotent, so retry once on a new connection instead of surfacing a 502.
+    private boolean retryOnFreshConnection() {
+        if (connection == null || !connection.reused || framing != null || response.headLength() > 0 || isClosed()) {
+            return false;
+        }
+        Log.info("Pooled connection to " + host + ":" + port + " was stale; retrying on a new one");
+        if (timer != null) {
+            timer.cancel();
+        }
+        ship.originPool().discard(connection);
+        connection = null;
+        channel = null;
+        key = null;
+        connected = false;
+        request.rewind();
+        ship.originPool().acquire(host, port, this::onConnection);
+        return true;
+    }
+
+    private void read() throws IOException {
+        ByteBuffer readBuffer = ship.loop().readBuffer();
+        byte[] data = ship.loop().scratch();
+        int bytesRead;
+        while (!finished && mayRead() && (bytesRead = channel.read(readBuffer)) != 0) {
+            if (bytesRead == -1) {
+                reusable = false;
+                if (!retryOnFreshConnection()) {
+                    originClosed();
+                }
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (requestSentAt != 0) {
+                ORIGIN_TTFB.recordSince(requestSentAt);
+                requestSentAt = 0;
+            }
+            readBuffer.flip();
+            readBuffer.get(data, 0, bytesRead);
+            readBuffer.clear();
+            if (framing == null) {
+                appendHead(data, 0, bytesRead);
+            } else {
+                forwardBody(data, 0, bytesRead);
+            }
+        }
+        if (!finished && !mayRead()) {
+            // Backpressure: leave the bytes in the origin's socket until the ship asks for more
+            paused = true;
+            key.interestOps(0);
+        }
+    }
+
+    private boolean mayRead() {
+        if (framing == null) {
+            return true; // the head is not flow controlled
+        }
+        return (isClosed() || sendWindow > 0) && (flight == null || flight.followersHaveWindow());
+    }
+
+    void resumeReading() {
+        if (paused && !finished && mayRead() && key.isValid()) {
+            paused = false;
+            lastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    void onWindowOpen() {
+        resumeReading();
+    }
+
+    // Feeds head bytes to the parser until the blank line arrives, then sends HEADERS and forwards
+    // whatever body bytes came in the same read.
+    private void appendHead(byte[] data, int offset, int length) {
+        int taken;
+        try {
+            taken = response.parse(data, offset, length);
+        } catch (IOException e) {
+            Log.warn("Response head from " + host + " is too large");
+            fail(OffshoreServer.BAD_GATEWAY);
+            return;
+        }
+        if (!response.isComplete()) {
+            return;
+        }
+        int status = response.statusCode();
+        if (status < 0) {
+            Log.warn("Invalid response from " + host + ": " + response.startLine());
+            fail(OffshoreServer.BAD_GATEWAY);
+            return;
+        }
+        if (status >= 100 && status < 200 && status != 101) {
+            // Interim response: drop it and keep waiting for the final one
+            response.reset();
+            appendHead(data, offset + taken, length - taken);
+            return;
+        }
+        HttpHead parsed = response.toHead();
+        if (status == 304 && revalidating != null) {
+            serveRevalidated(parsed);
+            return;
+        }
+        framing = BodyFraming.forResponse(method, response);
+        byte[] responseHead = response.headBytes();
+        if (cache != null && ResponseCache.isStorable(requestHead, parsed)
+                && framing.contentLength() <= cache.maxEntryBytes()) {
+            captureHead = responseHead;
+            captureParsed = parsed;
+            capture = new ByteArrayOutputStream((int) Math.max(1024, framing.contentLength()));
+        }
+        if (framing.isCloseDelimited() || !response.keepAlive()) {
+            reusable = false;
+        }
+        encoder = ship.encoderFor(parsed);
+        if (Log.debug()) {
+            Log.debug("Received response from target server (" + host + "): " + response.startLine());
+        }
+        if (!isClosed() && sendHead(responseHead, parsed) && pageUrl != null) {
+            pushing = server.pushFor(ship, pageUrl, method, parsed);
+        }
+        if (flight != null) {
+            flight.onHead(responseHead, parsed);
+        }
+        if (framing.isComplete()) {
+            complete();
+        } else {
+            forwardBody(data, offset + taken, length - taken);
+        }
+    }
+
+    private void forwardBody(byte[] data, int offset, int length) {
+        if (finished || length <= 0) {
+            return;
+        }
+        int accepted = framing.consume(data, offset, length);
+        if (accepted < length) {
+            reusable = false; // bytes past the end of the body: the connection is out of sync
+        }
+        if (accepted > 0 && !isClosed()) {
+            ship.sendData(this, encoder, data, offset, accepted);
+            if (pushing != null) {
+                pushing.scan(data, offset, accepted);
+            }
+        }
+        bodyBytes += accepted;
+        if (flight != null && accepted > 0) {
+            flight.onBody(data, offset, accepted);
+        }
+        if (capture != null) {
+            capture.write(data, offset, accepted);
+            if (capture.size() > cache.maxEntryBytes()) {
+                capture = null;
+            }
+        }
+        if (framing.isComplete()) {
+            complete();
+        }
+    }
+
+    private void originClosed() {
+        if (framing != null && (framing.isCloseDelimited() || framing.isComplete())) {
+            complete();
+        } else if (framing == null) {
+            Log.warn("Target server " + host + " closed the connection before responding");
+            fail(OffshoreServer.BAD_GATEWAY);
+        } else {
+            Log.warn("Target server " + host + " closed the connection mid-body after " + bodyBytes + " bytes");
+            abort();
+        }
+    }
+
+    private void checkTimeout() {
+        if (finished) {
+            return;
+        }
+        long limit = connected ? READ_TIMEOUT_MS : CONNECT_TIMEOUT_MS;
+        if (paused) {
+            lastActivity = System.currentTimeMillis(); // waiting on the ship, not on the origin
+        }
+        long idle = System.currentTimeMillis() - lastActivity;
+        if (idle < limit) {
+            timer = ship.loop().schedule(this::checkTimeout, limit - idle);
+            return;
+        }
+        if (!connected) {
+            Log.warn("Error connecting to target server " + host + ":" + port + ": connect timed out");
+            fail(OffshoreServer.BAD_GATEWAY);
+        } else {
+            Log.warn("Timeout while reading response from " + host);
+            fail(OffshoreServer.GATEWAY_TIMEOUT);
+        }
+    }
+
+    private void complete() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!isClosed()) {
+            sendEnd(encoder); // before the encoder goes back to its pool
+            localEnd();
+        }
+        releaseConnection(reusable && !request.hasRemaining());
+        if (capture != null) {
+            cache.put(cacheKey, requestHead, captureHead, captureParsed, capture.toByteArray(), requestTime);
+            capture = null;
+        }
+        if (flight != null) {
+            flight.onEnd();
+        }
+        Log.info("origin fetch", "stream", id, "host", host, "status", response.statusCode(), "bytes", bodyBytes,
+                "ms", (System.nanoTime() - createdAt) / 1_000_000);
+    }
+
+    // 304 to our conditional request: refresh the entry and answer the ship from it.
+    private void serveRevalidated(HttpHead notModified) {
+        finished = true;
+        releaseConnection(reusable && !request.hasRemaining());
+        ResponseCache.Entry refreshed = cache.revalidated(revalidating, requestHead, notModified, requestTime);
+        Log.info("Revalidated cached response for " + cacheKey);
+        byte[] refreshedHead = refreshed.headWithAge(System.currentTimeMillis());
+        if (!isClosed()) {
+            sendResponse(refreshedHead, refreshed.body);
+        }
+        if (flight != null) {
+            flight.onResponse(refreshedHead, refreshed.body);
+        }
+    }
+
+    // Before the head went out we can still answer with an error page; afterwards only a reset is honest.
+    private void fail(String errorResponse) {
+        if (finished) {
+            return;
+        }
+        if (framing != null) {
+            abort();
+            return;
+        }
+        finished = true;
+        releaseConnection(false);
+        byte[] response = errorResponse.getBytes(StandardCharsets.ISO_8859_1);
+        if (!isClosed()) {
+            ship.sendResponse(id, response);
+            localEnd();
+        }
+        if (flight != null) {
+            flight.onError(response);
+        }
+    }
+
+    private void abort() {
+        finished = true;
+        releaseConnection(false);
+        if (!isClosed()) {
+            ship.resetStream(this);
+        }
+        if (flight != null) {
+            flight.onAbort();
+        }
+    }
+
+    // The loop caught something handle() did not: answer the ship and the followers like any failed fetch.
+    @Override
+    public void failed(Exception cause) {
+        fail(OffshoreServer.BAD_GATEWAY);
+    }
+
+    @Override
+    public void close() {
+        if (finished) {
+            return;
+        }
+        if (pushing != null) {
+            pushing.cancel(); // the page went away before it completed
+        }
+        if (flight != null && flight.detachLeader()) {
+            return; // other ships still wait on this fetch; keep reading for them
+        }
+        abandon();
+    }
+
+    // Reset by the ship or its link went down: the response may be half read, so never reuse
+    void abandon() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        releaseConnection(false);
+    }
+
+    private void releaseConnection(boolean reuse) {
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (encoder != null) {
+            encoder.release();
+            encoder = null;
+        }
+        if (connection != null) {
+            ship.originPool().release(connection, reuse);
+            connection = null;
+        }
+    }
+}
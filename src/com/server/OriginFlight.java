@@ -0,0 +1,174 @@
+package com.server;
+
+import com.common.HttpHead;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// One origin fetch shared by every identical GET that arrives while it is running. The leading
+// OriginExchange reports what it reads; followers may sit on other ships and other event loops, so
+// each event is handed to the follower's own loop. A follower that joins late is replayed the head
+// and the body so far, as long as that still fits its send window. Body bytes are charged to a
+// follower's backlog when handed over, and the origin is not read while any follower's backlog
+// uses up its window, so no follower buffers more than about one window.
+class OriginFlight {
+    private static final long MAX_REPLAY_BYTES = 1 << 20;
+
+    private final String key;
+    private final Map<String, OriginFlight> registry;
+    private final OriginExchange leader;
+    private final List<FollowerStream> followers = new ArrayList<>();
+    private final List<byte[]> replay = new ArrayList<>();
+    private long replayBytes;
+    private byte[] head;
+    private HttpHead parsedHead;
+    private boolean joinable = true;
+    private boolean leaderDetached;  // the leader's own ship is gone; it keeps reading for followers
+    private volatile boolean leaderWaiting;  // the leader paused on a follower's window
+
+    OriginFlight(String key, Map<String, OriginFlight> registry, OriginExchange leader) {
+        this.key = key;
+        this.registry = registry;
+        this.leader = leader;
+    }
+
+    // Called on the follower's loop. False if the response has moved on too far to share.
+    synchronized boolean join(FollowerStream follower) {
+        if (!joinable || replayBytes > follower.sendWindow) {
+            return false;
+        }
+        followers.add(follower);
+        if (head != null) {
+            follower.deliverHead(head, parsedHead);
+            for (byte[] chunk : replay) {
+                follower.backlog.addAndGet(chunk.length);
+                follower.deliverBody(chunk);
+            }
+        }
+        return true;
+    }
+
+    synchronized void leave(FollowerStream follower) {
+        followers.remove(follower);
+        if (followers.isEmpty() && leaderDetached) {
+            settle();
+            leader.ship.loop().execute(leader::abandon);
+        } else {
+            followerReady(); // it may have been the one holding the leader back
+        }
+    }
+
+    // The origin is read no faster than the slowest follower's ship drains it: a follower has window
+    // only for what is left once everything already handed to it is sent.
+    synchronized boolean followersHaveWindow() {
+        for (FollowerStream follower : followers) {
+            if (follower.sendWindow - follower.backlog.get() <= 0) {
+                leaderWaiting = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void followerReady() {
+        leader.ship.loop().execute(leader::resumeReading);
+    }
+
+    // A follower sent its backlog with window to spare; wake the leader if it paused on one of us.
+    void followerDrained() {
+        if (leaderWaiting) {
+            leaderWaiting = false;
+            followerReady();
+        }
+    }
+
+    // The leader's ship reset its stream. True if followers still need the response.
+    synchronized boolean detachLeader() {
+        if (followers.isEmpty()) {
+            settle();
+            return false;
+        }
+        leaderDetached = true;
+        return true;
+    }
+
+    // A cookie the origin set is for the leader's browser alone; followers get the head without it.
+    synchronized void onHead(byte[] head, HttpHead parsed) {
+        if (parsed.get("Set-Cookie") != null) {
+            head = HttpHead.withoutField(head, "Set-Cookie");
+            parsed = HttpHead.parse(head, 0, head.length);
+        }
+        this.head = head;
+        this.parsedHead = parsed;
+        byte[] shared = head;
+        HttpHead sharedParsed = parsed;
+        for (FollowerStream follower : snapshot()) {
+            follower.ship.loop().execute(() -> follower.deliverHead(shared, sharedParsed));
+        }
+    }
+
+    synchronized void onBody(byte[] data, int offset, int length) {
+        if (followers.isEmpty() && !joinable) {
+            return;
+        }
+        byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+        if (joinable) {
+            replayBytes += length;
+            if (replayBytes > MAX_REPLAY_BYTES) {
+                settle();
+            } else {
+                replay.add(chunk);
+            }
+        }
+        for (FollowerStream follower : snapshot()) {
+            follower.backlog.addAndGet(length);
+            follower.ship.loop().execute(() -> follower.deliverBody(chunk));
+        }
+    }
+
+    synchronized void onEnd() {
+        settle();
+        for (FollowerStream follower : snapshot()) {
+            follower.ship.loop().execute(follower::deliverEnd);
+        }
+    }
+
+    // The whole response at once: a revalidated cache entry.
+    synchronized void onResponse(byte[] head, byte[] body) {
+        settle();
+        for (FollowerStream follower : snapshot()) {
+            follower.ship.loop().execute(() -> follower.deliverResponse(head, body));
+        }
+    }
+
+    // Failed before the head went out; followers get the same error page.
+    synchronized void onError(byte[] errorResponse) {
+        settle();
+        for (FollowerStream follower : snapshot()) {
+            follower.ship.loop().execute(() -> follower.deliverResponse(errorResponse));
+        }
+    }
+
+    // Failed mid-body; followers are reset like the leader.
+    synchronized void onAbort() {
+        settle();
+        for (FollowerStream follower : snapshot()) {
+            follower.ship.loop().execute(follower::deliverReset);
+        }
+    }
+
+    // Delivery can run inline and a follower may leave while we iterate.
+    private FollowerStream[] snapshot() {
+        return followers.toArray(new FollowerStream[0]);
+    }
+
+    private void settle() {
+        if (joinable) {
+            joinable = false;
+            replay.clear();
+            registry.remove(key, this);
+        }
+    }
+}
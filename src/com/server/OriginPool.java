@@ -0,0 +1,168 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Persistent origin connections for one event loop, keyed by host:port. Loop thread only.
+class OriginPool {
+    private static final long SWEEP_INTERVAL_MS = 5000;
+
+    private final EventLoop loop;
+    private final int maxPerHost;
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMs;
+    private final Map<String, HostPool> hosts = new HashMap<>();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    OriginPool(EventLoop loop, int maxPerHost, int maxIdlePerHost, long idleTimeoutMs) {
+        this.loop = loop;
+        this.maxPerHost = maxPerHost;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMs = idleTimeoutMs;
+        loop.execute(() -> loop.schedule(this::sweep, SWEEP_INTERVAL_MS));
+    }
+
+    private static class HostPool {
+        final ArrayDeque<OriginConnection> idle = new ArrayDeque<>();
+        final ArrayDeque<Consumer<OriginConnection>> waiters = new ArrayDeque<>();
+        int open; // leased + idle + connecting
+    }
+
+    static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    // Hands the caller a healthy idle connection, or an unconnected one holding a reserved slot.
+    // When the host is at maxPerHost the callback runs later, once a slot frees up.
+    void acquire(String host, int port, Consumer<OriginConnection> callback) {
+        String hostKey = key(host, port);
+        HostPool pool = hosts.computeIfAbsent(hostKey, k -> new HostPool());
+        OriginConnection connection;
+        while ((connection = pool.idle.pollLast()) != null) {
+            if (isHealthy(connection)) {
+                connection.reused = true;
+                callback.accept(connection);
+                return;
+            }
+            pool.open--;
+            connection.close();
+        }
+        if (pool.open < maxPerHost) {
+            pool.open++;
+            callback.accept(new OriginConnection(hostKey));
+            return;
+        }
+        pool.waiters.add(callback);
+    }
+
+    // Return a leased connection. Only pass reusable=true when the last response was fully read and
+    // its framing allows another request on the same socket.
+    void release(OriginConnection connection, boolean reusable) {
+        HostPool pool = hosts.get(connection.hostKey);
+        if (pool == null) {
+            connection.close();
+            return;
+        }
+        if (!reusable || !connection.isConnected()) {
+            pool.open--;
+            connection.close();
+            Consumer<OriginConnection> waiter = pool.waiters.poll();
+            if (waiter != null) {
+                pool.open++;
+                waiter.accept(new OriginConnection(connection.hostKey));
+            }
+            return;
+        }
+        Consumer<OriginConnection> waiter = pool.waiters.poll();
+        if (waiter != null) {
+            connection.reused = true;
+            waiter.accept(connection);
+            return;
+        }
+        if (pool.idle.size() >= maxIdlePerHost) {
+            pool.open--;
+            connection.close();
+            return;
+        }
+        // Park it; an origin-side close or stray bytes while idle evict it
+        connection.idleSince = System.currentTimeMillis();
+        connection.key.attach(new IdleWatcher(connection));
+        connection.key.interestOps(SelectionKey.OP_READ);
+        pool.idle.add(connection);
+    }
+
+    void discard(OriginConnection connection) {
+        release(connection, false);
+    }
+
+    // A non-blocking read on an idle socket must find nothing: EOF or data means it is unusable.
+    private boolean isHealthy(OriginConnection connection) {
+        if (!connection.channel.isOpen() || !connection.key.isValid()) {
+            return false;
+        }
+        try {
+            probe.clear();
+            return connection.channel.read(probe) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evict(OriginConnection connection) {
+        HostPool pool = hosts.get(connection.hostKey);
+        if (pool != null && pool.idle.remove(connection)) {
+            pool.open--;
+        }
+        connection.close();
+    }
+
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+        Iterator<HostPool> pools = hosts.values().iterator();
+        while (pools.hasNext()) {
+            HostPool pool = pools.next();
+            Iterator<OriginConnection> idle = pool.idle.iterator();
+            while (idle.hasNext()) {
+                OriginConnection connection = idle.next();
+                if (connection.idleSince < cutoff) {
+                    idle.remove();
+                    pool.open--;
+                    connection.close();
+                }
+            }
+            if (pool.open == 0 && pool.waiters.isEmpty()) {
+                pools.remove();
+            }
+        }
+        loop.schedule(this::sweep, SWEEP_INTERVAL_MS);
+    }
+
+    int idleCount() {
+        int count = 0;
+        for (HostPool pool : hosts.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    private class IdleWatcher implements ChannelHandler {
+        private final OriginConnection connection;
+
+        IdleWatcher(OriginConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            evict(connection);
+        }
+
+        @Override
+        public void close() {
+            evict(connection);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.server;
+
+import com.common.BodyFraming;
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.HttpParser;
+import com.common.Log;
+import com.common.Metrics;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Subresources of one HTML page, pushed to the ship that fetched it. The page body is scanned as it
+// streams past for scripts, stylesheets and images; each one found is fetched from the origin at once
+// and sent down a stream of our own, so the ship holds it before the browser has parsed far enough to
+// ask. On a long link that turns a waterfall of round trips into about one.
+//
+// Pushes share the page's byte budget and only go out with a declared length that fits what is left;
+// anything else is reset as soon as its head is known. The ship resets pushes it does not want, and
+// resetting the page before it completes cancels the pushes still running. Lives on the ship's loop.
+final class PagePush {
+    private static final int MAX_PUSHES = 32;
+    private static final int MAX_SCAN_BYTES = 256 * 1024;  // subresources are nearly always listed early
+    private static final int MAX_TAG = 4096;
+    private static final Pattern TAG = Pattern.compile("<(script|img|link)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "\\b(src|href|rel)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))", Pattern.CASE_INSENSITIVE);
+    private static final Metrics.Counter STARTED = Metrics.counter("adpump_push_streams_total{result=\"started\"}",
+            "Subresource pushes by outcome.");
+    private static final Metrics.Counter OVER_BUDGET = Metrics.counter("adpump_push_streams_total{result=\"over_budget\"}",
+            "Subresource pushes by outcome.");
+    private static final Metrics.Counter PUSHED_BYTES =
+            Metrics.counter("adpump_push_bytes_total", "Body bytes of pushed subresources admitted to the link.");
+
+    private final OffshoreServer server;
+    private final ShipConnection ship;
+    private final URI page;
+    private long budget;   // body bytes the page's pushes may still send
+    private final StringBuilder unscanned = new StringBuilder();  // an unfinished tag from the last chunk
+    private long scanned;
+    private final Set<String> seen = new HashSet<>();
+    private final List<ServerStream> streams = new ArrayList<>();
+    private boolean cancelled;
+
+    PagePush(OffshoreServer server, ShipConnection ship, URI page, long budget) {
+        this.server = server;
+        this.ship = ship;
+        this.page = page;
+        this.budget = budget;
+    }
+
+    // A page worth scanning: a complete HTML document the ship GETs, in a form we can read.
+    static boolean isPage(String method, HttpHead response) {
+        String type = response.get("Content-Type");
+        String encoding = response.get("Content-Encoding");
+        return method.equals("GET") && response.statusCode() == 200
+                && type != null && type.trim().toLowerCase().startsWith("text/html")
+                && (encoding == null || encoding.trim().equalsIgnoreCase("identity"));
+    }
+
+    // The next piece of the page body.
+    void scan(byte[] data, int offset, int length) {
+        if (cancelled || scanned >= MAX_SCAN_BYTES || length <= 0) {
+            return;
+        }
+        int take = (int) Math.min(length, MAX_SCAN_BYTES - scanned);
+        scanned += take;
+        unscanned.append(new String(data, offset, take, StandardCharsets.ISO_8859_1));
+        Matcher tag = TAG.matcher(unscanned);
+        int end = 0;
+        while (tag.find()) {
+            String reference = reference(tag.group(1).toLowerCase(), tag.group(2));
+            if (reference != null) {
+                push(reference);
+            }
+            end = tag.end();
+        }
+        int open = unscanned.indexOf("<", end);
+        if (open >= 0 && unscanned.length() - open <= MAX_TAG) {
+            unscanned.delete(0, open);
+        } else {
+            unscanned.setLength(0);
+        }
+    }
+
+    // What a tag loads: src of scripts and images, href of stylesheets.
+    private static String reference(String name, String attributes) {
+        String src = null;
+        String href = null;
+        String rel = null;
+        Matcher attribute = ATTRIBUTE.matcher(attributes);
+        while (attribute.find()) {
+            String value = attribute.group(2) != null ? attribute.group(2)
+                    : attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+            switch (attribute.group(1).toLowerCase()) {
+                case "src": src = value; break;
+                case "href": href = value; break;
+                default: rel = value; break;
+            }
+        }
+        if (name.equals("link")) {
+            return rel != null && rel.trim().equalsIgnoreCase("stylesheet") ? href : null;
+        }
+        return src;
+    }
+
+    private void push(String reference) {
+        if (cancelled || ship.isClosed() || seen.size() >= MAX_PUSHES) {
+            return;
+        }
+        String url;
+        String host;
+        try {
+            URI resolved = page.resolve(reference.trim().replace("&amp;", "&"));
+            if (!"http".equalsIgnoreCase(resolved.getScheme()) || resolved.getHost() == null) {
+                return; // https goes through tunnels, which we cannot see into
+            }
+            url = resolved.toString();
+            host = resolved.getHost();
+        } catch (IllegalArgumentException e) {
+            return; // not a URL we could fetch
+        }
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        if (!seen.add(url) || url.equals(page.toString())) {
+            return;
+        }
+        // The same request head the ship would send for it
+        String request = "GET " + url + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n";
+        HttpParser parser = new HttpParser();
+        try {
+            parser.parse(request.getBytes(StandardCharsets.ISO_8859_1), 0, request.length());
+        } catch (IOException e) {
+            return;
+        }
+        parser.finish();
+        if (!parser.isComplete()) {
+            return;
+        }
+        int id = ship.nextPushId();
+        ship.send(Frame.push(id, request));
+        STARTED.inc();
+        Log.debug("Pushing subresource", "stream", id, "url", url, "page", page);
+        ServerStream stream = server.fetchWebpage(ship, id, parser, this);
+        if (stream != null) {
+            streams.add(stream);
+            stream.onRemoteEnd(); // the ship never sends on a pushed stream
+        }
+    }
+
+    // Charges a pushed response to the budget as its head goes out. False to reset it instead.
+    boolean admit(HttpHead response) {
+        long length = response.statusCode() == 200 ? BodyFraming.forResponse("GET", response).contentLength() : -1;
+        if (cancelled || length < 0 || length > budget) {
+            OVER_BUDGET.inc();
+            return false;
+        }
+        budget -= length;
+        PUSHED_BYTES.add(length);
+        return true;
+    }
+
+    // The page was reset before it completed: stop scanning and reset pushes still running.
+    void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (ServerStream stream : streams) {
+            if (!stream.isClosed()) {
+                ship.resetStream(stream);
+            }
+        }
+        streams.clear();
+    }
+}
@@ -0,0 +1,279 @@
+package com.server;
+
+import com.common.CacheControl;
+import com.common.FrequencySketch;
+import com.common.HttpHead;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared in-memory HTTP cache for every ship on this node. Lookups are a plain ConcurrentHashMap
+// read and never lock; only inserts take the eviction lock. Eviction samples entries and drops the
+// least recently used one, and TinyLFU admission keeps one-hit wonders from displacing popular ones.
+class ResponseCache {
+    private static final int EVICTION_SAMPLE = 16;
+
+    private final ConcurrentHashMap<String, Entry[]> entries = new ConcurrentHashMap<>(); // url -> Vary variants
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final AtomicLong size = new AtomicLong();
+    private final FrequencySketch sketch;
+    private final Object evictionLock = new Object();
+    private Iterator<Map.Entry<String, Entry[]>> hand; // guarded by evictionLock
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong revalidations = new AtomicLong();
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / 16384)));
+    }
+
+    long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    // An immutable stored response. Revalidation replaces it with a fresher copy.
+    static final class Entry {
+        final String url;
+        final byte[] head;        // status line and fields as the origin sent them
+        final byte[] body;        // body bytes exactly as they travelled (may be chunked)
+        final long responseTime;  // when we received it
+        final long initialAge;    // age it already had at responseTime
+        final long lifetime;      // freshness lifetime, ms
+        final boolean mustRevalidate; // never served stale, whatever the request's max-stale
+        final String etag;
+        final String lastModified;
+        final String[] varyNames;
+        final String[] varyValues;
+        volatile long lastAccess;
+
+        Entry(String url, byte[] head, byte[] body, long responseTime, long initialAge, long lifetime,
+              boolean mustRevalidate, String etag, String lastModified, String[] varyNames, String[] varyValues) {
+            this.url = url;
+            this.head = head;
+            this.body = body;
+            this.responseTime = responseTime;
+            this.initialAge = initialAge;
+            this.lifetime = lifetime;
+            this.mustRevalidate = mustRevalidate;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.lastAccess = responseTime;
+        }
+
+        long age(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        int weight() {
+            return head.length + body.length + 128;
+        }
+
+        boolean matches(HttpHead request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = request.get(varyNames[i]);
+                if (!(value == null ? varyValues[i] == null : value.equals(varyValues[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The stored head with an up-to-date Age field.
+        byte[] headWithAge(long now) {
+            return HttpHead.withField(head, "Age", String.valueOf(age(now) / 1000));
+        }
+
+        // Conditional fields for revalidating this entry with the origin.
+        String validators() {
+            StringBuilder fields = new StringBuilder();
+            if (etag != null) {
+                fields.append("If-None-Match: ").append(etag).append("\r\n");
+            }
+            if (lastModified != null) {
+                fields.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+            }
+            return fields.toString();
+        }
+    }
+
+    // The variant matching this request, fresh or stale, or null. Lock-free.
+    Entry lookup(String url, HttpHead request) {
+        sketch.increment(url);
+        Entry[] variants = entries.get(url);
+        if (variants != null) {
+            for (Entry entry : variants) {
+                if (entry.matches(request)) {
+                    entry.lastAccess = System.currentTimeMillis();
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean isStorable(HttpHead request, HttpHead response) {
+        return CacheControl.isStorable(request, response, true);
+    }
+
+    // Builds an entry for a response that has just been read in full and stores it.
+    Entry put(String url, HttpHead request, byte[] head, HttpHead response, byte[] body, long requestTime) {
+        Entry entry = newEntry(url, request, head, response, body, requestTime);
+        store(entry);
+        return entry;
+    }
+
+    // The origin answered our conditional request with 304: keep the body, refresh the metadata.
+    Entry revalidated(Entry stale, HttpHead request, HttpHead notModified, long requestTime) {
+        revalidations.incrementAndGet();
+        byte[] head = mergeHeads(stale.head, notModified);
+        HttpHead merged = HttpHead.parse(head, 0, head.length);
+        Entry refreshed = newEntry(stale.url, request, head, merged, stale.body, requestTime);
+        store(refreshed);
+        return refreshed;
+    }
+
+    private Entry newEntry(String url, HttpHead request, byte[] head, HttpHead response, byte[] body, long requestTime) {
+        long now = System.currentTimeMillis();
+        CacheControl control = CacheControl.parse(response);
+        long lifetime = control.noCache ? 0 : Math.max(0, CacheControl.freshnessLifetime(response, control, true));
+        long initialAge = CacheControl.initialAge(response, requestTime, now);
+        String[] varyNames = new String[0];
+        String vary = response.get("Vary");
+        if (vary != null && !vary.trim().isEmpty()) {
+            varyNames = vary.split(",");
+        }
+        String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyNames[i] = varyNames[i].trim();
+            varyValues[i] = request.get(varyNames[i]);
+        }
+        // s-maxage implies proxy-revalidate for a shared cache like this one
+        boolean mustRevalidate = control.mustRevalidate || control.noCache || control.sMaxAge >= 0;
+        return new Entry(url, head, body, now, initialAge, lifetime, mustRevalidate, response.get("ETag"),
+                response.get("Last-Modified"), varyNames, varyValues);
+    }
+
+    private void store(Entry entry) {
+        if (entry.weight() > maxEntryBytes) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (size.get() + entry.weight() > maxBytes) {
+                Entry victim = sampleVictim();
+                if (victim == null) {
+                    return;
+                }
+                // TinyLFU: only displace something used at least as rarely as the newcomer
+                if (sketch.frequency(victim.url) > sketch.frequency(entry.url)) {
+                    return;
+                }
+                remove(victim);
+            }
+            Entry[] previous = entries.get(entry.url);
+            Entry[] updated;
+            if (previous == null) {
+                updated = new Entry[]{entry};
+            } else {
+                updated = Arrays.copyOf(previous, previous.length + 1);
+                int replaced = -1;
+                for (int i = 0; i < previous.length; i++) {
+                    if (Arrays.equals(previous[i].varyValues, entry.varyValues)
+                            && Arrays.equals(previous[i].varyNames, entry.varyNames)) {
+                        replaced = i;
+                    }
+                }
+                if (replaced >= 0) {
+                    size.addAndGet(-previous[replaced].weight());
+                    updated = previous.clone();
+                    updated[replaced] = entry;
+                } else {
+                    updated[previous.length] = entry;
+                }
+            }
+            entries.put(entry.url, updated);
+            size.addAndGet(entry.weight());
+        }
+    }
+
+    // Least recently used among the next few entries under a rotating clock hand.
+    private Entry sampleVictim() {
+        Entry victim = null;
+        for (int sampled = 0, laps = 0; sampled < EVICTION_SAMPLE && laps < 2; ) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                laps++;
+                if (!hand.hasNext()) {
+                    break;
+                }
+            }
+            for (Entry candidate : hand.next().getValue()) {
+                sampled++;
+                if (victim == null || candidate.lastAccess < victim.lastAccess) {
+                    victim = candidate;
+                }
+            }
+        }
+        return victim;
+    }
+
+    private void remove(Entry victim) {
+        Entry[] variants = entries.get(victim.url);
+        if (variants == null) {
+            return;
+        }
+        Entry[] remaining = Arrays.stream(variants).filter(e -> e != victim).toArray(Entry[]::new);
+        if (remaining.length == variants.length) {
+            return;
+        }
+        if (remaining.length == 0) {
+            entries.remove(victim.url);
+        } else {
+            entries.put(victim.url, remaining);
+        }
+        size.addAndGet(-victim.weight());
+    }
+
+    // Stored fields updated with those in a 304, per RFC 7234 section 4.3.4.
+    private static byte[] mergeHeads(byte[] stored, HttpHead notModified) {
+        String text = new String(stored, StandardCharsets.ISO_8859_1);
+        StringBuilder out = new StringBuilder(text.length() + 64);
+        for (String line : text.split("\r\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0 && notModified.get(line.substring(0, colon).trim()) != null) {
+                continue;
+            }
+            out.append(line).append("\r\n");
+        }
+        for (String[] field : notModified.fields()) {
+            // a cookie set on a 304 belongs to the browser that revalidated, not to the shared entry
+            if (!field[0].equalsIgnoreCase("Content-Length") && !field[0].equalsIgnoreCase("Transfer-Encoding")
+                    && !field[0].equalsIgnoreCase("Connection") && !field[0].equalsIgnoreCase("Keep-Alive")
+                    && !field[0].equalsIgnoreCase("Set-Cookie")) {
+                out.append(field[0]).append(": ").append(field[1]).append("\r\n");
+            }
+        }
+        out.append("\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    long sizeBytes() {
+        return size.get();
+    }
+}
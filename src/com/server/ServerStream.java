@@ -0,0 +1,138 @@
+package com.server;
+
+import com.common.Frame;
+import com.common.HttpHead;
+import com.common.LinkCodec;
+import com.common.StreamState;
+
+import java.nio.ByteBuffer;
+
+// Offshore half of one link stream. Lives on its ship connection's event loop.
+abstract class ServerStream {
+    final int id;
+    final ShipConnection ship;
+    StreamState state = StreamState.OPEN;
+    // DATA bytes the ship will still accept; read from other loops when this stream follows a flight
+    volatile long sendWindow = Frame.INITIAL_WINDOW;
+    private int unacknowledged;        // DATA bytes from the ship we consumed but have not credited yet
+    private byte[] pendingBody;        // whole body waiting for window, see sendResponse
+    private int pendingOffset;
+    private LinkCodec.Encoder pendingEncoder;
+    PagePush pushedFor;                // set on streams we opened to push a page's subresource
+    ChunkedBody chunked;               // body being cut into chunks for the ship's chunk store, if any
+
+    ServerStream(int id, ShipConnection ship) {
+        this.id = id;
+        this.ship = ship;
+    }
+
+    boolean isClosed() {
+        return state == StreamState.CLOSED;
+    }
+
+    // Tunnel bytes from the ship, as a view of the link's read buffer that is only valid during the
+    // call. Plain GETs never receive DATA.
+    void onData(ByteBuffer data) {
+        ship.resetStream(this);
+    }
+
+    void onRemoteEnd() {
+        state = state.onRemoteEnd();
+        if (state == StreamState.CLOSED) {
+            ship.removeStream(id);
+            close();
+        }
+    }
+
+    void localEnd() {
+        state = state.onLocalEnd();
+        if (state == StreamState.CLOSED) {
+            ship.removeStream(id);
+            close();
+        }
+    }
+
+    // The ship drained some of what we sent.
+    void onWindowUpdate(int increment) {
+        boolean wasBlocked = sendWindow <= 0;
+        sendWindow += increment;
+        pumpPending();
+        if (wasBlocked && sendWindow > 0 && !isClosed()) {
+            onWindowOpen();
+        }
+    }
+
+    // Called when the send window reopens after running out; streams paused on it resume here.
+    void onWindowOpen() {
+    }
+
+    // Hand credit back to the ship once its DATA left our buffers, in batches to save frames.
+    void consumed(int bytes) {
+        unacknowledged += bytes;
+        if (unacknowledged >= Frame.INITIAL_WINDOW / 4 && !isClosed()) {
+            ship.send(Frame.windowUpdate(id, unacknowledged));
+            unacknowledged = 0;
+        }
+    }
+
+    // HEADERS for a response head. A pushed response its page's budget cannot take is reset instead;
+    // false then, and nothing more may be sent.
+    boolean sendHead(byte[] head, HttpHead parsed) {
+        if (pushedFor != null && !pushedFor.admit(parsed)) {
+            ship.resetStream(this);
+            return false;
+        }
+        ship.send(new Frame(Frame.HEADERS, (byte) 0, id, head));
+        chunked = ship.chunkedFor(parsed);
+        return true;
+    }
+
+    // The body is complete: the chunk still held back goes out, then END.
+    void sendEnd(LinkCodec.Encoder encoder) {
+        if (chunked != null) {
+            chunked.finish(ship, this, encoder);
+            chunked = null;
+        }
+        ship.send(Frame.end(id));
+    }
+
+    // A complete response held in memory: HEADERS now, then the body as fast as the window allows, then END.
+    void sendResponse(byte[] head, byte[] body) {
+        HttpHead parsed = HttpHead.parse(head, 0, head.length);
+        if (!sendHead(head, parsed)) {
+            return;
+        }
+        pendingBody = body;
+        pendingOffset = 0;
+        pendingEncoder = body.length > 0 ? ship.encoderFor(parsed) : null;
+        pumpPending();
+    }
+
+    private void pumpPending() {
+        if (pendingBody == null || isClosed()) {
+            return;
+        }
+        while (pendingOffset < pendingBody.length && sendWindow > 0) {
+            int length = Math.min(Frame.MAX_DATA, pendingBody.length - pendingOffset);
+            ship.sendData(this, pendingEncoder, pendingBody, pendingOffset, length);
+            pendingOffset += length;
+        }
+        if (pendingOffset == pendingBody.length) {
+            sendEnd(pendingEncoder);
+            discardPending();
+            localEnd();
+        }
+    }
+
+    // Drop a body still waiting for window; the stream is going away.
+    void discardPending() {
+        pendingBody = null;
+        if (pendingEncoder != null) {
+            pendingEncoder.release();
+            pendingEncoder = null;
+        }
+    }
+
+    // Release origin resources; must tolerate repeated calls.
+    abstract void close();
+}
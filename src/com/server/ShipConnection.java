@@ -0,0 +1,516 @@
+package com.server;
+
+import com.common.BodyFraming;
+import com.common.BufferPool;
+import com.common.Chunks;
+import com.common.Frame;
+import com.common.FrameDecoder;
+import com.common.HttpHead;
+import com.common.HttpParser;
+import com.common.LinkCodec;
+import com.common.Log;
+import com.common.Metrics;
+import com.common.PooledBuffer;
+import com.common.StreamState;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// One ship's framed link, served without blocking from a single event loop.
+class ShipConnection implements ChannelHandler {
+    private final OffshoreServer server;
+    private final EventLoop loop;
+    private final OriginPool originPool;
+    private final SocketChannel channel;
+    private final String name;
+    private final SelectionKey key;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    private static final Metrics.Counter BYTES_IN =
+            Metrics.counter("adpump_link_bytes_total{direction=\"in\"}", "Frame bytes moved over the link.");
+    private static final Metrics.Counter BYTES_OUT =
+            Metrics.counter("adpump_link_bytes_total{direction=\"out\"}", "Frame bytes moved over the link.");
+    private static final Metrics.Counter CHUNKS_REFERENCED = Metrics.counter(
+            "adpump_chunk_bytes_total{sent=\"reference\"}", "Chunked body bytes by how they crossed the link.");
+    private static final Metrics.Counter CHUNKS_LITERAL = Metrics.counter(
+            "adpump_chunk_bytes_total{sent=\"literal\"}", "Chunked body bytes by how they crossed the link.");
+
+    // Both directions use pooled direct buffers: the socket reads and writes them without an extra
+    // copy, and frames are serialized straight into the tail of the write queue.
+    private PooledBuffer readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
+    private final ArrayDeque<PooledBuffer> writeQueue = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    private final HttpParser requestParser = new HttpParser();
+    private int appendMark;   // read position of the tail buffer while a frame is appended to it
+    private boolean flushScheduled; // queued frames go out at the end of this loop iteration
+    private final Runnable flushTask = this::flushScheduled;
+    private boolean reading;  // streams are handed views of readBuffer; close() must not release it yet
+    private final Map<Integer, ServerStream> streams = new HashMap<>();
+    private boolean closed;
+    private LinkCodec codec; // negotiated through SETTINGS; null means DATA goes uncompressed
+    private boolean acceptsPush;  // the ship said in SETTINGS that it holds pushed responses
+    private int nextPushId = 2;   // streams we open are even; the ship's are odd
+    private ChunkIndex chunkIndex; // the ship's chunk store, null if it keeps none
+
+    ShipConnection(OffshoreServer server, EventLoop loop, OriginPool originPool, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.originPool = originPool;
+        this.channel = channel;
+        this.name = String.valueOf(channel.getRemoteAddress());
+        channel.socket().setTcpNoDelay(true);
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+        Log.info("Established persistent connection with proxy client " + name);
+    }
+
+    EventLoop loop() {
+        return loop;
+    }
+
+    OriginPool originPool() {
+        return originPool;
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flushWrites();
+        }
+    }
+
+    private void read() throws IOException {
+        reading = true;
+        try {
+            readFrames();
+        } finally {
+            reading = false;
+            if (closed) {
+                releaseReadBuffer();
+            }
+        }
+    }
+
+    private void readFrames() throws IOException {
+        ByteBuffer buffer = readBuffer.buffer();
+        int bytesRead = channel.read(buffer);
+        if (bytesRead == -1) {
+            Log.info("No more data from proxy client " + name + ". Closing connection.");
+            close();
+            return;
+        }
+        BYTES_IN.add(bytesRead);
+        buffer.flip();
+        while (!closed && FrameDecoder.hasFrame(buffer)) {
+            if (buffer.get(buffer.position() + 4) == Frame.DATA) {
+                onData(buffer);
+            } else {
+                onFrame(FrameDecoder.next(buffer));
+            }
+        }
+        if (closed) {
+            return;
+        }
+        int needed = FrameDecoder.pendingFrameSize(buffer);
+        buffer.compact();
+        if (needed > buffer.capacity() || (buffer.capacity() > READ_BUFFER_SIZE && buffer.position() == 0)) {
+            // Grow to fit a frame larger than the buffer, and go back to the usual size once it is gone
+            PooledBuffer resized = BufferPool.acquire(Math.max(needed, READ_BUFFER_SIZE));
+            buffer.flip();
+            resized.buffer().put(buffer);
+            readBuffer.release();
+            readBuffer = resized;
+        }
+    }
+
+    // DATA is handed to its stream as a view of the read buffer; the stream copies what it keeps.
+    private void onData(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start + Frame.HEADER_SIZE + buffer.getInt(start);
+        int streamId = buffer.getInt(start + 6);
+        ServerStream stream = streams.get(streamId);
+        if (stream == null) {
+            send(Frame.rst(streamId));
+        } else {
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(start + Frame.HEADER_SIZE).limit(end);
+            stream.onData(payload);
+        }
+        buffer.position(end);
+    }
+
+    private void onFrame(@NotNull Frame frame) {
+        switch (frame.type) {
+            case Frame.HEADERS:
+                openStream(frame);
+                break;
+            case Frame.END: {
+                ServerStream stream = streams.get(frame.streamId);
+                if (stream != null) {
+                    stream.onRemoteEnd();
+                }
+                break;
+            }
+            case Frame.RST: {
+                ServerStream stream = streams.remove(frame.streamId);
+                if (stream != null) {
+                    stream.state = StreamState.CLOSED;
+                    stream.discardPending();
+                    stream.close();
+                }
+                break;
+            }
+            case Frame.WINDOW_UPDATE: {
+                ServerStream stream = streams.get(frame.streamId);
+                if (stream != null) {
+                    stream.onWindowUpdate(frame.windowIncrement());
+                }
+                break;
+            }
+            case Frame.SETTINGS:
+                negotiate(frame.payloadAsString());
+                break;
+            case Frame.CHUNKS:
+                if (chunkIndex != null) {
+                    chunkIndex.apply(frame.payload);
+                }
+                break;
+            case Frame.PING:
+                if (!frame.hasFlag(Frame.FLAG_ACK)) {
+                    send(Frame.ping(Frame.FLAG_ACK, frame.payload));
+                }
+                break;
+            default:
+                Log.warn("Ignoring unknown frame from proxy client: " + frame);
+        }
+    }
+
+    // The ship lists the codecs it can decode; we pick the first one we also know.
+    private void negotiate(String settings) {
+        for (String line : settings.split("\n")) {
+            String[] setting = line.split("=", 2);
+            if (setting.length == 2 && setting[0].trim().equals("push")) {
+                acceptsPush = setting[1].trim().equals("1");
+            }
+            if (setting.length == 2 && setting[0].trim().equals("chunks") && !setting[1].isBlank()) {
+                chunkIndex = server.chunkIndex(setting[1].trim()); // the ship's store, by its id
+            }
+            if (setting.length == 2 && setting[0].trim().equals("codecs")) {
+                for (String name : setting[1].split(",")) {
+                    LinkCodec candidate = LinkCodec.forName(name);
+                    if (candidate != null) {
+                        codec = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        Log.info("Link compression with " + name + ": " + (codec == null ? "identity" : codec.name()));
+        send(Frame.settings("codec=" + (codec == null ? "identity" : codec.name())));
+    }
+
+    boolean acceptsPush() {
+        return acceptsPush;
+    }
+
+    int nextPushId() {
+        int id = nextPushId;
+        nextPushId += 2;
+        return id;
+    }
+
+    // An encoder for a response body worth compressing, or null to send it as is.
+    LinkCodec.Encoder encoderFor(HttpHead response) {
+        return codec != null && LinkCodec.isCompressible(response) ? codec.encoder() : null;
+    }
+
+    // Cutting a body into chunks pays off for a ship with a chunk store and a body of some size.
+    ChunkedBody chunkedFor(HttpHead response) {
+        if (chunkIndex == null) {
+            return null;
+        }
+        long length = BodyFraming.forResponse("GET", response).contentLength();
+        return length >= ChunkedBody.MIN_BODY ? new ChunkedBody() : null;
+    }
+
+    // Charges the stream's send window with the uncompressed length.
+    // The frame is written straight into the write queue, compressed on the way if an encoder is given.
+    // A body being chunked goes out chunk by chunk instead.
+    void sendData(ServerStream stream, LinkCodec.Encoder encoder, byte[] data, int offset, int length) {
+        stream.sendWindow -= length;
+        if (closed) {
+            return;
+        }
+        if (stream.chunked != null) {
+            stream.chunked.write(this, stream, encoder, data, offset, length);
+        } else {
+            writeData(stream.id, encoder, data, offset, length, (byte) 0);
+        }
+    }
+
+    // One whole chunk of a body, already charged to the window: just its key when the ship holds it.
+    void sendChunk(ServerStream stream, LinkCodec.Encoder encoder, byte[] chunk, int length, boolean storable) {
+        if (closed) {
+            return;
+        }
+        Chunks.Key key = storable ? Chunks.key(chunk, 0, length) : null;
+        if (key != null && chunkIndex.contains(key)) {
+            ByteBuffer out = appendTarget(Frame.HEADER_SIZE + Chunks.KEY_SIZE);
+            int start = out.position();
+            out.position(start + Frame.HEADER_SIZE);
+            key.writeTo(out);
+            Frame.putHeader(out, start, Chunks.KEY_SIZE, Frame.DATA, Frame.FLAG_CHUNK_REF, stream.id);
+            appended(out);
+            CHUNKS_REFERENCED.add(length);
+        } else {
+            writeData(stream.id, encoder, chunk, 0, length, storable ? Frame.FLAG_CHUNK : 0);
+            CHUNKS_LITERAL.add(length);
+        }
+    }
+
+    private void writeData(int streamId, LinkCodec.Encoder encoder, byte[] data, int offset, int length, byte flags) {
+        int bound = encoder == null ? length : encoder.maxEncodedLength(length);
+        ByteBuffer out = appendTarget(Frame.HEADER_SIZE + bound);
+        int start = out.position();
+        out.position(start + Frame.HEADER_SIZE);
+        if (encoder == null) {
+            out.put(data, offset, length);
+        } else {
+            encoder.encode(data, offset, length, out);
+        }
+        if (encoder != null) {
+            flags |= Frame.FLAG_COMPRESSED;
+        }
+        Frame.putHeader(out, start, out.position() - start - Frame.HEADER_SIZE, Frame.DATA, flags, streamId);
+        appended(out);
+    }
+
+    // Reads up to max bytes from source straight into a DATA frame at the tail of the write queue, so
+    // tunnel bytes go from one socket to the other without passing through any other buffer.
+    // Returns what read returned; nothing is queued unless it is positive.
+    int receiveData(ServerStream stream, ReadableByteChannel source, int max) throws IOException {
+        if (closed) {
+            return 0;
+        }
+        ByteBuffer out = appendTarget(Frame.HEADER_SIZE + max);
+        int start = out.position();
+        out.position(start + Frame.HEADER_SIZE).limit(start + Frame.HEADER_SIZE + max);
+        int bytesRead;
+        try {
+            bytesRead = source.read(out);
+        } catch (IOException e) {
+            out.position(start);
+            appended(out);
+            throw e;
+        }
+        if (bytesRead > 0) {
+            Frame.putHeader(out, start, bytesRead, Frame.DATA, (byte) 0, stream.id);
+            stream.sendWindow -= bytesRead;
+        } else {
+            out.position(start);
+        }
+        appended(out);
+        return bytesRead;
+    }
+
+    private void openStream(@NotNull Frame frame) {
+        if (streams.containsKey(frame.streamId)) {
+            Log.warn("Duplicate HEADERS for open stream " + frame.streamId);
+            send(Frame.rst(frame.streamId));
+            return;
+        }
+        if (Log.debug()) {
+            Log.debug("Received request from proxy client (stream " + frame.streamId + "):\n"
+                    + Log.body(frame.payload, 0, frame.payload.length));
+        }
+        // The ship sends a whole request head per HEADERS frame; one parser serves them all
+        requestParser.reset();
+        try {
+            requestParser.parse(frame.payload, 0, frame.payload.length);
+        } catch (IOException e) {
+            Log.warn("Invalid request on stream " + frame.streamId + ": " + e.getMessage());
+            send(Frame.rst(frame.streamId));
+            return;
+        }
+        requestParser.finish();
+        if (requestParser.isResponse() || requestParser.target().isEmpty()) {
+            Log.warn("Invalid request format: " + requestParser.startLine());
+            send(Frame.rst(frame.streamId));
+            return;
+        }
+
+        ServerStream stream;
+        if (requestParser.methodIs("CONNECT")) {
+            stream = server.handleConnectRequest(this, frame.streamId, requestParser.target());
+        } else {
+            stream = server.fetchWebpage(this, frame.streamId, requestParser, null);
+        }
+        if (stream != null && frame.hasFlag(Frame.FLAG_END_STREAM)) {
+            stream.onRemoteEnd();
+        }
+    }
+
+    void addStream(ServerStream stream) {
+        streams.put(stream.id, stream);
+    }
+
+    void removeStream(int id) {
+        streams.remove(id);
+    }
+
+    void resetStream(ServerStream stream) {
+        streams.remove(stream.id);
+        stream.state = StreamState.CLOSED;
+        stream.discardPending();
+        stream.close();
+        send(Frame.rst(stream.id));
+    }
+
+    // HEADERS with the response head, DATA frames with the body, then END
+    void sendResponse(int streamId, byte[] response) {
+        int headEnd = indexOfHeadEnd(response);
+        int bodyStart = headEnd == -1 ? response.length : headEnd + 4;
+        byte[] head = new byte[bodyStart];
+        System.arraycopy(response, 0, head, 0, bodyStart);
+        send(new Frame(Frame.HEADERS, (byte) 0, streamId, head));
+        for (int offset = bodyStart; offset < response.length; offset += Frame.MAX_DATA) {
+            send(Frame.data(streamId, response, offset, Math.min(Frame.MAX_DATA, response.length - offset)));
+        }
+        send(Frame.end(streamId));
+    }
+
+    private static int indexOfHeadEnd(byte[] data) {
+        for (int i = 0; i + 3 < data.length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Loop thread only. Queues the frame and writes as much as the socket takes right now.
+    void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer out = appendTarget(Frame.HEADER_SIZE + frame.payload.length);
+        frame.writeTo(out);
+        appended(out);
+    }
+
+    // The tail of the write queue, opened for appending bytes more after what is already queued.
+    // Frames queued while the socket is busy share buffers instead of taking one each.
+    private ByteBuffer appendTarget(int bytes) {
+        PooledBuffer tail = writeQueue.peekLast();
+        ByteBuffer buffer = tail == null ? null : tail.buffer();
+        if (buffer == null || buffer.capacity() - buffer.limit() < bytes) {
+            tail = BufferPool.acquire(Math.max(WRITE_BUFFER_SIZE, bytes));
+            writeQueue.add(tail);
+            buffer = tail.buffer();
+            buffer.limit(0);
+        }
+        appendMark = buffer.position();
+        buffer.position(buffer.limit()).limit(buffer.capacity());
+        return buffer;
+    }
+
+    // Closes an append started with appendTarget. The frame is written with whatever else this loop
+    // iteration queues, in one gathering write.
+    private void appended(ByteBuffer buffer) {
+        buffer.limit(buffer.position()).position(appendMark);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            loop.flushLater(flushTask);
+        }
+    }
+
+    private void flushScheduled() {
+        flushScheduled = false;
+        if (closed) {
+            return;
+        }
+        try {
+            flushWrites();
+        } catch (IOException e) {
+            Log.warn("Error sending to proxy client " + name + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            int count = 0;
+            for (PooledBuffer queued : writeQueue) {
+                if (count == gather.length) {
+                    break;
+                }
+                gather[count++] = queued.buffer();
+            }
+            BYTES_OUT.add(channel.write(gather, 0, count));
+            Arrays.fill(gather, 0, count, null);
+            int written = 0;
+            while (written < count && !writeQueue.peek().buffer().hasRemaining()) {
+                writeQueue.poll().release();
+                written++;
+            }
+            if (written < count) {
+                break; // the socket is full
+            }
+        }
+        if (!writeQueue.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection to proxy client " + name + ": " + e.getMessage());
+        }
+        for (ServerStream stream : new ArrayList<>(streams.values())) {
+            stream.state = StreamState.CLOSED;
+            stream.discardPending();
+            stream.close();
+        }
+        streams.clear();
+        for (PooledBuffer queued : writeQueue) {
+            queued.release();
+        }
+        writeQueue.clear();
+        if (!reading) {
+            releaseReadBuffer(); // otherwise read() does, once no stream holds a view of it
+        }
+        server.shipDisconnected(this);
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,13 @@
+package com.server;
+
+// A response served from the offshore cache. It only exists to pace the body by the ship's window.
+class StoredResponse extends ServerStream {
+    StoredResponse(ShipConnection ship, int id) {
+        super(id, ship);
+    }
+
+    @Override
+    void close() {
+        // nothing beyond the pending body, which the ship connection discards
+    }
+}
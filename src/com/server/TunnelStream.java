@@ -0,0 +1,257 @@
+package com.server;
+
+import com.common.BufferPool;
+import com.common.Frame;
+import com.common.Log;
+import com.common.PooledBuffer;
+import com.common.StreamState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A CONNECT tunnel: origin bytes go out as DATA frames, DATA frames from the ship go to the origin.
+class TunnelStream extends ServerStream implements ChannelHandler {
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    static final AtomicInteger OPEN = new AtomicInteger();  // established and not yet closed
+
+    private final OffshoreServer server;
+    private final String host;
+    private final int port;
+    private final ArrayDeque<PooledBuffer> toOrigin = new ArrayDeque<>();  // what the origin could not take yet
+    private int toOriginBytes;  // bounded by the window we granted the ship
+    private SocketChannel channel;
+    private SelectionKey key;
+    private EventLoop.Timer connectTimer;
+    private boolean connected;
+    private boolean shutdownPending;
+    private boolean counted;     // included in OPEN
+
+    TunnelStream(OffshoreServer server, ShipConnection ship, int id, String host, int port) {
+        super(id, ship);
+        this.server = server;
+        this.host = host;
+        this.port = port;
+    }
+
+    void start() {
+        server.resolve(host, port).whenComplete((address, error) -> ship.loop().execute(() -> {
+            if (error != null) {
+                Log.warn("Error resolving CONNECT target " + host + ": " + error.getMessage());
+                refuse();
+            } else {
+                connect(address);
+            }
+        }));
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (isClosed()) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean done = channel.connect(address);
+            key = ship.loop().register(channel, SelectionKey.OP_CONNECT, this);
+            if (done) {
+                established();
+            } else {
+                connectTimer = ship.loop().schedule(() -> {
+                    if (!connected && !isClosed()) {
+                        Log.warn("Timed out connecting to " + host + ":" + port);
+                        refuse();
+                    }
+                }, CONNECT_TIMEOUT_MS);
+            }
+        } catch (IOException e) {
+            Log.warn("Error handling CONNECT request: " + e.getMessage());
+            refuse();
+        }
+    }
+
+    private void established() {
+        connected = true;
+        if (connectTimer != null) {
+            connectTimer.cancel();
+        }
+        counted = true;
+        OPEN.incrementAndGet();
+        Log.info("tunnel open", "stream", id, "target", host + ":" + port);
+        // Tell the proxy client the tunnel is up
+        ship.send(Frame.headers(id, "HTTP/1.1 200 Connection Established\r\n\r\n", false));
+        updateInterest();
+    }
+
+    private void refuse() {
+        if (isClosed()) {
+            return;
+        }
+        ship.send(Frame.headers(id, "HTTP/1.1 502 Bad Gateway\r\n\r\n", true));
+        ship.removeStream(id);
+        state = StreamState.CLOSED;
+        close();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            try {
+                channel.finishConnect();
+            } catch (IOException e) {
+                Log.warn("Error connecting to " + host + ":" + port + ": " + e.getMessage());
+                refuse();
+                return;
+            }
+            established();
+        }
+        try {
+            if (key.isValid() && key.isReadable()) {
+                readFromOrigin();
+            }
+            if (key.isValid() && key.isWritable()) {
+                writeToOrigin();
+            }
+        } catch (IOException e) {
+            Log.warn("Error relaying data for stream " + id + ": " + e.getMessage());
+            ship.resetStream(this);
+        }
+    }
+
+    private void readFromOrigin() throws IOException {
+        // Never more than the ship will accept, so the window is not overrun
+        int max = (int) Math.min(Frame.MAX_DATA, sendWindow);
+        if (max <= 0) {
+            updateInterest();
+            return;
+        }
+        int bytesRead = ship.receiveData(this, channel, max);
+        if (bytesRead > 0) {
+            if (sendWindow <= 0) {
+                updateInterest(); // stop reading until the ship drains what it has
+            }
+        } else if (bytesRead == -1) {
+            ship.send(Frame.end(id));
+            localEnd();
+            updateInterest();
+        }
+    }
+
+    @Override
+    void onData(ByteBuffer data) {
+        toOriginBytes += data.remaining();
+        if (toOriginBytes > Frame.INITIAL_WINDOW + Frame.MAX_DATA) {
+            Log.warn("Stream " + id + " overran its flow control window; resetting");
+            ship.resetStream(this);
+            return;
+        }
+        try {
+            if (connected && toOrigin.isEmpty()) {
+                wroteToOrigin(channel.write(data)); // usually all of it, straight from the link buffer
+            }
+            if (data.hasRemaining()) {
+                PooledBuffer copy = BufferPool.acquire(data.remaining());
+                copy.buffer().put(data).flip();
+                toOrigin.add(copy);
+            }
+            if (connected) {
+                writeToOrigin();
+            }
+        } catch (IOException e) {
+            Log.warn("Error writing to target for stream " + id + ": " + e.getMessage());
+            ship.resetStream(this);
+        }
+    }
+
+    @Override
+    void onRemoteEnd() {
+        shutdownPending = true;
+        super.onRemoteEnd();
+        if (!isClosed() && connected) {
+            try {
+                writeToOrigin();
+            } catch (IOException e) {
+                ship.resetStream(this);
+            }
+        }
+    }
+
+    private void writeToOrigin() throws IOException {
+        while (!toOrigin.isEmpty()) {
+            ByteBuffer head = toOrigin.peek().buffer();
+            wroteToOrigin(channel.write(head));
+            if (head.hasRemaining()) {
+                break;
+            }
+            toOrigin.poll().release();
+        }
+        if (toOrigin.isEmpty() && shutdownPending && channel.isOpen()) {
+            shutdownPending = false;
+            channel.shutdownOutput();
+        }
+        updateInterest();
+    }
+
+    // The origin took it: the ship may send that much more
+    private void wroteToOrigin(int bytes) {
+        toOriginBytes -= bytes;
+        consumed(bytes);
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if ((state == StreamState.OPEN || state == StreamState.HALF_CLOSED_REMOTE) && sendWindow > 0) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!toOrigin.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    @Override
+    void onWindowOpen() {
+        updateInterest();
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        if (isClosed()) {
+            close();
+        } else {
+            ship.resetStream(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (counted) {
+            counted = false;
+            OPEN.decrementAndGet();
+        }
+        for (PooledBuffer queued : toOrigin) {
+            queued.release();
+        }
+        toOrigin.clear();
+        if (connectTimer != null) {
+            connectTimer.cancel();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing target socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Drives the resolver through a stub lookup, a clock we move by hand and an executor that only runs
+// queries when told to, so every state between asking and answering can be looked at.
+class HostResolverTest {
+    private static final long TTL = 60_000;
+    private static final long STALE = 300_000;
+    private static final long NEGATIVE_TTL = 10_000;
+
+    private final Map<String, InetAddress> hosts = new HashMap<>();
+    private final ArrayDeque<Runnable> queries = new ArrayDeque<>();
+    private long now = 1_000_000;
+    private int lookups;
+    private InetAddress origin;
+    private InetAddress moved;
+    private HostResolver resolver;
+
+    @BeforeEach
+    void setUp() throws UnknownHostException {
+        origin = InetAddress.getByAddress("origin.test", new byte[]{10, 0, 0, 1});
+        moved = InetAddress.getByAddress("origin.test", new byte[]{10, 0, 0, 2});
+        hosts.put("origin.test", origin);
+        HostResolver.Lookup stub = HostResolver.stub(hosts, host -> {
+            throw new UnknownHostException(host);
+        });
+        resolver = new HostResolver(host -> {
+            lookups++;
+            return stub.lookup(host);
+        }, queries::add, () -> now, TTL, STALE, NEGATIVE_TTL);
+    }
+
+    private void runQueries() {
+        for (Runnable query; (query = queries.poll()) != null; ) {
+            query.run();
+        }
+    }
+
+    @Test
+    void answersFromCacheUntilTheTtlRunsOut() throws Exception {
+        CompletableFuture<InetAddress> first = resolver.resolve("Origin.test");
+        assertFalse(first.isDone());
+        runQueries();
+        assertEquals(origin, first.get());
+
+        now += TTL / 2;
+        assertEquals(origin, resolver.resolve("origin.test").getNow(null));
+        assertTrue(queries.isEmpty());
+
+        now += TTL + STALE; // past the stale window too: the old answer is gone
+        hosts.put("origin.test", moved);
+        CompletableFuture<InetAddress> expired = resolver.resolve("origin.test");
+        assertFalse(expired.isDone());
+        runQueries();
+        assertEquals(moved, expired.get());
+        assertEquals(2, lookups);
+    }
+
+    @Test
+    void servesStaleAnswersWhileRefreshingInTheBackground() throws Exception {
+        resolver.resolve("origin.test");
+        runQueries();
+        hosts.put("origin.test", moved);
+
+        now += TTL * 3 / 4; // still fresh, but in use late enough to refresh ahead
+        assertEquals(origin, resolver.resolve("origin.test").getNow(null));
+        assertEquals(1, queries.size());
+        runQueries();
+        assertEquals(moved, resolver.resolve("origin.test").getNow(null));
+
+        now += TTL + 1;
+        hosts.put("origin.test", origin);
+        assertEquals(moved, resolver.resolve("origin.test").getNow(null));
+        assertEquals(1, queries.size());
+        runQueries();
+        assertEquals(origin, resolver.resolve("origin.test").getNow(null));
+
+        // A refresh that fails keeps the answer that worked until the stale window closes
+        now += TTL + 1;
+        hosts.remove("origin.test");
+        assertEquals(origin, resolver.resolve("origin.test").getNow(null));
+        runQueries();
+        assertEquals(origin, resolver.resolve("origin.test").getNow(null));
+        now += STALE;
+        CompletableFuture<InetAddress> gone = resolver.resolve("origin.test");
+        runQueries();
+        ExecutionException failure = assertThrows(ExecutionException.class, gone::get);
+        assertInstanceOf(UnknownHostException.class, failure.getCause());
+    }
+
+    @Test
+    void remembersUnknownHostsForTheNegativeTtl() {
+        CompletableFuture<InetAddress> first = resolver.resolve("missing.test");
+        runQueries();
+        ExecutionException failure = assertThrows(ExecutionException.class, first::get);
+        assertInstanceOf(UnknownHostException.class, failure.getCause());
+
+        hosts.put("missing.test", origin);
+        now += NEGATIVE_TTL - 1;
+        assertTrue(resolver.resolve("missing.test").isCompletedExceptionally());
+        assertTrue(queries.isEmpty());
+        assertEquals(1, lookups);
+
+        now += 1;
+        CompletableFuture<InetAddress> retried = resolver.resolve("missing.test");
+        assertFalse(retried.isDone());
+        runQueries();
+        assertEquals(origin, retried.getNow(null));
+        assertEquals(2, lookups);
+    }
+
+    @Test
+    void coalescesConcurrentLookupsOfOneHost() throws Exception {
+        CompletableFuture<InetAddress> first = resolver.resolve("origin.test");
+        CompletableFuture<InetAddress> second = resolver.resolve("ORIGIN.test");
+        assertSame(first, second);
+        assertEquals(1, queries.size());
+        runQueries();
+        assertEquals(origin, second.get());
+        assertEquals(1, lookups);
+
+        // Background refreshes share one query as well
+        now += TTL + 1;
+        resolver.resolve("origin.test");
+        resolver.resolve("origin.test");
+        assertEquals(1, queries.size());
+        runQueries();
+        assertEquals(2, lookups);
+    }
+}